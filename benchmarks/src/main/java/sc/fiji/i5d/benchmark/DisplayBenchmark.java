@@ -0,0 +1,131 @@
+//
+// DisplayBenchmark.java
+//
+
+/*
+Image5D plugins for 5-dimensional image stacks in ImageJ.
+
+Copyright (c) 2010, Joachim Walter and ImageJDev.org.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package sc.fiji.i5d.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sc.fiji.i5d.Image5D;
+import sc.fiji.i5d.gui.ChannelControl;
+
+/**
+ * Benchmarks of browsing through an Image5D: switching the position and
+ * compositing the channels for display.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Xmx4g" })
+public class DisplayBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class DisplayState extends Image5DState {
+
+		@Param({ "OVERLAY", "TILED" })
+		public String displayMode;
+
+		int slice;
+		int frame;
+
+		@Override
+		@Setup(Level.Trial)
+		public void setUp() {
+			super.setUp();
+			i5d.setDisplayMode("TILED".equals(displayMode) ? ChannelControl.TILED
+				: ChannelControl.OVERLAY);
+		}
+
+		/** Moves to the next z slice, and to the next frame after the last. */
+		void next() {
+			slice = (slice + 1) % slices;
+			if (slice == 0) frame = (frame + 1) % frames;
+		}
+	}
+
+	/** Steps through slices and frames, as the scrollbars do. */
+	@Benchmark
+	public Object setCurrentPosition(final DisplayState state) {
+		state.next();
+		final Image5D i5d = state.i5d;
+		i5d.setCurrentPosition(0, 0, 0, state.slice, state.frame);
+		return i5d.getProcessor();
+	}
+
+	/**
+	 * Composites all channels of the current position. Only changed channels
+	 * are composited again, so the overlay is invalidated first, as after a
+	 * change of all channels.
+	 */
+	@Benchmark
+	public Object updateImage(final DisplayState state) {
+		final Image5D i5d = state.i5d;
+		i5d.updateImageAndDraw();
+		i5d.updateImage();
+		return i5d;
+	}
+
+	/**
+	 * Composites the current position after the current channel has changed,
+	 * e.g. by a filter or a new display range.
+	 */
+	@Benchmark
+	public Object updateImageOneChannelChanged(final DisplayState state) {
+		final Image5D i5d = state.i5d;
+		i5d.updateAndDraw();
+		i5d.updateImage();
+		return i5d;
+	}
+
+	/** Moves to the next position and composites it. */
+	@Benchmark
+	public Object setCurrentPositionAndUpdateImage(final DisplayState state) {
+		state.next();
+		final Image5D i5d = state.i5d;
+		i5d.setCurrentPosition(0, 0, 0, state.slice, state.frame);
+		i5d.updateImage();
+		return i5d;
+	}
+
+}
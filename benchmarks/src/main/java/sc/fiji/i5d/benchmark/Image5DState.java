@@ -0,0 +1,124 @@
+//
+// Image5DState.java
+//
+
+/*
+Image5D plugins for 5-dimensional image stacks in ImageJ.
+
+Copyright (c) 2010, Joachim Walter and ImageJDev.org.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package sc.fiji.i5d.benchmark;
+
+import ij.ImagePlus;
+
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import sc.fiji.i5d.Image5D;
+
+/**
+ * A headless Image5D filled with random data, with parameterized size, number
+ * of channels and bit depth.
+ */
+@State(Scope.Benchmark)
+public class Image5DState {
+
+	@Param({ "512", "2048" })
+	public int size;
+
+	@Param({ "1", "3", "6" })
+	public int channels;
+
+	@Param({ "8", "16", "32" })
+	public int bitDepth;
+
+	// The largest configuration (2048 x 2048, 6 channels, 32-bit) takes 1.5 GB.
+	public int slices = 8;
+	public int frames = 2;
+
+	public Image5D i5d;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		System.setProperty("java.awt.headless", "true");
+		i5d =
+			new Image5D("benchmark", getType(bitDepth), size, size, channels, slices,
+				frames, true);
+		final Random random = new Random(42);
+		for (int t = 1; t <= frames; t++) {
+			for (int z = 1; z <= slices; z++) {
+				for (int c = 1; c <= channels; c++) {
+					fill(i5d.getWritablePixels(c, z, t), random);
+				}
+			}
+		}
+		i5d.setDefaultColors();
+		for (int c = 1; c <= channels; c++) {
+			i5d.setChannelMinMax(c, 0, bitDepth == 8 ? 255 : 4095);
+		}
+		i5d.setCurrentPosition(0, 0, 0, 0, 0);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		i5d.flush();
+	}
+
+	static int getType(final int bitDepth) {
+		switch (bitDepth) {
+			case 16:
+				return ImagePlus.GRAY16;
+			case 32:
+				return ImagePlus.GRAY32;
+			default:
+				return ImagePlus.GRAY8;
+		}
+	}
+
+	static void fill(final Object pixels, final Random random) {
+		if (pixels instanceof byte[]) {
+			random.nextBytes((byte[]) pixels);
+		}
+		else if (pixels instanceof short[]) {
+			final short[] s = (short[]) pixels;
+			for (int i = 0; i < s.length; i++) {
+				s[i] = (short) random.nextInt(4096);
+			}
+		}
+		else if (pixels instanceof float[]) {
+			final float[] f = (float[]) pixels;
+			for (int i = 0; i < f.length; i++) {
+				f[i] = random.nextFloat() * 4095f;
+			}
+		}
+	}
+
+}
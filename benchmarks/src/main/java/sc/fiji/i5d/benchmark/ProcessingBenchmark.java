@@ -0,0 +1,96 @@
+//
+// ProcessingBenchmark.java
+//
+
+/*
+Image5D plugins for 5-dimensional image stacks in ImageJ.
+
+Copyright (c) 2010, Joachim Walter and ImageJDev.org.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package sc.fiji.i5d.benchmark;
+
+import ij.ImagePlus;
+import ij.plugin.ZProjector;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sc.fiji.i5d.plugin.Make_Montage;
+import sc.fiji.i5d.plugin.Z_Project;
+
+/**
+ * Benchmarks of the Z_Project and Make_Montage plugins on all frames of an
+ * Image5D.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Xmx4g" })
+public class ProcessingBenchmark {
+
+	@Benchmark
+	public Object zProjectMax(final Image5DState state) {
+		return project(state, ZProjector.MAX_METHOD);
+	}
+
+	@Benchmark
+	public Object zProjectAverage(final Image5DState state) {
+		return project(state, ZProjector.AVG_METHOD);
+	}
+
+	@Benchmark
+	public Object montage(final Image5DState state) {
+		final Make_Montage montage = new Make_Montage();
+		montage.setDisplayedChannelsOnly(false);
+		montage.setAllTimeFrames(true);
+		montage.setOutputImage5D(false);
+		montage.setDoScaling(true);
+		final ImagePlus result =
+			montage.doMontage(state.i5d, 4, 2, 0.5, 1, state.slices, 1, 0, false);
+		result.flush();
+		return result;
+	}
+
+	private Object project(final Image5DState state, final int method) {
+		final Z_Project projector = new Z_Project(state.i5d);
+		projector.setMethod(method);
+		projector.setDisplayedChannelsOnly(false);
+		projector.setAllTimeFrames(true);
+		projector.setOutputImage5D(false);
+		projector.setDoScaling(true);
+		final ImagePlus result = projector.doProjection();
+		result.flush();
+		return result;
+	}
+
+}
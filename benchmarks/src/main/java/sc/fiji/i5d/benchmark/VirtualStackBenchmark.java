@@ -0,0 +1,141 @@
+//
+// VirtualStackBenchmark.java
+//
+
+/*
+Image5D plugins for 5-dimensional image stacks in ImageJ.
+
+Copyright (c) 2010, Joachim Walter and ImageJDev.org.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package sc.fiji.i5d.benchmark;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sc.fiji.i5d.I5DVirtualStack;
+import sc.fiji.i5d.SliceCache;
+
+/**
+ * Benchmarks of reading slices of a virtual stack from a folder of TIFF files,
+ * with and without the slice cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Xmx4g" })
+public class VirtualStackBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class VirtualStackState {
+
+		@Param({ "512", "2048" })
+		public int size;
+
+		@Param({ "8", "16", "32" })
+		public int bitDepth;
+
+		@Param({ "true", "false" })
+		public boolean cached;
+
+		public int nFiles = 16;
+
+		File directory;
+		I5DVirtualStack stack;
+		int n;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			System.setProperty("java.awt.headless", "true");
+			directory = Files.createTempDirectory("i5d-benchmark").toFile();
+			final Random random = new Random(42);
+			ImageProcessor ip = null;
+			for (int i = 0; i < nFiles; i++) {
+				ip = createProcessor();
+				Image5DState.fill(ip.getPixels(), random);
+				final String name = "slice" + i + ".tif";
+				new FileSaver(new ImagePlus(name, ip)).saveAsTiff(new File(directory,
+					name).getPath());
+			}
+			final SliceCache cache = new SliceCache();
+			// Without cache, every call reads the slice from disk.
+			if (!cached) cache.setMaxBytes(0);
+			stack =
+				new I5DVirtualStack(size, size, ip.getColorModel(), directory
+					.getPath(), cache);
+			for (int i = 0; i < nFiles; i++) {
+				stack.addSlice("slice" + i + ".tif");
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			stack.getSliceCache().clear();
+			final File[] files = directory.listFiles();
+			if (files != null) {
+				for (final File file : files) {
+					file.delete();
+				}
+			}
+			directory.delete();
+		}
+
+		private ImageProcessor createProcessor() {
+			final ImagePlus imp =
+				IJ.createImage("", bitDepth + "-bit black", size, size, 1);
+			return imp.getProcessor();
+		}
+	}
+
+	/** Reads the slices in order, as when playing through a series. */
+	@Benchmark
+	public Object getProcessor(final VirtualStackState state) {
+		state.n = state.n % state.nFiles + 1;
+		return state.stack.getProcessor(state.n);
+	}
+
+}
@@ -0,0 +1,740 @@
+//
+// ChannelCompositor.java
+//
+
+/*
+Image5D plugins for 5-dimensional image stacks in ImageJ.
+
+Copyright (c) 2010, Joachim Walter and ImageJDev.org.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package sc.fiji.i5d;
+
+import ij.IJ;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Composites the channels of an Image5D into one RGB int-array, as displayed
+ * in OVERLAY and TILED mode. Each channel is scaled from its raw byte, short or
+ * float pixels to 8 bits the same way as ImageProcessor.createImage() does it
+ * and then mapped through a cached 256 entry RGB table of the channel's color
+ * model. There is no round trip through an AWT image.
+ * <p>
+ * The image is divided into tiles of {@link #TILE_SIZE} pixels, which are
+ * distributed over the threads of a ForkJoinPool. Only tiles that changed
+ * since the last call of {@link #composite(int[])} are composited, and of
+ * those only the ones in the viewport (see {@link #setViewport(Rectangle)});
+ * the others follow when they become visible.
+ * <p>
+ * The RGB contribution of each channel is kept between calls. Only channels
+ * whose pixels, display range, threshold or color model have changed, or
+ * which were invalidated with {@link #invalidate(int, Rectangle)}, are mapped
+ * again; the others are just added up. Pixel arrays that are changed in place
+ * must be invalidated by the caller.
+ */
+public class ChannelCompositor {
+
+	/** Width and height of the tiles that are composited. */
+	public static final int TILE_SIZE = 64;
+
+	/** Number of pixels below which a group of tiles is not split further. */
+	static final int MIN_PIXELS_PER_TASK = 1 << 16;
+
+	private final int width;
+	private final int height;
+	private final int nTilesX;
+	private final int nTilesY;
+
+	private ChannelMapping[] mappings = new ChannelMapping[0];
+
+	private boolean caching = true;
+	private long maxCacheBytes = IJ.maxMemory() / 8;
+	/** Region that is composited, or null for the whole image. */
+	private Rectangle viewport;
+	/** The array that was composited last and its tiles that are out of date. */
+	private int[] lastRGB;
+	private BitSet stale = new BitSet();
+	/**
+	 * The array composited before lastRGB, so that two arrays can be composited
+	 * alternately (double buffering) without recalculating them completely.
+	 */
+	private int[] otherRGB;
+	private BitSet otherStale = new BitSet();
+	/** Set when channels were added, removed or hidden. */
+	private boolean restructured;
+	/**
+	 * Sum of the contributions of all visible channels except restChannel, so
+	 * that repeated changes of one channel (e.g. dragging its contrast slider)
+	 * cost one channel. Saturated addition is associative, so this gives the
+	 * same result as adding up all channels.
+	 */
+	private int[] rest;
+	private ChannelMapping restChannel;
+	private final BitSet restValid = new BitSet();
+
+	public ChannelCompositor(final int width, final int height) {
+		this.width = width;
+		this.height = height;
+		nTilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+		nTilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+		stale.set(0, nTilesX * nTilesY);
+		otherStale.set(0, nTilesX * nTilesY);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Sets the number of channels. Mappings (and their cached tables) of
+	 * existing channels are kept.
+	 */
+	public void setNChannels(final int nChannels) {
+		if (nChannels == mappings.length) return;
+		final ChannelMapping[] newMappings = new ChannelMapping[nChannels];
+		System.arraycopy(mappings, 0, newMappings, 0, Math.min(nChannels,
+			mappings.length));
+		for (int i = mappings.length; i < nChannels; i++) {
+			newMappings[i] = new ChannelMapping();
+		}
+		mappings = newMappings;
+		restructure();
+	}
+
+	public int getNChannels() {
+		return mappings.length;
+	}
+
+	/**
+	 * Displays the channel as <code>ip.createImage()</code> would do it: with
+	 * the current color model, display range and threshold of <code>ip</code>.
+	 * This is how channels are displayed in OVERLAY mode.
+	 */
+	public void setChannel(final int channel, final ImageProcessor ip) {
+		final ChannelMapping m = getMapping(channel);
+		final boolean changed = m.set(ip, ip.getCurrentColorModel(), false);
+		if (m.setThreshold(ip) || changed) markDirty(m, null);
+	}
+
+	/**
+	 * Displays the channel with the color model <code>cm</code> and the display
+	 * range of <code>ip</code>, ignoring thresholds. This is how channels are
+	 * displayed in the overlay canvas in TILED mode.
+	 */
+	public void setChannel(final int channel, final ImageProcessor ip,
+		final ColorModel cm)
+	{
+		final ChannelMapping m = getMapping(channel);
+		final boolean changed = m.set(ip, cm, ip instanceof ByteProcessor);
+		if (m.clearThreshold() || changed) markDirty(m, null);
+	}
+
+	/** Excludes the channel from the composite. */
+	public void hideChannel(final int channel) {
+		final ChannelMapping m = getMapping(channel);
+		if (m.visible) restructure();
+		m.visible = false;
+		m.pixels = null;
+		m.contribution = null;
+		m.dirty.clear();
+	}
+
+	/**
+	 * Marks the whole channel for recalculation, e.g. after its pixels have been
+	 * changed in place.
+	 */
+	public void invalidate(final int channel) {
+		invalidate(channel, null);
+	}
+
+	/**
+	 * Marks the rectangle r of the channel for recalculation. Marks the whole
+	 * channel if r is null.
+	 */
+	public void invalidate(final int channel, final Rectangle r) {
+		markDirty(getMapping(channel), r);
+	}
+
+	/** Marks all channels for recalculation. */
+	public void invalidateAll() {
+		for (final ChannelMapping m : mappings) {
+			markDirty(m, null);
+		}
+		restructure();
+	}
+
+	/**
+	 * Restricts compositing to the region r, e.g. the part of the image that is
+	 * visible in the canvas. Tiles outside are composited when they get into
+	 * the viewport. If r is null, the whole image is composited.
+	 */
+	public void setViewport(final Rectangle r) {
+		viewport = r == null ? null : r.intersection(getBounds());
+	}
+
+	public Rectangle getViewport() {
+		return viewport;
+	}
+
+	/**
+	 * Returns true if the composite of the last call of composite() is out of
+	 * date in the region r, e.g. because r was outside the viewport.
+	 */
+	public boolean isStale(final Rectangle r) {
+		final Rectangle clipped = r.intersection(getBounds());
+		if (clipped.isEmpty()) return false;
+		final int tx1 = (clipped.x + clipped.width - 1) / TILE_SIZE;
+		final int ty1 = (clipped.y + clipped.height - 1) / TILE_SIZE;
+		for (int ty = clipped.y / TILE_SIZE; ty <= ty1; ty++) {
+			final int i = stale.nextSetBit(ty * nTilesX + clipped.x / TILE_SIZE);
+			if (i >= 0 && i <= ty * nTilesX + tx1) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Enables or disables keeping the RGB contribution of each channel. Without
+	 * caching, all channels are mapped on every call of composite().
+	 */
+	public void setCaching(final boolean caching) {
+		this.caching = caching;
+		if (!caching) clearCache();
+	}
+
+	/** Returns true if the RGB contributions of the channels are kept. */
+	public boolean isCaching() {
+		return caching &&
+			(long) width * height * (mappings.length + 1) * 4 <= maxCacheBytes;
+	}
+
+	/**
+	 * Sets the maximum memory used for the cached contributions. Above this,
+	 * the channels are composited without cache.
+	 */
+	public void setMaxCacheBytes(final long maxCacheBytes) {
+		this.maxCacheBytes = maxCacheBytes;
+		if (!isCaching()) clearCache();
+	}
+
+	/**
+	 * Composites all visible channels into <code>rgb</code>, an array of size
+	 * width*height. Color components are added and clipped at 255. If
+	 * <code>rgb</code> is the array of one of the two previous calls, only the
+	 * tiles in the viewport that changed since then are written. Returns false
+	 * if nothing had to be written.
+	 */
+	public boolean composite(final int[] rgb) {
+		if (rgb.length < width * height) throw new IllegalArgumentException(
+			"RGB array too small.");
+
+		// Skip hidden channels once instead of for every pixel.
+		int nVisible = 0;
+		final ChannelMapping[] visible = new ChannelMapping[mappings.length];
+		for (int i = 0; i < mappings.length; i++) {
+			if (mappings[i].visible && mappings[i].pixels != null) {
+				visible[nVisible++] = mappings[i];
+			}
+		}
+		final ChannelMapping[] active = Arrays.copyOf(visible, nVisible);
+
+		if (rgb != lastRGB) {
+			final BitSet tmp = stale;
+			if (rgb == otherRGB) {
+				stale = otherStale;
+			}
+			else {
+				stale = new BitSet();
+				stale.set(0, nTilesX * nTilesY);
+			}
+			otherRGB = lastRGB;
+			otherStale = tmp;
+			lastRGB = rgb;
+		}
+		final boolean cached = isCaching();
+		if (cached) {
+			for (final ChannelMapping m : active) {
+				if (m.contribution == null) {
+					m.contribution = new int[width * height];
+					m.dirty.set(0, nTilesX * nTilesY);
+				}
+			}
+		}
+		else {
+			clearCache();
+		}
+		updateRestChannel(cached);
+
+		// Collect the stale tiles in the viewport.
+		final Rectangle r = viewport == null ? getBounds() : viewport;
+		final int[] tiles = new int[nTilesX * nTilesY];
+		int nTiles = 0;
+		if (!r.isEmpty()) {
+			final int tx0 = r.x / TILE_SIZE, tx1 = (r.x + r.width - 1) / TILE_SIZE;
+			final int ty0 = r.y / TILE_SIZE, ty1 = (r.y + r.height - 1) / TILE_SIZE;
+			for (int ty = ty0; ty <= ty1; ty++) {
+				for (int tx = tx0; tx <= tx1; tx++) {
+					if (stale.get(ty * nTilesX + tx)) tiles[nTiles++] = ty * nTilesX + tx;
+				}
+			}
+		}
+		if (nTiles == 0) return false;
+
+		if ((long) nTiles * TILE_SIZE * TILE_SIZE < 2 * MIN_PIXELS_PER_TASK) {
+			compositeTiles(active, rgb, cached, tiles, 0, nTiles);
+		}
+		else {
+			ForkJoinPool.commonPool().invoke(
+				new CompositeTask(active, rgb, cached, tiles, 0, nTiles));
+		}
+
+		for (int i = 0; i < nTiles; i++) {
+			stale.clear(tiles[i]);
+			for (final ChannelMapping m : active) {
+				m.dirty.clear(tiles[i]);
+			}
+			if (restChannel != null) restValid.set(tiles[i]);
+		}
+		return true;
+	}
+
+	protected ChannelMapping getMapping(final int channel) {
+		if (channel < 1 || channel > mappings.length) throw new IllegalArgumentException(
+			"Invalid channel: " + channel);
+		return mappings[channel - 1];
+	}
+
+	/**
+	 * Chooses the channel that is kept apart from the sum of the others: the
+	 * only channel that changed since the last call. The sum is discarded if
+	 * another or more than one channel changed.
+	 */
+	private void updateRestChannel(final boolean cached) {
+		ChannelMapping changed = null;
+		int nChanged = 0;
+		for (final ChannelMapping m : mappings) {
+			if (m.changed && m.visible) {
+				changed = m;
+				nChanged++;
+			}
+			m.changed = false;
+		}
+		if (!cached || restructured || nChanged > 1 ||
+			(nChanged == 1 && changed != restChannel) ||
+			(restChannel != null && !restChannel.visible))
+		{
+			restChannel = null;
+			restValid.clear();
+		}
+		if (cached && !restructured && nChanged == 1 && restChannel == null) {
+			restChannel = changed;
+			if (rest == null) rest = new int[width * height];
+		}
+		if (restChannel == null) rest = null;
+		restructured = false;
+	}
+
+	/** Composites the tiles tiles[from..to-1]. */
+	void compositeTiles(final ChannelMapping[] active, final int[] rgb,
+		final boolean cached, final int[] tiles, final int from, final int to)
+	{
+		final int[] row = cached ? null : new int[TILE_SIZE];
+		for (int i = from; i < to; i++) {
+			final int tile = tiles[i];
+			final int x0 = (tile % nTilesX) * TILE_SIZE;
+			final int y0 = (tile / nTilesX) * TILE_SIZE;
+			final int x1 = Math.min(x0 + TILE_SIZE, width);
+			final int y1 = Math.min(y0 + TILE_SIZE, height);
+			final int w = x1 - x0;
+			final boolean sumRest = restChannel != null && !restValid.get(tile);
+			for (int y = y0; y < y1; y++) {
+				final int offset = y * width + x0;
+				if (cached) {
+					for (int c = 0; c < active.length; c++) {
+						final ChannelMapping m = active[c];
+						if (m.dirty.get(tile)) {
+							m.map(m.contribution, offset, offset, offset + w);
+						}
+					}
+				}
+				if (restChannel != null) {
+					if (sumRest) {
+						Arrays.fill(rest, offset, offset + w, 0);
+						for (int c = 0; c < active.length; c++) {
+							if (active[c] == restChannel) continue;
+							add(rest, active[c].contribution, offset, offset, w);
+						}
+					}
+					final int[] single = restChannel.contribution;
+					for (int j = offset; j < offset + w; j++) {
+						rgb[j] = addClipped(rest[j], single[j]);
+					}
+					continue;
+				}
+				Arrays.fill(rgb, offset, offset + w, 0);
+				for (int c = 0; c < active.length; c++) {
+					final ChannelMapping m = active[c];
+					if (cached) {
+						add(rgb, m.contribution, offset, offset, w);
+					}
+					else {
+						m.map(row, 0, offset, offset + w);
+						add(rgb, row, offset, 0, w);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the RGB values of the channels ips to rgb, clipping at 255, and
+	 * makes the pixels of rgb opaque. Each channel is mapped with the color
+	 * model cms[i] and its display range, as by
+	 * {@link #setChannel(int, ImageProcessor, ColorModel)}. The channels are
+	 * mapped and added one row at a time, so no RGB plane is allocated for
+	 * them.
+	 */
+	public static void addChannels(final ImageProcessor[] ips,
+		final ColorModel[] cms, final int[] rgb)
+	{
+		if (ips.length == 0) return;
+		final ChannelMapping[] m = new ChannelMapping[ips.length];
+		for (int c = 0; c < ips.length; c++) {
+			m[c] = new ChannelMapping();
+			m[c].set(ips[c], cms[c], ips[c] instanceof ByteProcessor);
+		}
+		final int width = ips[0].getWidth();
+		final int[] row = new int[width];
+		for (int offset = 0; offset + width <= rgb.length; offset += width) {
+			for (int c = 0; c < m.length; c++) {
+				m[c].map(row, 0, offset, offset + width);
+				add(rgb, row, offset, 0, width);
+			}
+			for (int j = offset; j < offset + width; j++) {
+				rgb[j] |= 0xff000000;
+			}
+		}
+	}
+
+	/** Adds two RGB values component by component, clipping at 255. */
+	public static int addClipped(final int rgb1, final int rgb2) {
+		int r = ((rgb1 >> 16) & 0xff) + ((rgb2 >> 16) & 0xff);
+		int g = ((rgb1 >> 8) & 0xff) + ((rgb2 >> 8) & 0xff);
+		int b = (rgb1 & 0xff) + (rgb2 & 0xff);
+		if (r > 255) r = 255;
+		if (g > 255) g = 255;
+		if (b > 255) b = 255;
+		return (r << 16) | (g << 8) | b;
+	}
+
+	private static void add(final int[] rgb, final int[] src, final int rgbPos,
+		final int srcPos, final int length)
+	{
+		for (int i = 0; i < length; i++) {
+			rgb[rgbPos + i] = addClipped(rgb[rgbPos + i], src[srcPos + i]);
+		}
+	}
+
+	private Rectangle getBounds() {
+		return new Rectangle(0, 0, width, height);
+	}
+
+	/**
+	 * Marks the tiles of m in the rectangle r, or all tiles if r is null, for
+	 * recalculation.
+	 */
+	private void markDirty(final ChannelMapping m, final Rectangle r) {
+		final Rectangle clipped =
+			r == null ? getBounds() : r.intersection(getBounds());
+		m.changed = true;
+		if (clipped.isEmpty()) return;
+		final int tx0 = clipped.x / TILE_SIZE;
+		final int tx1 = (clipped.x + clipped.width - 1) / TILE_SIZE;
+		for (int ty = clipped.y / TILE_SIZE; ty <= (clipped.y + clipped.height - 1) /
+			TILE_SIZE; ty++)
+		{
+			m.dirty.set(ty * nTilesX + tx0, ty * nTilesX + tx1 + 1);
+			stale.set(ty * nTilesX + tx0, ty * nTilesX + tx1 + 1);
+			otherStale.set(ty * nTilesX + tx0, ty * nTilesX + tx1 + 1);
+		}
+	}
+
+	/** Marks all tiles as stale after channels were added, removed or hidden. */
+	private void restructure() {
+		stale.set(0, nTilesX * nTilesY);
+		otherStale.set(0, nTilesX * nTilesY);
+		restructured = true;
+	}
+
+	private void clearCache() {
+		for (final ChannelMapping m : mappings) {
+			m.contribution = null;
+		}
+		rest = null;
+		restChannel = null;
+		restValid.clear();
+	}
+
+	/** Splits a group of tiles in halves until it is small enough. */
+	private class CompositeTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ChannelMapping[] active;
+		private final int[] rgb;
+		private final boolean cached;
+		private final int[] tiles;
+		private final int from, to;
+
+		CompositeTask(final ChannelMapping[] active, final int[] rgb,
+			final boolean cached, final int[] tiles, final int from, final int to)
+		{
+			this.active = active;
+			this.rgb = rgb;
+			this.cached = cached;
+			this.tiles = tiles;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if ((long) (to - from) * TILE_SIZE * TILE_SIZE <= MIN_PIXELS_PER_TASK ||
+				to - from < 2)
+			{
+				compositeTiles(active, rgb, cached, tiles, from, to);
+			}
+			else {
+				final int mid = (from + to) >>> 1;
+				invokeAll(new CompositeTask(active, rgb, cached, tiles, from, mid),
+					new CompositeTask(active, rgb, cached, tiles, mid, to));
+			}
+		}
+	}
+
+	/**
+	 * Pixels, display range, threshold and cached RGB table of one channel,
+	 * and its cached RGB contribution to the composite.
+	 */
+	static class ChannelMapping {
+
+		static final int NO_THRESHOLD = 0;
+		static final int RED_THRESHOLD = 1;
+		static final int BLACK_AND_WHITE_THRESHOLD = 2;
+
+		boolean visible;
+		Object pixels;
+		double min, max;
+		int thresholdMode = NO_THRESHOLD;
+		double minThreshold, maxThreshold;
+
+		final int[] table = new int[256];
+		private ColorModel tableModel;
+		private boolean tableRemapped;
+		private double tableMin, tableMax;
+
+		/** RGB values of this channel alone, or null. */
+		int[] contribution;
+		/** Tiles of contribution that are out of date. */
+		final BitSet dirty = new BitSet();
+		/** Set when the channel was marked dirty since the last composite. */
+		boolean changed;
+
+		/**
+		 * Takes over pixels, display range and color model. Returns true if any
+		 * of them changed.
+		 */
+		boolean set(final ImageProcessor ip, final ColorModel cm,
+			final boolean remap)
+		{
+			final Object newPixels = ip.getPixels();
+			final boolean changed =
+				!visible || newPixels != pixels || ip.getMin() != min ||
+					ip.getMax() != max;
+			visible = true;
+			pixels = newPixels;
+			min = ip.getMin();
+			max = ip.getMax();
+			return updateTable(cm, remap && max >= min) || changed;
+		}
+
+		/**
+		 * Takes over the threshold of ip. Only needed for 16 and 32 bit images:
+		 * for 8 bit images it is contained in the current color model. Returns
+		 * true if the threshold changed.
+		 */
+		boolean setThreshold(final ImageProcessor ip) {
+			int mode = NO_THRESHOLD;
+			double t1 = minThreshold, t2 = maxThreshold;
+			if ((ip instanceof ShortProcessor || ip instanceof FloatProcessor) &&
+				ip.getMinThreshold() != ImageProcessor.NO_THRESHOLD &&
+				ip.getLutUpdateMode() < ImageProcessor.NO_LUT_UPDATE)
+			{
+				mode =
+					ip.getLutUpdateMode() == ImageProcessor.BLACK_AND_WHITE_LUT
+						? BLACK_AND_WHITE_THRESHOLD : RED_THRESHOLD;
+				t1 = ip.getMinThreshold();
+				t2 = ip.getMaxThreshold();
+			}
+			final boolean changed =
+				mode != thresholdMode ||
+					(mode != NO_THRESHOLD && (t1 != minThreshold || t2 != maxThreshold));
+			thresholdMode = mode;
+			minThreshold = t1;
+			maxThreshold = t2;
+			return changed;
+		}
+
+		/** Switches thresholds off. Returns true if they were on. */
+		boolean clearThreshold() {
+			final boolean changed = thresholdMode != NO_THRESHOLD;
+			thresholdMode = NO_THRESHOLD;
+			return changed;
+		}
+
+		/**
+		 * Rebuilds the RGB table if the color model or, for remapped 8 bit
+		 * tables, the display range has changed. Remapping is done like in
+		 * ByteProcessor.setMinAndMax(). Returns true if the table was rebuilt.
+		 */
+		boolean updateTable(final ColorModel cm, final boolean remap) {
+			if (cm == tableModel && remap == tableRemapped &&
+				(!remap || (min == tableMin && max == tableMax))) return false;
+
+			final int mapSize =
+				cm instanceof IndexColorModel ? ((IndexColorModel) cm).getMapSize()
+					: 256;
+			final int iMin = (int) min;
+			for (int i = 0; i < 256; i++) {
+				int index = i;
+				if (remap) {
+					if (i < min) index = 0;
+					else if (i > max) index = 255;
+					else {
+						index = (int) (256.0 * (i - iMin) / (max - min));
+						if (index < 0) index = 0;
+						if (index > 255) index = 255;
+					}
+				}
+				if (index >= mapSize) index = mapSize - 1;
+				table[i] = cm.getRGB(index) & 0xffffff;
+			}
+			tableModel = cm;
+			tableRemapped = remap;
+			tableMin = min;
+			tableMax = max;
+			return true;
+		}
+
+		/**
+		 * Writes the RGB values of the pixels from..to-1 to out, starting at
+		 * outPos.
+		 */
+		void map(final int[] out, final int outPos, final int from, final int to) {
+			if (pixels instanceof byte[]) {
+				final byte[] px = (byte[]) pixels;
+				for (int i = from, j = outPos; i < to; i++, j++) {
+					out[j] = table[px[i] & 0xff];
+				}
+			}
+			else if (pixels instanceof short[]) {
+				mapShorts((short[]) pixels, out, outPos, from, to);
+			}
+			else if (pixels instanceof float[]) {
+				mapFloats((float[]) pixels, out, outPos, from, to);
+			}
+		}
+
+		// Scaling as in ShortProcessor.createImage()
+		private void mapShorts(final short[] px, final int[] out,
+			final int outPos, final int from, final int to)
+		{
+			final int min2 = (int) min, max2 = (int) max;
+			final boolean redThreshold = thresholdMode == RED_THRESHOLD;
+			final int maxValue = redThreshold ? 254 : 255;
+			final double scale = (redThreshold ? 255.0 : 256.0) / (max2 - min2 + 1);
+			final int t1 = (int) minThreshold, t2 = (int) maxThreshold;
+			for (int i = from, j = outPos; i < to; i++, j++) {
+				final int v = px[i] & 0xffff;
+				int index;
+				if (thresholdMode == BLACK_AND_WHITE_THRESHOLD) {
+					index = (v >= t1 && v <= t2) ? 255 : 0;
+				}
+				else if (redThreshold && v >= t1 && v <= t2) {
+					index = 255;
+				}
+				else {
+					int value = v - min2;
+					if (value < 0) value = 0;
+					index = (int) (value * scale + 0.5);
+					if (index < 0) index = 0;
+					else if (index > maxValue) index = maxValue;
+				}
+				out[j] = table[index];
+			}
+		}
+
+		// Scaling as in FloatProcessor.createImage()
+		private void mapFloats(final float[] px, final int[] out,
+			final int outPos, final int from, final int to)
+		{
+			final boolean redThreshold = thresholdMode == RED_THRESHOLD;
+			final int maxValue = redThreshold ? 254 : 255;
+			final double scale = (redThreshold ? 255.0 : 256.0) / (max - min);
+			for (int i = from, j = outPos; i < to; i++, j++) {
+				final double v = px[i];
+				int index;
+				if (thresholdMode == BLACK_AND_WHITE_THRESHOLD) {
+					index = (v >= minThreshold && v <= maxThreshold) ? 255 : 0;
+				}
+				else if (redThreshold && v >= minThreshold && v <= maxThreshold) {
+					index = 255;
+				}
+				else {
+					double value = v - min;
+					if (value < 0.0) value = 0.0;
+					index = (int) ((value * scale) + 0.5f);
+					if (index < 0) index = 0;
+					else if (index > maxValue) index = maxValue;
+				}
+				out[j] = table[index];
+			}
+		}
+	}
+
+}
@@ -38,14 +38,57 @@ import ij.gui.Roi;
 import ij.measure.Calibration;
 import ij.process.ImageProcessor;
 
+import java.awt.Image;
 import java.awt.Rectangle;
 
 public class ChannelImagePlus extends ImagePlus {
 
+	// Renders the displayed image in TILED mode, or null.
+	private TileRenderer renderer;
+	private int channel;
+
 	public ChannelImagePlus(final String title, final ImageProcessor ip) {
 		super(title, ip);
 	}
 
+	/**
+	 * Lets <code>renderer</code> render the displayed image of this channel. If
+	 * <code>renderer</code> is null, the image is created by the processor.
+	 */
+	void setTileRenderer(final TileRenderer renderer, final int channel) {
+		this.renderer = renderer;
+		this.channel = channel;
+	}
+
+	/**
+	 * Does nothing if the image is rendered by a TileRenderer: it finds out
+	 * itself which channels have changed when the image is displayed.
+	 */
+	@Override
+	public void updateImage() {
+		final TileRenderer renderer = this.renderer;
+		if (renderer == null || !renderer.canRender(channel)) super.updateImage();
+	}
+
+	/**
+	 * Sets the part of the image that is visible in its canvas. If the image is
+	 * rendered by a TileRenderer, only this part is rendered.
+	 */
+	public void setVisibleRegion(final Rectangle r) {
+		final TileRenderer renderer = this.renderer;
+		if (renderer != null) renderer.setViewport(r);
+	}
+
+	@Override
+	public Image getImage() {
+		final TileRenderer renderer = this.renderer;
+		if (renderer != null) {
+			final Image image = renderer.getImage(channel);
+			if (image != null) return image;
+		}
+		return super.getImage();
+	}
+
 	/* Empty method. Prevents messing up the Image5DWindow's title. 
 	 * A ChannelImagePlus needs no title. */
 	@Override
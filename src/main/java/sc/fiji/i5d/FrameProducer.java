@@ -0,0 +1,261 @@
+//
+// FrameProducer.java
+//
+
+/*
+Image5D plugins for 5-dimensional image stacks in ImageJ.
+
+Copyright (c) 2010, Joachim Walter and ImageJDev.org.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package sc.fiji.i5d;
+
+import ij.IJ;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Composites the overlay of an Image5D on a background thread, so that the
+ * event dispatch thread does not wait for large overlays. Frames are written
+ * alternately into two int arrays. A finished frame is handed to the display
+ * with {@link #takeFrame()}, while the next one is written into the other
+ * array. Requests that arrive while a frame is composited are coalesced.
+ * <p>
+ * All access to the ChannelCompositor of the producer happens on its thread.
+ * Invalidations from other threads are queued until the next frame.
+ * <p>
+ * In TILED mode, the producer also renders the images of the channel
+ * canvasses after each frame (see {@link TileRenderer}).
+ */
+class FrameProducer implements Runnable {
+
+	private final Image5D i5d;
+	private final ChannelCompositor compositor;
+	private final int[][] buffers = new int[2][];
+	private final Thread thread;
+
+	// Guarded by this.
+	private boolean done;
+	private long requested;
+	private long processed;
+	private Rectangle region;
+	private final List<Rectangle> invalidRegions = new ArrayList<Rectangle>();
+	private final List<Integer> invalidChannels = new ArrayList<Integer>();
+	private boolean invalidAll;
+	/** Finished frame that has not been taken yet. */
+	private int[] ready;
+	private Rectangle readyRegion;
+	private long readyRequest;
+	/** The frame that is displayed and the region in which it is up to date. */
+	private int[] front;
+	private Rectangle frontRegion;
+
+	FrameProducer(final Image5D i5d, final int width, final int height) {
+		this.i5d = i5d;
+		compositor = new ChannelCompositor(width, height);
+		buffers[0] = new int[width * height];
+		buffers[1] = new int[width * height];
+		thread = new Thread(this, "Image5D-Compositor");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	int getWidth() {
+		return compositor.getWidth();
+	}
+
+	int getHeight() {
+		return compositor.getHeight();
+	}
+
+	/**
+	 * Requests a frame that is up to date in the given region, or in the whole
+	 * image if region is null. Returns a number to wait for with
+	 * {@link #awaitFrame(long)}.
+	 */
+	synchronized long request(final Rectangle region) {
+		this.region = region == null ? null : new Rectangle(region);
+		requested++;
+		notifyAll();
+		return requested;
+	}
+
+	/**
+	 * Marks the rectangle r of the channel for recalculation in the next frame.
+	 * The whole channel if r is null, all channels if channel is 0.
+	 */
+	synchronized void invalidate(final int channel, final Rectangle r) {
+		if (channel == 0) {
+			invalidAll = true;
+		}
+		else {
+			invalidChannels.add(channel);
+			invalidRegions.add(r == null ? null : new Rectangle(r));
+		}
+	}
+
+	/**
+	 * Returns a finished frame that has not been displayed yet, or null. The
+	 * array returned becomes the displayed frame and won't be written until
+	 * another frame is taken.
+	 */
+	synchronized int[] takeFrame() {
+		if (ready == null) return null;
+		front = ready;
+		frontRegion = readyRegion;
+		ready = null;
+		notifyAll();
+		return front;
+	}
+
+	/**
+	 * Waits until the request with the given number has been processed and
+	 * returns the frame to display then. Frames that are finished in between are
+	 * taken, too.
+	 */
+	synchronized int[] awaitFrame(final long request) {
+		while (!done) {
+			if (ready != null) {
+				final long readyFor = readyRequest;
+				takeFrame();
+				if (readyFor >= request) break;
+			}
+			else if (processed >= request) {
+				break;
+			}
+			try {
+				wait();
+			}
+			catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return front;
+	}
+
+	/**
+	 * Returns true if the displayed frame may be out of date in the region r,
+	 * because it was outside the requested region.
+	 */
+	synchronized boolean isOutdated(final Rectangle r) {
+		return front == null || (frontRegion != null && !frontRegion.contains(r));
+	}
+
+	/** Stops the thread. */
+	void stop() {
+		synchronized (this) {
+			done = true;
+			notifyAll();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			final long request;
+			final Rectangle r;
+			final int[] back;
+			final boolean displayed;
+			synchronized (this) {
+				// Wait for a request and for the last frame to be taken.
+				while (!done && (requested == processed || ready != null)) {
+					try {
+						wait();
+					}
+					catch (final InterruptedException e) {
+						return;
+					}
+				}
+				if (done) return;
+				request = requested;
+				r = region;
+				back = front == buffers[0] ? buffers[1] : buffers[0];
+				displayed = front != null;
+				if (invalidAll) compositor.invalidateAll();
+				for (int i = 0; i < invalidChannels.size(); i++) {
+					if (invalidChannels.get(i) <= compositor.getNChannels()) {
+						compositor.invalidate(invalidChannels.get(i), invalidRegions.get(i));
+					}
+				}
+				invalidAll = false;
+				invalidChannels.clear();
+				invalidRegions.clear();
+			}
+
+			boolean written = false;
+			for (int attempt = 1; attempt <= 2; attempt++) {
+				try {
+					i5d.setCompositorChannels(compositor);
+					final Rectangle bounds =
+						new Rectangle(0, 0, compositor.getWidth(), compositor.getHeight());
+					// Nothing to do if the displayed frame is up to date.
+					if (!displayed || compositor.isStale(r == null ? bounds : r)) {
+						compositor.setViewport(r);
+						compositor.composite(back);
+						written = true;
+					}
+					break;
+				}
+				catch (final RuntimeException e) {
+					// The image may have changed while it was read, e.g. channels were
+					// added: try once more with all channels read again. Without a
+					// frame, the display composites the overlay itself.
+					IJ.log("Image5D: " + e + (attempt == 1 ? ", retrying" : ""));
+					compositor.invalidateAll();
+				}
+			}
+
+			// In TILED mode, render the images of the channel canvasses, too.
+			final TileRenderer tiles = i5d.tileRenderer;
+			boolean rendered = false;
+			if (tiles != null && tiles.isBackgroundRendering()) {
+				try {
+					rendered = tiles.render() > 0;
+				}
+				catch (final RuntimeException e) {
+					IJ.log("Image5D: " + e);
+				}
+			}
+
+			synchronized (this) {
+				processed = request;
+				if (written) {
+					ready = back;
+					readyRegion = r;
+					readyRequest = request;
+				}
+				else if (displayed) {
+					frontRegion = r;
+				}
+				notifyAll();
+			}
+			if (written) i5d.frameReady();
+			if (rendered) i5d.tilesReady();
+		}
+	}
+
+}
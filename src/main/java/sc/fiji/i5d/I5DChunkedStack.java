@@ -0,0 +1,351 @@
+//
+// I5DChunkedStack.java
+//
+
+/*
+Image5D plugins for 5-dimensional image stacks in ImageJ.
+
+Copyright (c) 2010, Joachim Walter and ImageJDev.org.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package sc.fiji.i5d;
+
+import ij.ImageStack;
+
+import java.awt.image.ColorModel;
+import java.lang.reflect.Array;
+
+/**
+ * This class keeps the planes of a 5D stack in chunks that span a few pixels
+ * in x, y, z and t of one channel, instead of one array per plane. Reading a
+ * region with {@link #getRegion}, e.g. the time trace of a pixel, an XZ or YZ
+ * section or a sub-volume, then only touches the chunks that intersect it, and
+ * copies only the requested voxels. Chunks that were never written hold zeros
+ * and are not allocated.
+ * <p>
+ * The planes are numbered like the imageStack of an Image5D: channel first,
+ * then slice, then frame. Like {@link I5DDirectStack},
+ * {@link #getPixels(int)} assembles a copy of a plane and
+ * {@link #setPixels(Object, int)} copies an array into the chunks.
+ */
+public class I5DChunkedStack extends I5DPlaneStack {
+
+	/** Default extent of a chunk in x, y, z and t. */
+	public static final int[] DEFAULT_CHUNK_SHAPE = { 64, 64, 8, 8 };
+
+	int bytesPerPixel;
+	int nChannels, nSlices, nFrames;
+	// Extent of a chunk in x, y, z and t, and number of chunks in each of them.
+	int[] chunkShape;
+	int[] nChunks;
+	String[] labels;
+
+	// Chunks of each channel, x fastest, then y, z and t. Inside a chunk, the
+	// voxels are ordered the same way. Chunks at the upper edges are smaller.
+	Object[][] chunks;
+
+	/**
+	 * Creates a stack of the given bit depth (8, 16 or 32) and dimensions,
+	 * filled with zeros. chunkShape is the extent of a chunk in x, y, z and t.
+	 * 
+	 * @throws IllegalArgumentException if the bit depth is not supported or a
+	 *           chunk extent is less than 1.
+	 */
+	public I5DChunkedStack(final int width, final int height,
+		final ColorModel cm, final int bitDepth, final int nChannels,
+		final int nSlices, final int nFrames, final int[] chunkShape)
+	{
+		super(width, height, cm);
+		if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32) {
+			throw new IllegalArgumentException("Unsupported bit depth: " +
+				bitDepth);
+		}
+		if (chunkShape.length != 4) throw new IllegalArgumentException(
+			"Chunk shape needs 4 dimensions.");
+		bytesPerPixel = bitDepth / 8;
+		this.nChannels = nChannels;
+		this.nSlices = nSlices;
+		this.nFrames = nFrames;
+		final int[] size = { width, height, nSlices, nFrames };
+		this.chunkShape = new int[4];
+		nChunks = new int[4];
+		for (int i = 0; i < 4; i++) {
+			if (chunkShape[i] < 1) throw new IllegalArgumentException(
+				"Invalid chunk extent: " + chunkShape[i]);
+			this.chunkShape[i] = Math.min(chunkShape[i], Math.max(size[i], 1));
+			nChunks[i] = (size[i] + this.chunkShape[i] - 1) / this.chunkShape[i];
+		}
+		labels = new String[nChannels * nSlices * nFrames];
+		chunks = new Object[nChannels][nChunks[0] * nChunks[1] * nChunks[2] *
+			nChunks[3]];
+	}
+
+	/**
+	 * Returns a chunked copy of a stack of nChannels * nSlices * nFrames planes
+	 * in the order of an Image5D.
+	 * 
+	 * @throws IllegalArgumentException if the bit depth of the stack is not 8,
+	 *           16 or 32, or its size does not match.
+	 */
+	public static I5DChunkedStack copyOf(final ImageStack stack,
+		final int nChannels, final int nSlices, final int nFrames,
+		final int[] chunkShape)
+	{
+		if (stack.getSize() != nChannels * nSlices * nFrames) {
+			throw new IllegalArgumentException("Stack size doesn't match.");
+		}
+		final I5DChunkedStack copy =
+			new I5DChunkedStack(stack.getWidth(), stack.getHeight(), stack
+				.getColorModel(), stack.getBitDepth(), nChannels, nSlices, nFrames,
+				chunkShape);
+		for (int n = 1; n <= stack.getSize(); n++) {
+			copy.setPixels(stack.getPixels(n), n);
+			copy.labels[n - 1] = stack.getSliceLabel(n);
+		}
+		return copy;
+	}
+
+	/** Returns the extent of a chunk in x, y, z and t. */
+	public int[] getChunkShape() {
+		return chunkShape.clone();
+	}
+
+	/** Returns the number of bytes used by the allocated chunks. */
+	public synchronized long getSizeInBytes() {
+		long size = 0;
+		for (final Object[] channelChunks : chunks) {
+			for (final Object chunk : channelChunks) {
+				if (chunk != null) size += (long) Array.getLength(chunk) * bytesPerPixel;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Returns a copy of the voxels of a region of one channel, ordered x
+	 * fastest, then y, z and t. The region starts at pixel (x, y) of slice z and
+	 * frame t (0-based) and extends over width x height pixels, depth slices and
+	 * duration frames. Only the chunks that intersect the region are read.
+	 */
+	public Object getRegion(final int channel, final int x, final int y,
+		final int z, final int t, final int width, final int height,
+		final int depth, final int duration)
+	{
+		checkRegion(channel, x, y, z, t, width, height, depth, duration);
+		final Object region =
+			createArray((long) width * height * depth * duration);
+		copyRegion(channel, new int[] { x, y, z, t }, new int[] { width, height,
+			depth, duration }, region, false);
+		return region;
+	}
+
+	/**
+	 * Copies voxels into a region of one channel. The voxels are ordered as by
+	 * {@link #getRegion}.
+	 */
+	public void setRegion(final Object voxels, final int channel, final int x,
+		final int y, final int z, final int t, final int width, final int height,
+		final int depth, final int duration)
+	{
+		checkRegion(channel, x, y, z, t, width, height, depth, duration);
+		if (voxels.getClass() != createArray(0).getClass() ||
+			Array.getLength(voxels) < (long) width * height *
+				depth * duration)
+		{
+			throw new IllegalArgumentException("Invalid voxel array.");
+		}
+		copyRegion(channel, new int[] { x, y, z, t }, new int[] { width, height,
+			depth, duration }, voxels, true);
+	}
+
+	/**
+	 * Returns a copy of the pixels of the specified slice, where
+	 * {@code 1<=n<=nslices}.
+	 */
+	@Override
+	public Object getPixels(final int n) {
+		checkIndex(n);
+		return getRegion((n - 1) % nChannels, 0, 0, (n - 1) / nChannels %
+			nSlices, (n - 1) / (nChannels * nSlices), getWidth(), getHeight(), 1, 1);
+	}
+
+	/**
+	 * Copies the pixels into the specified slice, where {@code 1<=n<=nslices}.
+	 * Does nothing if the array does not match the type of the stack.
+	 */
+	@Override
+	public void setPixels(final Object pixels, final int n) {
+		checkIndex(n);
+		if (pixels == null || pixels.getClass() != createArray(0).getClass() ||
+			Array.getLength(pixels) < getWidth() * getHeight())
+		{
+			return;
+		}
+		copyRegion((n - 1) % nChannels, new int[] { 0, 0,
+			(n - 1) / nChannels % nSlices, (n - 1) / (nChannels * nSlices) },
+			new int[] { getWidth(), getHeight(), 1, 1 }, pixels, true);
+	}
+
+	@Override
+	public int getSize() {
+		return labels.length;
+	}
+
+	@Override
+	public String getSliceLabel(final int n) {
+		checkIndex(n);
+		return labels[n - 1];
+	}
+
+	@Override
+	public void setSliceLabel(final String label, final int n) {
+		checkIndex(n);
+		labels[n - 1] = label;
+	}
+
+	@Override
+	public int getBitDepth() {
+		return 8 * bytesPerPixel;
+	}
+
+	private void checkIndex(final int n) {
+		if (n < 1 || n > labels.length) throw new IllegalArgumentException(
+			Image5D.outOfRange + n);
+	}
+
+	private void checkRegion(final int channel, final int x, final int y,
+		final int z, final int t, final int width, final int height,
+		final int depth, final int duration)
+	{
+		if (channel < 0 || channel >= nChannels || x < 0 || y < 0 || z < 0 ||
+			t < 0 || width < 0 || height < 0 || depth < 0 || duration < 0 ||
+			x + width > getWidth() || y + height > getHeight() ||
+			z + depth > nSlices || t + duration > nFrames)
+		{
+			throw new IllegalArgumentException("Region out of range.");
+		}
+	}
+
+	private Object createArray(final long size) {
+		if (size > Integer.MAX_VALUE) throw new IllegalArgumentException(
+			"Region too large.");
+		switch (bytesPerPixel) {
+			case 1:
+				return new byte[(int) size];
+			case 2:
+				return new short[(int) size];
+			default:
+				return new float[(int) size];
+		}
+	}
+
+	/**
+	 * Returns the chunk with the given grid coordinates, allocating it if
+	 * create is true. Returns null for a chunk that was never written.
+	 */
+	private synchronized Object getChunk(final int channel, final int[] grid,
+		final boolean create)
+	{
+		final int index =
+			((grid[3] * nChunks[2] + grid[2]) * nChunks[1] + grid[1]) * nChunks[0] +
+				grid[0];
+		Object chunk = chunks[channel][index];
+		if (chunk == null && create) {
+			long size = 1;
+			for (int i = 0; i < 4; i++) {
+				size *= getChunkExtent(grid, i);
+			}
+			chunk = createArray(size);
+			chunks[channel][index] = chunk;
+		}
+		return chunk;
+	}
+
+	/** Returns the extent in dimension i of the chunk at grid. */
+	private int getChunkExtent(final int[] grid, final int i) {
+		final int size =
+			i == 0 ? getWidth() : i == 1 ? getHeight() : i == 2 ? nSlices : nFrames;
+		return Math.min(chunkShape[i], size - grid[i] * chunkShape[i]);
+	}
+
+	/**
+	 * Copies between the region with the given origin and size and the array
+	 * region, into the chunks if write is true. Copies one row of the
+	 * intersection of the region with each chunk at a time.
+	 */
+	private void copyRegion(final int channel, final int[] origin,
+		final int[] size, final Object region, final boolean write)
+	{
+		for (int i = 0; i < 4; i++) {
+			if (size[i] == 0) return;
+		}
+		final int[] first = new int[4];
+		final int[] last = new int[4];
+		for (int i = 0; i < 4; i++) {
+			first[i] = origin[i] / chunkShape[i];
+			last[i] = (origin[i] + size[i] - 1) / chunkShape[i];
+		}
+		final int[] grid = new int[4];
+		final int[] from = new int[4];
+		final int[] to = new int[4];
+		final int[] extent = new int[4];
+		for (grid[3] = first[3]; grid[3] <= last[3]; grid[3]++) {
+			for (grid[2] = first[2]; grid[2] <= last[2]; grid[2]++) {
+				for (grid[1] = first[1]; grid[1] <= last[1]; grid[1]++) {
+					for (grid[0] = first[0]; grid[0] <= last[0]; grid[0]++) {
+						final Object chunk = getChunk(channel, grid, write);
+						// Intersection of the chunk with the region.
+						for (int i = 0; i < 4; i++) {
+							final int start = grid[i] * chunkShape[i];
+							extent[i] = getChunkExtent(grid, i);
+							from[i] = Math.max(origin[i], start);
+							to[i] = Math.min(origin[i] + size[i], start + extent[i]);
+						}
+						if (chunk == null) continue; // zeros, like the new region
+						final int rowLength = to[0] - from[0];
+						for (int tt = from[3]; tt < to[3]; tt++) {
+							for (int zz = from[2]; zz < to[2]; zz++) {
+								for (int yy = from[1]; yy < to[1]; yy++) {
+									final int chunkOffset =
+										(((tt - grid[3] * chunkShape[3]) * extent[2] + zz -
+											grid[2] * chunkShape[2]) * extent[1] + yy - grid[1] *
+											chunkShape[1]) * extent[0] + from[0] - grid[0] *
+											chunkShape[0];
+									final int regionOffset =
+										(((tt - origin[3]) * size[2] + zz - origin[2]) * size[1] +
+											yy - origin[1]) * size[0] + from[0] - origin[0];
+									if (write) System.arraycopy(region, regionOffset, chunk,
+										chunkOffset, rowLength);
+									else System.arraycopy(chunk, chunkOffset, region,
+										regionOffset, rowLength);
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,473 @@
+//
+// I5DCompressedStack.java
+//
+
+/*
+Image5D plugins for 5-dimensional image stacks in ImageJ.
+
+Copyright (c) 2010, Joachim Walter and ImageJDev.org.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package sc.fiji.i5d;
+
+import ij.ImageStack;
+
+import java.awt.image.ColorModel;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class keeps the planes of a stack compressed in memory. Each pixel is
+ * predicted from its left neighbor (from the pixel above at the start of a
+ * row), and the differences are split into byte planes and deflated. Most
+ * differences are small, so their high bytes compress to almost nothing. Sparse
+ * fluorescence planes, which are mostly background, shrink several times.
+ * <p>
+ * Decompressed planes are kept in a small {@link SliceCache}, so that moving
+ * back and forth between a few positions does not decompress them again.
+ * Like {@link I5DDirectStack}, {@link #getPixels(int)} hands out a copy of a
+ * plane and {@link #setPixels(Object, int)} compresses an array into the stack.
+ * Changes to the arrays are not seen by the stack until they are set again.
+ */
+public class I5DCompressedStack extends I5DPlaneStack {
+
+	/** Number of decompressed planes that are cached by default. */
+	public static final int DEFAULT_CACHED_PLANES = 16;
+
+	int bytesPerPixel;
+	int planeBytes;
+	int nSlices;
+	String[] labels;
+
+	// Compressed planes. Never changed once assigned, so planes with the same
+	// content may share one array.
+	byte[][] planes;
+	// Incremented on each change of a plane, part of the key in the cache.
+	int[] versions;
+	SliceCache cache;
+
+	/**
+	 * Creates a stack of nSlices planes of the given bit depth (8, 16 or 32),
+	 * filled with zeros.
+	 * 
+	 * @throws IllegalArgumentException if the bit depth is not supported.
+	 */
+	public I5DCompressedStack(final int width, final int height,
+		final ColorModel cm, final int bitDepth, final int nSlices)
+	{
+		super(width, height, cm);
+		if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32) {
+			throw new IllegalArgumentException("Unsupported bit depth: " +
+				bitDepth);
+		}
+		bytesPerPixel = bitDepth / 8;
+		planeBytes = width * height * bytesPerPixel;
+		this.nSlices = nSlices;
+		labels = new String[nSlices];
+		versions = new int[nSlices];
+		planes = new byte[nSlices][];
+		Arrays.fill(planes, compress(createPixels()));
+		cache = new SliceCache((long) DEFAULT_CACHED_PLANES * planeBytes);
+	}
+
+	/**
+	 * Returns a compressed copy of the stack. The planes are compressed in
+	 * parallel.
+	 * 
+	 * @throws IllegalArgumentException if the bit depth of the stack is not 8,
+	 *           16 or 32.
+	 */
+	public static I5DCompressedStack copyOf(final ImageStack stack) {
+		final I5DCompressedStack copy =
+			new I5DCompressedStack(stack.getWidth(), stack.getHeight(), stack
+				.getColorModel(), stack.getBitDepth(), stack.getSize());
+		final CompressTask task =
+			new CompressTask(stack, copy, 1, stack.getSize() + 1);
+		if (stack.getSize() < 2) task.compute();
+		else ForkJoinPool.commonPool().invoke(task);
+		for (int n = 1; n <= stack.getSize(); n++) {
+			copy.labels[n - 1] = stack.getSliceLabel(n);
+		}
+		return copy;
+	}
+
+	/** Sets all planes to a copy of the pixels, which is compressed only once. */
+	public void setAllPixels(final Object pixels) {
+		if (!isValid(pixels)) return;
+		final byte[] data = compress(pixels);
+		synchronized (this) {
+			for (int i = 0; i < nSlices; i++) {
+				planes[i] = data;
+				versions[i]++;
+			}
+		}
+	}
+
+	/** Returns the cache of decompressed planes. */
+	public SliceCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Returns the size in bytes of the specified plane when compressed, where
+	 * {@code 1<=n<=nslices}.
+	 */
+	public synchronized int getCompressedSize(final int n) {
+		checkIndex(n);
+		return planes[n - 1].length;
+	}
+
+	/** Returns the size in bytes of one uncompressed plane. */
+	public int getPlaneSize() {
+		return planeBytes;
+	}
+
+	/**
+	 * Returns the ratio of the uncompressed to the compressed size of the given
+	 * planes. All planes, if <code>planes</code> is null.
+	 */
+	public synchronized double getCompressionRatio(final int[] planes) {
+		long compressed = 0;
+		final int count = planes == null ? nSlices : planes.length;
+		for (int i = 0; i < count; i++) {
+			compressed += getCompressedSize(planes == null ? i + 1 : planes[i]);
+		}
+		return compressed == 0 ? 1 : (double) count * planeBytes / compressed;
+	}
+
+	/** Returns the number of bytes used by the compressed planes. */
+	public synchronized long getSizeInBytes() {
+		long size = 0;
+		byte[] previous = null;
+		for (int i = 0; i < nSlices; i++) {
+			// Count planes that share the data of the previous one only once.
+			if (planes[i] != previous) size += planes[i].length;
+			previous = planes[i];
+		}
+		return size;
+	}
+
+	/**
+	 * Decompresses the specified slice on a background thread, unless it is
+	 * already cached.
+	 */
+	public void prefetch(final int n) {
+		if (n < 1 || n > nSlices) return;
+		final byte[] data;
+		final String key;
+		synchronized (this) {
+			data = planes[n - 1];
+			key = getKey(n);
+		}
+		cache.prefetch(key, getLoader(data));
+	}
+
+	/**
+	 * Returns a copy of the pixels of the specified slice, where
+	 * {@code 1<=n<=nslices}.
+	 */
+	@Override
+	public Object getPixels(final int n) {
+		final byte[] data;
+		final String key;
+		synchronized (this) {
+			checkIndex(n);
+			data = planes[n - 1];
+			key = getKey(n);
+		}
+		final Object pixels = cache.get(key, getLoader(data));
+		if (pixels instanceof byte[]) return ((byte[]) pixels).clone();
+		if (pixels instanceof short[]) return ((short[]) pixels).clone();
+		return ((float[]) pixels).clone();
+	}
+
+	/**
+	 * Compresses the pixels into the specified slice, where
+	 * {@code 1<=n<=nslices}. Does nothing if the array does not match the type
+	 * of the stack.
+	 */
+	@Override
+	public void setPixels(final Object pixels, final int n) {
+		checkIndex(n);
+		if (!isValid(pixels)) return;
+		final byte[] data = compress(pixels);
+		final String key;
+		synchronized (this) {
+			planes[n - 1] = data;
+			versions[n - 1]++;
+			key = getKey(n);
+		}
+		if (pixels instanceof byte[]) cache.put(key, ((byte[]) pixels).clone());
+		else if (pixels instanceof short[]) cache.put(key, ((short[]) pixels)
+			.clone());
+		else cache.put(key, ((float[]) pixels).clone());
+	}
+
+	@Override
+	public int getSize() {
+		return nSlices;
+	}
+
+	@Override
+	public String getSliceLabel(final int n) {
+		checkIndex(n);
+		return labels[n - 1];
+	}
+
+	@Override
+	public void setSliceLabel(final String label, final int n) {
+		checkIndex(n);
+		labels[n - 1] = label;
+	}
+
+	@Override
+	public int getBitDepth() {
+		return 8 * bytesPerPixel;
+	}
+
+	private void checkIndex(final int n) {
+		if (n < 1 || n > nSlices) throw new IllegalArgumentException(
+			Image5D.outOfRange + n);
+	}
+
+	private String getKey(final int n) {
+		return n + ":" + versions[n - 1];
+	}
+
+	private Callable<Object> getLoader(final byte[] data) {
+		return new Callable<Object>() {
+
+			@Override
+			public Object call() {
+				return decompress(data);
+			}
+		};
+	}
+
+	private boolean isValid(final Object pixels) {
+		final int size = getWidth() * getHeight();
+		switch (bytesPerPixel) {
+			case 1:
+				return pixels instanceof byte[] && ((byte[]) pixels).length >= size;
+			case 2:
+				return pixels instanceof short[] && ((short[]) pixels).length >= size;
+			default:
+				return pixels instanceof float[] && ((float[]) pixels).length >= size;
+		}
+	}
+
+	private Object createPixels() {
+		final int size = getWidth() * getHeight();
+		switch (bytesPerPixel) {
+			case 1:
+				return new byte[size];
+			case 2:
+				return new short[size];
+			default:
+				return new float[size];
+		}
+	}
+
+	/**
+	 * Replaces each pixel by its difference to the pixel on its left, or above
+	 * at the start of a row, and stores byte k of the differences in byte plane
+	 * k. Then deflates the byte planes. 16 and 32-bit differences are stored
+	 * zigzag encoded (see {@link #zigzag(int)}).
+	 */
+	byte[] compress(final Object pixels) {
+		final int width = getWidth();
+		final int size = width * getHeight();
+		final byte[] residuals = new byte[planeBytes];
+		if (pixels instanceof byte[]) {
+			final byte[] p = (byte[]) pixels;
+			for (int i = 0; i < size; i++) {
+				residuals[i] = (byte) (p[i] - predict(p, i, width));
+			}
+		}
+		else if (pixels instanceof short[]) {
+			final short[] p = (short[]) pixels;
+			for (int i = 0; i < size; i++) {
+				final int r =
+					zigzag((short) (p[i] - (i % width != 0 ? p[i - 1] : i >= width
+						? p[i - width] : 0)));
+				residuals[i] = (byte) r;
+				residuals[size + i] = (byte) (r >> 8);
+			}
+		}
+		else {
+			final float[] p = (float[]) pixels;
+			int above = 0;
+			int left = 0;
+			for (int i = 0; i < size; i++) {
+				final int bits = Float.floatToRawIntBits(p[i]);
+				if (i % width == 0) {
+					left = i >= width ? above : 0;
+					above = bits;
+				}
+				final int r = zigzag(bits - left);
+				left = bits;
+				residuals[i] = (byte) r;
+				residuals[size + i] = (byte) (r >> 8);
+				residuals[2 * size + i] = (byte) (r >> 16);
+				residuals[3 * size + i] = (byte) (r >> 24);
+			}
+		}
+
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(residuals);
+			deflater.finish();
+			byte[] data = new byte[Math.max(64, planeBytes / 8)];
+			int length = 0;
+			while (!deflater.finished()) {
+				if (length == data.length) data = Arrays.copyOf(data, 2 * length);
+				length += deflater.deflate(data, length, data.length - length);
+			}
+			return Arrays.copyOf(data, length);
+		}
+		finally {
+			deflater.end();
+		}
+	}
+
+	/** Inverts {@link #compress(Object)}. */
+	Object decompress(final byte[] data) {
+		final byte[] residuals = new byte[planeBytes];
+		final Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data);
+			int length = 0;
+			while (length < planeBytes && !inflater.finished()) {
+				final int n =
+					inflater.inflate(residuals, length, planeBytes - length);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				length += n;
+			}
+		}
+		catch (final DataFormatException e) {
+			throw new IllegalStateException(e);
+		}
+		finally {
+			inflater.end();
+		}
+
+		final int width = getWidth();
+		final int size = width * getHeight();
+		switch (bytesPerPixel) {
+			case 1: {
+				final byte[] p = new byte[size];
+				for (int i = 0; i < size; i++) {
+					p[i] = (byte) (residuals[i] + predict(p, i, width));
+				}
+				return p;
+			}
+			case 2: {
+				final short[] p = new short[size];
+				for (int i = 0; i < size; i++) {
+					final int r =
+						unzigzag((residuals[i] & 0xff) |
+							(residuals[size + i] & 0xff) << 8);
+					p[i] =
+						(short) (r + (i % width != 0 ? p[i - 1] : i >= width ? p[i -
+							width] : 0));
+				}
+				return p;
+			}
+			default: {
+				final float[] p = new float[size];
+				int left = 0;
+				for (int i = 0; i < size; i++) {
+					if (i % width == 0) {
+						left = i >= width ? Float.floatToRawIntBits(p[i - width]) : 0;
+					}
+					final int r =
+						(residuals[i] & 0xff) | (residuals[size + i] & 0xff) << 8 |
+							(residuals[2 * size + i] & 0xff) << 16 |
+							residuals[3 * size + i] << 24;
+					left += unzigzag(r);
+					p[i] = Float.intBitsToFloat(left);
+				}
+				return p;
+			}
+		}
+	}
+
+	/**
+	 * Maps differences of small magnitude to small positive numbers (0, -1, 1,
+	 * -2, ... to 0, 1, 2, 3, ...), so that their high bytes are zero.
+	 */
+	private static int zigzag(final int r) {
+		return (r << 1) ^ (r >> 31);
+	}
+
+	private static int unzigzag(final int z) {
+		return (z >>> 1) ^ -(z & 1);
+	}
+
+	private static int predict(final byte[] p, final int i, final int width) {
+		return i % width != 0 ? p[i - 1] : i >= width ? p[i - width] : 0;
+	}
+
+	/** Splits the planes in halves and compresses them into the copy. */
+	private static class CompressTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ImageStack stack;
+		private final I5DCompressedStack copy;
+		private final int from, to;
+
+		CompressTask(final ImageStack stack, final I5DCompressedStack copy,
+			final int from, final int to)
+		{
+			this.stack = stack;
+			this.copy = copy;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				final int mid = (from + to) >>> 1;
+				invokeAll(new CompressTask(stack, copy, from, mid), new CompressTask(
+					stack, copy, mid, to));
+				return;
+			}
+			final byte[] data = copy.compress(stack.getPixels(from));
+			synchronized (copy) {
+				copy.planes[from - 1] = data;
+				copy.versions[from - 1]++;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,203 @@
+//
+// I5DDirectStack.java
+//
+
+/*
+Image5D plugins for 5-dimensional image stacks in ImageJ.
+
+Copyright (c) 2010, Joachim Walter and ImageJDev.org.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package sc.fiji.i5d;
+
+import java.awt.image.ColorModel;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * This class keeps the planes of a stack in direct (off-heap) memory, in a few
+ * large contiguous buffers instead of one Java array per plane. Large
+ * hyperstacks then consist of a handful of objects for the garbage collector,
+ * and the heap is not fragmented by them.
+ * <p>
+ * {@link #getPlaneBuffer} hands out a view of a plane without copying.
+ * {@link #getPixels(int)} copies a plane into a new array, as ImageJ
+ * processors need one, and {@link #setPixels(Object, int)} copies an array
+ * back into the buffer. Changes to the arrays are not seen by the stack until
+ * they are set again. The size of direct memory is limited by the JVM option
+ * <code>-XX:MaxDirectMemorySize</code>, which defaults to the maximum heap
+ * size.
+ */
+public class I5DDirectStack extends I5DPlaneStack {
+
+	// Upper limit for the size of one buffer.
+	static final long MAX_CHUNK_SIZE = Integer.MAX_VALUE;
+
+	int bytesPerPixel;
+	int planeBytes;
+	int nSlices;
+	int planesPerChunk;
+	String[] labels;
+
+	ByteBuffer[] chunks;
+
+	/**
+	 * Creates a stack of nSlices planes of the given bit depth (8, 16 or 32),
+	 * filled with zeros.
+	 * 
+	 * @throws IllegalArgumentException if the bit depth is not supported.
+	 * @throws OutOfMemoryError if there is not enough direct memory.
+	 */
+	public I5DDirectStack(final int width, final int height,
+		final ColorModel cm, final int bitDepth, final int nSlices)
+	{
+		super(width, height, cm);
+		if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32) {
+			throw new IllegalArgumentException("Unsupported bit depth: " +
+				bitDepth);
+		}
+		bytesPerPixel = bitDepth / 8;
+		planeBytes = width * height * bytesPerPixel;
+		this.nSlices = nSlices;
+		labels = new String[nSlices];
+
+		// Group the planes into buffers of at most MAX_CHUNK_SIZE bytes.
+		planesPerChunk = (int) Math.max(1, MAX_CHUNK_SIZE / planeBytes);
+		chunks = new ByteBuffer[(nSlices + planesPerChunk - 1) / planesPerChunk];
+		for (int i = 0; i < chunks.length; ++i) {
+			final int nPlanes = Math.min(planesPerChunk, nSlices - i * planesPerChunk);
+			chunks[i] =
+				ByteBuffer.allocateDirect(nPlanes * planeBytes).order(
+					ByteOrder.nativeOrder());
+		}
+	}
+
+	/** Returns the number of bytes of direct memory used by the planes. */
+	public long getSizeInBytes() {
+		return (long) planeBytes * nSlices;
+	}
+
+	/**
+	 * Returns a view of the specified plane without copying, where
+	 * {@code 1<=n<=nslices}. The view is a ByteBuffer for 8-bit, a ShortBuffer
+	 * for 16-bit and a FloatBuffer for 32-bit data. Writing to the view changes
+	 * the plane.
+	 */
+	public Buffer getPlaneBuffer(final int n) {
+		if (n < 1 || n > nSlices) throw new IllegalArgumentException(
+			Image5D.outOfRange + n);
+		final ByteBuffer chunk = chunks[(n - 1) / planesPerChunk].duplicate();
+		final int offset = ((n - 1) % planesPerChunk) * planeBytes;
+		chunk.position(offset);
+		chunk.limit(offset + planeBytes);
+		final ByteBuffer plane = chunk.slice().order(ByteOrder.nativeOrder());
+		switch (bytesPerPixel) {
+			case 1:
+				return plane;
+			case 2:
+				return plane.asShortBuffer();
+			default:
+				return plane.asFloatBuffer();
+		}
+	}
+
+	/**
+	 * Returns a copy of the pixels of the specified slice, where
+	 * {@code 1<=n<=nslices}.
+	 */
+	@Override
+	public Object getPixels(final int n) {
+		final Buffer buffer = getPlaneBuffer(n);
+		final int size = getWidth() * getHeight();
+		if (buffer instanceof ByteBuffer) {
+			final byte[] pixels = new byte[size];
+			((ByteBuffer) buffer).get(pixels);
+			return pixels;
+		}
+		else if (buffer instanceof ShortBuffer) {
+			final short[] pixels = new short[size];
+			((ShortBuffer) buffer).get(pixels);
+			return pixels;
+		}
+		else {
+			final float[] pixels = new float[size];
+			((FloatBuffer) buffer).get(pixels);
+			return pixels;
+		}
+	}
+
+	/**
+	 * Copies the pixels into the specified slice, where {@code 1<=n<=nslices}.
+	 * Does nothing if the array does not match the type of the stack.
+	 */
+	@Override
+	public void setPixels(final Object pixels, final int n) {
+		final Buffer buffer = getPlaneBuffer(n);
+		final int size = getWidth() * getHeight();
+		if (buffer instanceof ByteBuffer && pixels instanceof byte[] &&
+			((byte[]) pixels).length >= size)
+		{
+			((ByteBuffer) buffer).put((byte[]) pixels, 0, size);
+		}
+		else if (buffer instanceof ShortBuffer && pixels instanceof short[] &&
+			((short[]) pixels).length >= size)
+		{
+			((ShortBuffer) buffer).put((short[]) pixels, 0, size);
+		}
+		else if (buffer instanceof FloatBuffer && pixels instanceof float[] &&
+			((float[]) pixels).length >= size)
+		{
+			((FloatBuffer) buffer).put((float[]) pixels, 0, size);
+		}
+	}
+
+	@Override
+	public int getSize() {
+		return nSlices;
+	}
+
+	@Override
+	public String getSliceLabel(final int n) {
+		if (n < 1 || n > nSlices) throw new IllegalArgumentException(
+			Image5D.outOfRange + n);
+		return labels[n - 1];
+	}
+
+	@Override
+	public void setSliceLabel(final String label, final int n) {
+		if (n < 1 || n > nSlices) throw new IllegalArgumentException(
+			Image5D.outOfRange + n);
+		labels[n - 1] = label;
+	}
+
+	@Override
+	public int getBitDepth() {
+		return 8 * bytesPerPixel;
+	}
+
+}
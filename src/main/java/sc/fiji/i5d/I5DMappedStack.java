@@ -0,0 +1,346 @@
+//
+// I5DMappedStack.java
+//
+
+/*
+Image5D plugins for 5-dimensional image stacks in ImageJ.
+
+Copyright (c) 2010, Joachim Walter and ImageJDev.org.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package sc.fiji.i5d;
+
+import ij.ImageStack;
+import ij.io.FileInfo;
+import ij.io.FileOpener;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * This class represents the planes of an uncompressed TIFF file, which is
+ * mapped into memory. Opening the stack reads no pixel data; the operating
+ * system pages in the planes when they are accessed. {@link #getPlaneBuffer}
+ * hands out a view of a plane without copying, {@link #getPixels(int)} copies
+ * a plane into a new array.
+ */
+public class I5DMappedStack extends ImageStack {
+
+	// Upper limit for the size of one mapped region.
+	static final long MAX_CHUNK_SIZE = Integer.MAX_VALUE;
+
+	String path;
+	int bytesPerPixel;
+	int planeBytes;
+	ByteOrder byteOrder;
+	int nSlices;
+	String[] labels;
+
+	ByteBuffer[] chunks;
+	int[] chunkIndex;
+	int[] chunkOffset;
+
+	/**
+	 * Maps the planes described by info, which are obtained from
+	 * {@link ij.io.TiffDecoder#getTiffInfo()}.
+	 * 
+	 * @throws IllegalArgumentException if {@link #canMap(FileInfo[])} is false.
+	 * @throws IOException if the file is shorter than the planes require.
+	 */
+	public I5DMappedStack(final FileInfo[] info) throws IOException {
+		super(info[0].width, info[0].height, new FileOpener(info[0])
+			.createColorModel(info[0]));
+		if (!canMap(info)) throw new IllegalArgumentException(
+			"Cannot map image data of " + info[0].fileName);
+
+		final FileInfo fi = info[0];
+		path = new File(fi.directory, fi.fileName).getPath();
+		bytesPerPixel = fi.getBytesPerPixel();
+		planeBytes = fi.width * fi.height * bytesPerPixel;
+		byteOrder =
+			fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+
+		final long[] offsets = getPlaneOffsets(info);
+		nSlices = offsets.length;
+		labels = new String[nSlices];
+		if (fi.sliceLabels != null) {
+			System.arraycopy(fi.sliceLabels, 0, labels, 0, Math.min(nSlices,
+				fi.sliceLabels.length));
+		}
+
+		// Group the planes into regions of at most MAX_CHUNK_SIZE bytes.
+		chunkIndex = new int[nSlices];
+		chunkOffset = new int[nSlices];
+		final ArrayList<long[]> regions = new ArrayList<long[]>();
+		long[] region = null;
+		for (int i = 0; i < nSlices; ++i) {
+			final long end = offsets[i] + planeBytes;
+			if (region == null || offsets[i] < region[0] ||
+				end - region[0] > MAX_CHUNK_SIZE)
+			{
+				region = new long[] { offsets[i], end };
+				regions.add(region);
+			}
+			region[1] = Math.max(region[1], end);
+			chunkIndex[i] = regions.size() - 1;
+			chunkOffset[i] = (int) (offsets[i] - region[0]);
+		}
+
+		// Mappings stay valid after the channel is closed.
+		final RandomAccessFile raf = new RandomAccessFile(path, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final long fileSize = channel.size();
+			chunks = new ByteBuffer[regions.size()];
+			for (int i = 0; i < chunks.length; ++i) {
+				final long[] r = regions.get(i);
+				if (r[1] > fileSize) throw new IOException("File is truncated: " +
+					path);
+				chunks[i] =
+					channel.map(FileChannel.MapMode.READ_ONLY, r[0], r[1] - r[0]);
+			}
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Returns true if the planes described by info are uncompressed, stored
+	 * contiguously and of a type that can be mapped (8 bit, unsigned 16 bit or
+	 * 32 bit float).
+	 */
+	public static boolean canMap(final FileInfo[] info) {
+		if (info == null || info.length == 0) return false;
+		final FileInfo fi0 = info[0];
+		for (final FileInfo fi : info) {
+			switch (fi.fileType) {
+				case FileInfo.GRAY8:
+				case FileInfo.COLOR8:
+					break;
+				case FileInfo.GRAY16_UNSIGNED:
+				case FileInfo.GRAY32_FLOAT:
+					if (fi.whiteIsZero) return false;
+					break;
+				default:
+					return false;
+			}
+			if (fi.compression > FileInfo.COMPRESSION_NONE) return false;
+			if (fi.fileType != fi0.fileType || fi.width != fi0.width ||
+				fi.height != fi0.height || fi.intelByteOrder != fi0.intelByteOrder)
+			{
+				return false;
+			}
+			if (fi.stripOffsets != null && fi.stripLengths != null) {
+				for (int s = 1; s < fi.stripOffsets.length &&
+					s < fi.stripLengths.length; ++s)
+				{
+					if ((fi.stripOffsets[s] & 0xffffffffL) != (fi.stripOffsets[s - 1] &
+						0xffffffffL) + (fi.stripLengths[s - 1] & 0xffffffffL)) return false;
+				}
+			}
+		}
+		return fi0.directory != null && fi0.fileName != null;
+	}
+
+	/** Returns the number of bytes of the planes described by info. */
+	public static long getSizeInBytes(final FileInfo[] info) {
+		final FileInfo fi = info[0];
+		final int nPlanes = info.length > 1 ? info.length : Math.max(1, fi.nImages);
+		return (long) fi.width * fi.height * fi.getBytesPerPixel() * nPlanes;
+	}
+
+	static long[] getPlaneOffsets(final FileInfo[] info) {
+		final long[] offsets;
+		if (info.length > 1) {
+			offsets = new long[info.length];
+			for (int i = 0; i < info.length; ++i) {
+				offsets[i] = info[i].getOffset();
+			}
+		}
+		else {
+			// ImageJ stack: one IFD, planes separated by a constant gap.
+			final FileInfo fi = info[0];
+			final long step =
+				(long) fi.width * fi.height * fi.getBytesPerPixel() +
+					fi.gapBetweenImages;
+			offsets = new long[Math.max(1, fi.nImages)];
+			for (int i = 0; i < offsets.length; ++i) {
+				offsets[i] = fi.getOffset() + i * step;
+			}
+		}
+		return offsets;
+	}
+
+	/**
+	 * Returns a read-only view of the specified plane without copying, where
+	 * {@code 1<=n<=nslices}. The view is a ByteBuffer for 8-bit, a ShortBuffer
+	 * for 16-bit and a FloatBuffer for 32-bit data.
+	 */
+	public Buffer getPlaneBuffer(final int n) {
+		if (n < 1 || n > nSlices) throw new IllegalArgumentException(
+			Image5D.outOfRange + n);
+		final ByteBuffer chunk = chunks[chunkIndex[n - 1]].duplicate();
+		chunk.position(chunkOffset[n - 1]);
+		chunk.limit(chunkOffset[n - 1] + planeBytes);
+		final ByteBuffer plane = chunk.slice().order(byteOrder);
+		switch (bytesPerPixel) {
+			case 1:
+				return plane;
+			case 2:
+				return plane.asShortBuffer();
+			default:
+				return plane.asFloatBuffer();
+		}
+	}
+
+	/** Returns the path of the mapped file. */
+	public String getPath() {
+		return path;
+	}
+
+	/** Does nothing. */
+	@Override
+	public void addSlice(final String sliceLabel, final Object pixels) {}
+
+	/** Does nothing. */
+	@Override
+	public void addSlice(final String sliceLabel, final ImageProcessor ip) {}
+
+	/** Does nothing. */
+	@Override
+	public void addSlice(final String sliceLabel, final ImageProcessor ip,
+		final int n)
+	{}
+
+	/** Does nothing. */
+	@Override
+	public void deleteSlice(final int n) {}
+
+	/** Does nothing. */
+	@Override
+	public void deleteLastSlice() {}
+
+	/**
+	 * Returns a copy of the pixels of the specified slice, where
+	 * {@code 1<=n<=nslices}.
+	 */
+	@Override
+	public Object getPixels(final int n) {
+		final Buffer buffer = getPlaneBuffer(n);
+		final int size = getWidth() * getHeight();
+		if (buffer instanceof ByteBuffer) {
+			final byte[] pixels = new byte[size];
+			((ByteBuffer) buffer).get(pixels);
+			return pixels;
+		}
+		else if (buffer instanceof ShortBuffer) {
+			final short[] pixels = new short[size];
+			((ShortBuffer) buffer).get(pixels);
+			return pixels;
+		}
+		else {
+			final float[] pixels = new float[size];
+			((FloatBuffer) buffer).get(pixels);
+			return pixels;
+		}
+	}
+
+	/** Does nothing. The mapping is read-only. */
+	@Override
+	public void setPixels(final Object pixels, final int n) {}
+
+	/**
+	 * Returns an ImageProcessor for the specified slice, where
+	 * {@code 1<=n<=nslices}.
+	 */
+	@Override
+	public ImageProcessor getProcessor(final int n) {
+		final Object pixels = getPixels(n);
+		switch (bytesPerPixel) {
+			case 1:
+				return new ByteProcessor(getWidth(), getHeight(), (byte[]) pixels,
+					getColorModel());
+			case 2:
+				return new ShortProcessor(getWidth(), getHeight(), (short[]) pixels,
+					getColorModel());
+			default:
+				return new FloatProcessor(getWidth(), getHeight(), (float[]) pixels,
+					getColorModel());
+		}
+	}
+
+	@Override
+	public int getSize() {
+		return nSlices;
+	}
+
+	@Override
+	public String getSliceLabel(final int n) {
+		if (n < 1 || n > nSlices) throw new IllegalArgumentException(
+			Image5D.outOfRange + n);
+		return labels[n - 1];
+	}
+
+	@Override
+	public void setSliceLabel(final String label, final int n) {
+		if (n < 1 || n > nSlices) throw new IllegalArgumentException(
+			Image5D.outOfRange + n);
+		labels[n - 1] = label;
+	}
+
+	@Override
+	public int getBitDepth() {
+		return 8 * bytesPerPixel;
+	}
+
+	/** Returns null. */
+	@Override
+	public Object[] getImageArray() {
+		return null;
+	}
+
+	/** Always return true. */
+	@Override
+	public boolean isVirtual() {
+		return true;
+	}
+
+	/** Does nothing. */
+	@Override
+	public void trim() {}
+
+}
@@ -0,0 +1,124 @@
+//
+// I5DPlaneStack.java
+//
+
+/*
+Image5D plugins for 5-dimensional image stacks in ImageJ.
+
+Copyright (c) 2010, Joachim Walter and ImageJDev.org.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package sc.fiji.i5d;
+
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.image.ColorModel;
+
+/**
+ * Base class of the stacks that keep their planes in some other form than one
+ * array per plane (off-heap, compressed, chunked, or in another Image5D).
+ * {@link #getPixels(int)} hands out an array that has to be set again with
+ * {@link #setPixels(Object, int)} for changes to be seen by the stack. The
+ * number of planes is fixed when the stack is created: adding and deleting
+ * slices does nothing.
+ */
+abstract class I5DPlaneStack extends ImageStack {
+
+	I5DPlaneStack(final int width, final int height, final ColorModel cm) {
+		super(width, height, cm);
+	}
+
+	/** Does nothing. */
+	@Override
+	public void addSlice(final String sliceLabel, final Object pixels) {}
+
+	/** Does nothing. */
+	@Override
+	public void addSlice(final String sliceLabel, final ImageProcessor ip) {}
+
+	/** Does nothing. */
+	@Override
+	public void addSlice(final String sliceLabel, final ImageProcessor ip,
+		final int n)
+	{}
+
+	/** Does nothing. */
+	@Override
+	public void deleteSlice(final int n) {}
+
+	/** Does nothing. */
+	@Override
+	public void deleteLastSlice() {}
+
+	/**
+	 * Returns an ImageProcessor for the pixels returned by
+	 * {@link #getPixels(int)} for the specified slice, where
+	 * {@code 1<=n<=nslices}.
+	 */
+	@Override
+	public ImageProcessor getProcessor(final int n) {
+		final Object pixels = getPixels(n);
+		if (pixels instanceof byte[]) {
+			return new ByteProcessor(getWidth(), getHeight(), (byte[]) pixels,
+				getColorModel());
+		}
+		else if (pixels instanceof short[]) {
+			return new ShortProcessor(getWidth(), getHeight(), (short[]) pixels,
+				getColorModel());
+		}
+		else if (pixels instanceof float[]) {
+			return new FloatProcessor(getWidth(), getHeight(), (float[]) pixels,
+				getColorModel());
+		}
+		return null;
+	}
+
+	/** Returns null. */
+	@Override
+	public Object[] getImageArray() {
+		return null;
+	}
+
+	/**
+	 * Always returns true: like the planes of a virtual stack, the planes are
+	 * not held as arrays by this stack. Image5D therefore treats the stack as
+	 * fixed: {@link Image5D#setStack(String, ImageStack)},
+	 * {@link Image5D#expandDimension(int, int, boolean)} and
+	 * {@link Image5D#appendFrame(Object[])} don't work with it. Pixels can
+	 * still be set (see {@link Image5D#setPixels(Object, int, int, int)}).
+	 */
+	@Override
+	public boolean isVirtual() {
+		return true;
+	}
+
+	/** Does nothing. */
+	@Override
+	public void trim() {}
+
+}
@@ -0,0 +1,198 @@
+//
+// I5DStackView.java
+//
+
+/*
+Image5D plugins for 5-dimensional image stacks in ImageJ.
+
+Copyright (c) 2010, Joachim Walter and ImageJDev.org.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package sc.fiji.i5d;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.awt.image.ColorModel;
+
+/**
+ * A z-stack that shows the slices offset, offset+increment, ... of a backing
+ * stack, e.g. all slices of one channel and frame of the imageStack of an
+ * Image5D. The view can be pointed to another channel or frame by
+ * {@link #setView(ImageStack, int, int, int)} without creating a new stack.
+ * Pixels set in the view are set in the backing stack.
+ * <p>
+ * For stacks in memory, the references to the pixel arrays are also kept in
+ * the superclass, so that the final voxel access methods of ImageStack work.
+ * For virtual stacks, slices are only read when requested.
+ */
+public class I5DStackView extends ImageStack {
+
+	ImageStack backing;
+	int offset = 1;
+	int increment = 1;
+	int size;
+
+	/** Creates a new, empty view of the backing stack. */
+	public I5DStackView(final ImageStack backing, final ColorModel cm) {
+		super(backing.getWidth(), backing.getHeight(), cm);
+		this.backing = backing;
+	}
+
+	/**
+	 * Points the view to the slices offset, offset+increment, ...,
+	 * offset+(size-1)*increment of backing, where {@code 1<=offset}.
+	 */
+	public void setView(final ImageStack backing, final int offset,
+		final int increment, final int size)
+	{
+		if (backing.getWidth() != getWidth() || backing.getHeight() != getHeight())
+		{
+			throw new IllegalArgumentException("Stack dimensions don't match.");
+		}
+		if (offset < 1 || increment < 1 || size < 0 ||
+			offset + (size - 1) * increment > backing.getSize())
+		{
+			throw new IllegalArgumentException("View out of range.");
+		}
+		this.backing = backing;
+		this.offset = offset;
+		this.increment = increment;
+		this.size = size;
+
+		if (!backing.isVirtual()) {
+			while (super.getSize() > size)
+				super.deleteSlice(super.getSize());
+			for (int i = 1; i <= size; ++i) {
+				final Object pixels = backing.getPixels(getBackingIndex(i));
+				if (i > super.getSize()) super.addSlice(null, pixels);
+				else super.setPixels(pixels, i);
+			}
+		}
+	}
+
+	/** Returns the stack this is a view of. */
+	public ImageStack getBackingStack() {
+		return backing;
+	}
+
+	/** Returns the index in the backing stack of slice n of the view. */
+	public int getBackingIndex(final int n) {
+		if (n < 1 || n > size) throw new IllegalArgumentException(
+			Image5D.outOfRange + n);
+		return offset + (n - 1) * increment;
+	}
+
+	/** Does nothing. */
+	@Override
+	public void addSlice(final String sliceLabel, final Object pixels) {}
+
+	/** Does nothing. */
+	@Override
+	public void addSlice(final String sliceLabel, final ImageProcessor ip) {}
+
+	/** Does nothing. */
+	@Override
+	public void addSlice(final String sliceLabel, final ImageProcessor ip,
+		final int n)
+	{}
+
+	/** Does nothing. */
+	@Override
+	public void deleteSlice(final int n) {}
+
+	/** Does nothing. */
+	@Override
+	public void deleteLastSlice() {}
+
+	@Override
+	public Object getPixels(final int n) {
+		return backing.getPixels(getBackingIndex(n));
+	}
+
+	@Override
+	public void setPixels(final Object pixels, final int n) {
+		backing.setPixels(pixels, getBackingIndex(n));
+		if (!backing.isVirtual()) super.setPixels(pixels, n);
+	}
+
+	@Override
+	public ImageProcessor getProcessor(final int n) {
+		if (!backing.isVirtual()) return super.getProcessor(n);
+		final ImageProcessor ip = backing.getProcessor(getBackingIndex(n));
+		if (ip != null && getColorModel() != null) ip.setColorModel(getColorModel());
+		return ip;
+	}
+
+	@Override
+	public void setProcessor(final ImageProcessor ip, final int n) {
+		if (ip.getWidth() != getWidth() || ip.getHeight() != getHeight()) {
+			throw new IllegalArgumentException("Wrong dimensions for this stack");
+		}
+		setPixels(ip.getPixels(), n);
+	}
+
+	/** Returns null for views of virtual stacks. */
+	@Override
+	public Object[] getImageArray() {
+		if (backing.isVirtual()) return null;
+		return super.getImageArray();
+	}
+
+	@Override
+	public int getSize() {
+		return size;
+	}
+
+	@Override
+	public String getSliceLabel(final int n) {
+		return backing.getSliceLabel(getBackingIndex(n));
+	}
+
+	@Override
+	public void setSliceLabel(final String label, final int n) {
+		backing.setSliceLabel(label, getBackingIndex(n));
+	}
+
+	@Override
+	public int getBitDepth() {
+		if (!backing.isVirtual()) return super.getBitDepth();
+		final Object pixels = size > 0 ? getPixels(1) : null;
+		if (pixels instanceof byte[]) return 8;
+		if (pixels instanceof short[]) return 16;
+		if (pixels instanceof float[]) return 32;
+		if (pixels instanceof int[]) return 24;
+		return 0;
+	}
+
+	@Override
+	public boolean isVirtual() {
+		return backing.isVirtual();
+	}
+
+	/** Does nothing. */
+	@Override
+	public void trim() {}
+
+}
@@ -0,0 +1,253 @@
+//
+// I5DSubStack.java
+//
+
+/*
+Image5D plugins for 5-dimensional image stacks in ImageJ.
+
+Copyright (c) 2010, Joachim Walter and ImageJDev.org.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package sc.fiji.i5d;
+
+import java.awt.Rectangle;
+
+/**
+ * This class is a view of a subset of the channels, a range of slices and
+ * frames and, optionally, a rectangle of the planes of another Image5D, its
+ * parent. Nothing is copied when the view is created: planes are read from the
+ * parent when they are requested.
+ * <p>
+ * Without a crop rectangle, {@link #getPixels(int)} returns the arrays of the
+ * parent, so that changes of the view show in the parent. With a crop
+ * rectangle, it returns a copy of the rectangle, and
+ * {@link #setPixels(Object, int)} copies it back into the plane of the parent.
+ * The planes are numbered like the imageStack of an Image5D: channel first,
+ * then slice, then frame. The view becomes invalid when the dimensions of the
+ * parent change.
+ */
+public class I5DSubStack extends I5DPlaneStack {
+
+	Image5D parent;
+	// Channels of the parent shown in the view (1-based), first slice and frame
+	// of the parent in the view, and the crop rectangle (null for whole planes).
+	int[] channels;
+	int firstSlice, nSlices;
+	int firstFrame, nFrames;
+	Rectangle crop;
+	// Dimensions of the parent when the view was created.
+	int[] parentDimensions;
+
+	/**
+	 * Creates a view of the given channels, nSlices slices from firstSlice and
+	 * nFrames frames from firstFrame (all 1-based) of parent. crop is the
+	 * rectangle of the planes in the view, null for whole planes.
+	 * 
+	 * @throws IllegalArgumentException if the subset is empty or out of range.
+	 */
+	public I5DSubStack(final Image5D parent, final int[] channels,
+		final int firstSlice, final int nSlices, final int firstFrame,
+		final int nFrames, final Rectangle crop)
+	{
+		super(crop == null ? parent.getWidth() : crop.width, crop == null ? parent
+			.getHeight() : crop.height, parent.imageStack.getColorModel());
+		if (channels == null || channels.length == 0 || nSlices < 1 ||
+			nFrames < 1 || firstSlice < 1 || firstFrame < 1 ||
+			firstSlice + nSlices - 1 > parent.getNSlices() ||
+			firstFrame + nFrames - 1 > parent.getNFrames())
+		{
+			throw new IllegalArgumentException("Subset out of range.");
+		}
+		for (final int c : channels) {
+			if (c < 1 || c > parent.getNChannels()) throw new IllegalArgumentException(
+				Image5D.outOfRange + "channel " + c);
+		}
+		if (crop != null &&
+			(crop.width < 1 || crop.height < 1 || crop.x < 0 || crop.y < 0 ||
+				crop.x + crop.width > parent.getWidth() || crop.y + crop.height > parent
+				.getHeight()))
+		{
+			throw new IllegalArgumentException("Crop rectangle out of range.");
+		}
+		this.parent = parent;
+		this.channels = channels.clone();
+		this.firstSlice = firstSlice;
+		this.nSlices = nSlices;
+		this.firstFrame = firstFrame;
+		this.nFrames = nFrames;
+		// Whole planes need no cropping.
+		if (crop != null && crop.width == parent.getWidth() &&
+			crop.height == parent.getHeight())
+		{
+			this.crop = null;
+		}
+		else {
+			this.crop = crop == null ? null : new Rectangle(crop);
+		}
+		parentDimensions = parent.getDimensions();
+	}
+
+	/** Returns the Image5D this is a view of. */
+	public Image5D getParent() {
+		return parent;
+	}
+
+	/** Returns the channels of the parent in the view. */
+	public int[] getChannels() {
+		return channels.clone();
+	}
+
+	/** Returns the crop rectangle in the parent, null for whole planes. */
+	public Rectangle getCrop() {
+		return crop == null ? null : new Rectangle(crop);
+	}
+
+	/**
+	 * Returns the voxels of a region of one channel of the view (0-based
+	 * channel, slice and frame), read from the corresponding region of the
+	 * parent. See {@link Image5D#getRegion}.
+	 */
+	public Object getRegion(final int channel, final int x, final int y,
+		final int z, final int t, final int width, final int height,
+		final int depth, final int duration)
+	{
+		checkParent();
+		return parent.getRegion(channels[channel], getX() + x, getY() + y,
+			firstSlice + z, firstFrame + t, width, height, depth, duration);
+	}
+
+	/**
+	 * Returns the pixels of the specified slice, where {@code 1<=n<=nslices}:
+	 * the array of the parent for whole planes, a copy of the crop rectangle
+	 * otherwise.
+	 */
+	@Override
+	public Object getPixels(final int n) {
+		final int index = getParentIndex(n);
+		final Object pixels = parent.imageStack.getPixels(index);
+		if (crop == null) {
+			// Arrays that the parent shares between planes are copied, and
+			// assigned back by setPixels().
+			return parent.isSharedPlane(pixels) ? parent.getExportedPixels(index)
+				: pixels;
+		}
+		final Object cropped = createPixels(pixels);
+		final int parentWidth = parent.getWidth();
+		for (int row = 0; row < crop.height; row++) {
+			System.arraycopy(pixels, (crop.y + row) * parentWidth + crop.x,
+				cropped, row * crop.width, crop.width);
+		}
+		return cropped;
+	}
+
+	/**
+	 * Assigns the pixels to the specified slice of the parent, where
+	 * {@code 1<=n<=nslices}. With a crop rectangle, the pixels are copied into
+	 * the rectangle.
+	 */
+	@Override
+	public void setPixels(final Object pixels, final int n) {
+		getParentIndex(n);
+		if (pixels == null) return;
+		final int c = getParentChannel(n);
+		final int z = getParentSlice(n);
+		final int t = getParentFrame(n);
+		if (crop == null) {
+			parent.setPixels(pixels, c, z, t);
+			return;
+		}
+		final Object plane = parent.getWritablePixels(c, z, t);
+		if (plane.getClass() != pixels.getClass()) return;
+		final int parentWidth = parent.getWidth();
+		for (int row = 0; row < crop.height; row++) {
+			System.arraycopy(pixels, row * crop.width, plane, (crop.y + row) *
+				parentWidth + crop.x, crop.width);
+		}
+		parent.setPixels(plane, c, z, t);
+	}
+
+	@Override
+	public int getSize() {
+		return channels.length * nSlices * nFrames;
+	}
+
+	@Override
+	public String getSliceLabel(final int n) {
+		return parent.imageStack.getSliceLabel(getParentIndex(n));
+	}
+
+	/** Does nothing: the labels are those of the parent. */
+	@Override
+	public void setSliceLabel(final String label, final int n) {}
+
+	@Override
+	public int getBitDepth() {
+		return parent.getBitDepth();
+	}
+
+	/** Returns the index in the imageStack of the parent of slice n. */
+	public int getParentIndex(final int n) {
+		if (n < 1 || n > getSize()) throw new IllegalArgumentException(
+			Image5D.outOfRange + n);
+		checkParent();
+		return parent.getImageStackIndex(getParentChannel(n), getParentSlice(n),
+			getParentFrame(n));
+	}
+
+	private int getParentChannel(final int n) {
+		return channels[(n - 1) % channels.length];
+	}
+
+	private int getParentSlice(final int n) {
+		return firstSlice + (n - 1) / channels.length % nSlices;
+	}
+
+	private int getParentFrame(final int n) {
+		return firstFrame + (n - 1) / (channels.length * nSlices);
+	}
+
+	private int getX() {
+		return crop == null ? 0 : crop.x;
+	}
+
+	private int getY() {
+		return crop == null ? 0 : crop.y;
+	}
+
+	private void checkParent() {
+		final int[] dimensions = parent.getDimensions();
+		for (int i = 0; i < dimensions.length; i++) {
+			if (dimensions[i] != parentDimensions[i]) throw new IllegalStateException(
+				"The dimensions of the parent Image5D have changed.");
+		}
+	}
+
+	private Object createPixels(final Object pixels) {
+		final int size = getWidth() * getHeight();
+		if (pixels instanceof byte[]) return new byte[size];
+		if (pixels instanceof short[]) return new short[size];
+		return new float[size];
+	}
+
+}
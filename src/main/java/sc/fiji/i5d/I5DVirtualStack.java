@@ -34,12 +34,21 @@ package sc.fiji.i5d;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.io.Opener;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 
 import java.awt.image.ColorModel;
+import java.io.File;
+import java.util.concurrent.Callable;
 
 /**
- * This class represents an array of disk-resident images.
+ * This class represents an array of disk-resident images. Decoded slices are
+ * kept in a {@link SliceCache}, which can be shared between stacks that read
+ * from the same files. The cached arrays are never handed out: each access
+ * gets a copy, so that changes of the pixels don't leak into the cache.
  */
 public class I5DVirtualStack extends ImageStack {
 
@@ -47,13 +56,25 @@ public class I5DVirtualStack extends ImageStack {
 	String path;
 	int nSlices;
 	String[] names;
+	SliceCache cache;
 
 	/** Creates a new, empty virtual stack. */
 	public I5DVirtualStack(final int width, final int height,
 		final ColorModel cm, final String path)
+	{
+		this(width, height, cm, path, new SliceCache());
+	}
+
+	/**
+	 * Creates a new, empty virtual stack that keeps its decoded slices in the
+	 * given cache.
+	 */
+	public I5DVirtualStack(final int width, final int height,
+		final ColorModel cm, final String path, final SliceCache cache)
 	{
 		super(width, height, cm);
 		this.path = path;
+		this.cache = cache;
 		names = new String[INITIAL_SIZE];
 		// IJ.log("VirtualStack: "+path);
 	}
@@ -104,14 +125,17 @@ public class I5DVirtualStack extends ImageStack {
 	}
 
 	/**
-	 * Returns the pixel array for the specified slice, where {@code
+	 * Returns a copy of the pixel array for the specified slice, where {@code
 	 * 1<=n<=nslices}.
 	 */
 	@Override
 	public Object getPixels(final int n) {
-		final ImageProcessor ip = getProcessor(n);
-		if (ip != null) return ip.getPixels();
-		return null;
+		final Object pixels = cache.get(getKey(n), getLoader(n));
+		if (pixels instanceof byte[]) return ((byte[]) pixels).clone();
+		if (pixels instanceof short[]) return ((short[]) pixels).clone();
+		if (pixels instanceof float[]) return ((float[]) pixels).clone();
+		if (pixels instanceof int[]) return ((int[]) pixels).clone();
+		return pixels;
 	}
 
 	/**
@@ -121,18 +145,68 @@ public class I5DVirtualStack extends ImageStack {
 	public void setPixels(final Object pixels, final int n) {}
 
 	/**
-	 * Returns an ImageProcessor for the specified slice, where
+	 * Returns an ImageProcessor for a copy of the specified slice, where
 	 * {@code 1<=n<=nslices}. Returns null if the stack is empty.
 	 */
 	@Override
 	public ImageProcessor getProcessor(final int n) {
 		// IJ.log("getProcessor: "+n+"  "+names[n-1]);
-		final ImagePlus imp = new Opener().openImage(path, names[n - 1]);
-		if (imp != null && this.getColorModel() != null) {
-			imp.getProcessor().setColorModel(this.getColorModel());
+		final Object pixels = getPixels(n);
+		if (pixels == null || getColorModel() == null) return null;
+		final int width = getWidth();
+		final int height = getHeight();
+		if (pixels instanceof byte[]) {
+			return new ByteProcessor(width, height, (byte[]) pixels,
+				getColorModel());
+		}
+		else if (pixels instanceof short[]) {
+			return new ShortProcessor(width, height, (short[]) pixels,
+				getColorModel());
+		}
+		else if (pixels instanceof float[]) {
+			return new FloatProcessor(width, height, (float[]) pixels,
+				getColorModel());
 		}
-		else return null;
-		return imp.getProcessor();
+		else if (pixels instanceof int[]) {
+			return new ColorProcessor(width, height, (int[]) pixels);
+		}
+		return null;
+	}
+
+	/**
+	 * Starts reading the specified slice in the background, so that a later call
+	 * to {@link #getPixels(int)} finds it in the cache.
+	 */
+	public void prefetch(final int n) {
+		if (n < 1 || n > nSlices) return;
+		cache.prefetch(getKey(n), getLoader(n));
+	}
+
+	/** Returns the cache that holds the decoded slices of this stack. */
+	public SliceCache getSliceCache() {
+		return cache;
+	}
+
+	private String getKey(final int n) {
+		return path + File.separator + names[n - 1];
+	}
+
+	private Callable<Object> getLoader(final int n) {
+		final String name = names[n - 1];
+		return new Callable<Object>() {
+
+			@Override
+			public Object call() {
+				final ImagePlus imp = new Opener().openImage(path, name);
+				if (imp == null) return null;
+				final ImageProcessor ip = imp.getProcessor();
+				// Slices of a different size can't be shown in this stack.
+				if (ip.getWidth() != getWidth() || ip.getHeight() != getHeight()) {
+					return null;
+				}
+				return ip.getPixels();
+			}
+		};
 	}
 
 	/** Returns the directory of the stack. */
@@ -37,6 +37,7 @@ import ij.ImagePlus;
 import ij.ImageStack;
 import ij.Prefs;
 import ij.WindowManager;
+import ij.gui.ImageCanvas;
 import ij.gui.ImageWindow;
 import ij.gui.Roi;
 import ij.io.FileInfo;
@@ -61,8 +62,13 @@ import java.awt.image.ColorModel;
 import java.awt.image.DirectColorModel;
 import java.awt.image.IndexColorModel;
 import java.awt.image.MemoryImageSource;
-import java.awt.image.PixelGrabber;
 import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
 
 /*
  * Created on 26.03.2005
@@ -123,7 +129,14 @@ public class Image5D extends ImagePlus {
 	protected ImageStack imageStack;
 	protected int imageStackSize;
 
+	// stackView: the z-stack of the current channel and frame, a view into
+	// imageStack. Set as ImagePlus stack on the first change of channel or frame.
+	private I5DStackView stackView;
+
 	private Object dummyImage;
+	// Shared by all empty planes of imageStack. Never changed: processors get a
+	// copy (see unsharePlanes()).
+	private Object zeroPlane;
 
 	// current position in dimension from 0 to dimensionSize-1
 	// (e.g. currentSlice = currentPosition[2]+1)
@@ -149,7 +162,34 @@ public class Image5D extends ImagePlus {
 	MemoryImageSource imageSource;
 	ColorModel imageColorModel;
 	Image awtImage;
-	int[][] awtChannelPixels;
+	ChannelCompositor compositor;
+	// Composites the overlay in the background while a window is shown.
+	FrameProducer frameProducer;
+	boolean backgroundCompositing = true;
+	// Floating ROI of a paste in progress and its bounds at the last update.
+	// Only this region of the current channel changes while it is dragged.
+	Roi pasteRoi;
+	Rectangle pasteBounds;
+	// Downsampled planes and the reduced display image for zoomed-out views.
+	PyramidCache pyramid;
+	int reducedLevel;
+	Image reducedImage;
+	int[] reducedPixels;
+	MemoryImageSource reducedSource;
+	ChannelCompositor reducedCompositor;
+	// Renders the images of the channel canvasses in TILED mode.
+	volatile TileRenderer tileRenderer;
+	// Minimum, maximum and histogram of each plane of imageStack.
+	PlaneStatistics statistics;
+	// Maximum number of frames kept by appendFrame(), 0 for no limit.
+	private int maxFrames;
+	// Frame of imageStack that holds frame 1, after appendFrame() has replaced
+	// the oldest frames in place. See getImageStackFrame().
+	private volatile int ringHead;
+	// Pixel arrays of imageStack that are shared with a duplicate of this image
+	// or the image it was duplicated from. Only weakly referenced: arrays have
+	// identity equality.
+	private Set<Object> sharedPixels;
 
 	// ChannelControl.ONE_CHANNEL_GRAY, ONE_CHANNEL_COLOR, OVERLAY, or TILED
 	protected int displayMode;
@@ -171,6 +211,14 @@ public class Image5D extends ImagePlus {
 
 	static final String outOfRange = "Argument out of range: ";
 
+	// Number of z or t positions read ahead from a virtual stack.
+	static final int PREFETCH_DEPTH = 2;
+	// Direction of the last read-ahead.
+	private int prefetchZStep, prefetchTStep;
+
+	/** Percentage of saturated pixels for automatic display ranges. */
+	public static final double AUTO_CONTRAST_SATURATED = 0.35;
+
 	/**
 	 * @param title
 	 * @param type
@@ -436,10 +484,19 @@ public class Image5D extends ImagePlus {
 	}
 
 	/**
-	 * Causes the AWT image returned by getImage() to be fully recalculated.
+	 * Causes the AWT image returned by getImage() to be fully recalculated. In
+	 * OVERLAY and TILED mode all channels are mapped again, so call this after
+	 * changing the pixels of channels other than the current one in place.
 	 */
 	public void updateImageAndDraw() {
 		img = null;
+		invalidateOverlay(0, null);
+		if (pyramid != null) pyramid.clear();
+		writeBack(0);
+		for (int c = 1; c <= getNChannels(); c++) {
+			invalidateStatistics(getImageStackIndex(c, getCurrentSlice(),
+				getCurrentFrame()));
+		}
 		updateAndDraw();
 	}
 
@@ -572,6 +629,15 @@ public class Image5D extends ImagePlus {
 	 * @param position
 	 */
 	public synchronized void setCurrentPosition(final int[] position) {
+		setCurrentPosition(position, false);
+	}
+
+	/**
+	 * Sets the current position. If reload is true, the planes of the position
+	 * are read from the imageStack again, even if the channel and frame stay the
+	 * same.
+	 */
+	private void setCurrentPosition(final int[] position, final boolean reload) {
 		if (position.length < nDimensions) {
 			throw new IllegalArgumentException(
 				"Position array is smaller than number of dimensions.");
@@ -595,51 +661,50 @@ public class Image5D extends ImagePlus {
 		final int newChannel = position[colorDimension];
 		final boolean channelChanged = oldChannel != newChannel;
 		final boolean stackChanged =
-			channelChanged || currentPosition[4] != position[4];
+			reload || channelChanged || currentPosition[4] != position[4];
+		final int zStep = Integer.signum(position[3] - currentPosition[3]);
+		final int tStep = Integer.signum(position[4] - currentPosition[4]);
 
 		// Change the nominal current position.
 		for (int i = 0; i < nDimensions; i++) {
 			currentPosition[i] = position[i];
 		}
 
+		// Processors may change the planes at the new position in place.
+		unsharePlanes();
+
 		// Change Stack if necessary
 		if (stackChanged) {
-			if (!imageStack.isVirtual()) {
-				final ImageStack newStack =
-					new ImageStack(width, height,
-						chDisplayProps[position[colorDimension]].getColorModel());
-				final int offs = getCurrentStackOffset();
-				final int incr = getCurrentStackIncrement();
-				for (int i = 0; i < getNSlices(); ++i) {
-					newStack.addSlice(imageStack.getSliceLabel(offs + i * incr),
-						imageStack.getPixels(offs + i * incr));
+			final ColorModel cm =
+				chDisplayProps[position[colorDimension]].getColorModel();
+			if (stackView != null && getStack() == stackView) {
+				// Point the view to the new channel/frame and hand the processor of
+				// the new channel to ImagePlus.
+				stackView.setColorModel(cm);
+				stackView.setView(imageStack, getCurrentStackOffset(),
+					getCurrentStackIncrement(), getNSlices());
+				ip = channelIPs[newChannel];
+				final Object pixels = stackView.getPixels(currentSlice);
+				if (pixels != null) {
+					ip.setPixels(pixels);
+					ip.setSnapshotPixels(null);
 				}
-				// Avoid messing up of image window (5D) by superclass, which doesn't
-				// know about 5D.
-				final ImageWindow tempWin = win;
-				win = null;
-				super.setStack(null, newStack);
-				win = tempWin;
 			}
 			else {
-				final I5DVirtualStack newStack =
-					new I5DVirtualStack(width, height,
-						chDisplayProps[position[colorDimension]].getColorModel(),
-						((I5DVirtualStack) imageStack).getPath());
-				final int offs = getCurrentStackOffset();
-				final int incr = getCurrentStackIncrement();
-				for (int i = 0; i < getNSlices(); ++i) {
-					newStack.addSlice(imageStack.getSliceLabel(offs + i * incr));
-				}
+				stackView = new I5DStackView(imageStack, cm);
+				stackView.setView(imageStack, getCurrentStackOffset(),
+					getCurrentStackIncrement(), getNSlices());
 				// Avoid messing up of image window (5D) by superclass, which doesn't
 				// know about 5D.
 				final ImageWindow tempWin = win;
 				win = null;
-				super.setStack(null, newStack);
+				super.setStack(null, stackView);
 				win = tempWin;
 			}
 		}
 
+		prefetch(zStep, tStep);
+
 		// Update channelIPs and channelImps
 		channelIPs[currentPosition[colorDimension]] = getProcessor();
 		channelImps[currentPosition[colorDimension]].setProcessor(null,
@@ -668,7 +733,19 @@ public class Image5D extends ImagePlus {
 			((Image5DWindow) win).updateSliceSelector();
 		}
 		if (IJ.spaceBarDown() && (getType() == GRAY16 || getType() == GRAY32)) {
-			ip.resetMinAndMax();
+			// Use the statistics of the plane if they are known, instead of
+			// scanning its pixels.
+			final PlaneStatistics statistics = this.statistics;
+			final int n = getCurrentImageStackIndex();
+			final PlaneStatistics.Statistics planeStatistics =
+				statistics == null || statistics.getStack() != imageStack ||
+					n > statistics.getSize() ? null : statistics.get(n);
+			if (planeStatistics != null && planeStatistics.getNPixels() > 0) {
+				ip.setMinAndMax(planeStatistics.getMin(), planeStatistics.getMax());
+			}
+			else {
+				ip.resetMinAndMax();
+			}
 			IJ.showStatus((currentPosition[3] + 1) + ": min=" + ip.getMin() +
 				", max=" + ip.getMax());
 		}
@@ -677,6 +754,74 @@ public class Image5D extends ImagePlus {
 		updateAndRepaintWindow();
 	}
 
+	/**
+	 * Asks a virtual imageStack to read, or a compressed one to decompress, the
+	 * planes of all channels ahead of the current position in the direction
+	 * given by zStep and tStep (-1, 0 or 1).
+	 * While the image is displayed zoomed out, also builds the downsampled
+	 * planes of the next position in the background.
+	 */
+	protected void prefetch(final int zStep, final int tStep) {
+		if (zStep == 0 && tStep == 0) return;
+		if (zStep != prefetchZStep || tStep != prefetchTStep) {
+			// The planes read ahead in the old direction are not needed any more.
+			SliceCache cache = null;
+			if (imageStack instanceof I5DVirtualStack) cache =
+				((I5DVirtualStack) imageStack).getSliceCache();
+			else if (imageStack instanceof I5DCompressedStack) cache =
+				((I5DCompressedStack) imageStack).getCache();
+			if (cache != null) cache.cancelPrefetches();
+			if (pyramid != null) pyramid.cancelPrefetches();
+			prefetchZStep = zStep;
+			prefetchTStep = tStep;
+		}
+		if (imageStack instanceof I5DVirtualStack) {
+			final I5DVirtualStack vStack = (I5DVirtualStack) imageStack;
+			for (int k = 1; k <= PREFETCH_DEPTH; ++k) {
+				final int z = currentPosition[3] + k * zStep;
+				final int t = currentPosition[4] + k * tStep;
+				if (z < 0 || z >= getNSlices() || t < 0 || t >= getNFrames()) break;
+				for (int c = 1; c <= getNChannels(); ++c) {
+					vStack.prefetch(getImageStackIndex(c, z + 1, t + 1));
+				}
+			}
+		}
+		else if (imageStack instanceof I5DCompressedStack) {
+			final I5DCompressedStack cStack = (I5DCompressedStack) imageStack;
+			for (int k = 1; k <= PREFETCH_DEPTH; ++k) {
+				final int z = currentPosition[3] + k * zStep;
+				final int t = currentPosition[4] + k * tStep;
+				if (z < 0 || z >= getNSlices() || t < 0 || t >= getNFrames()) break;
+				for (int c = 1; c <= getNChannels(); ++c) {
+					cStack.prefetch(getImageStackIndex(c, z + 1, t + 1));
+				}
+			}
+		}
+
+		// Planes of virtual, mapped, off-heap and compressed stacks are copied on
+		// every access, so their levels can't be reused.
+		final int z = currentPosition[3] + zStep;
+		final int t = currentPosition[4] + tStep;
+		if (pyramid == null || reducedLevel == 0 ||
+			imageStack instanceof I5DVirtualStack ||
+			imageStack instanceof I5DMappedStack || isImageStackCopying() || z < 0 ||
+			z >= getNSlices() || t < 0 || t >= getNFrames())
+		{
+			return;
+		}
+		final ImageStack stack = imageStack;
+		for (int c = 1; c <= getNChannels(); ++c) {
+			final int index = getImageStackIndex(c, z + 1, t + 1);
+			pyramid.prefetch(new Callable<Object>() {
+
+				@Override
+				public Object call() {
+					return stack.getPixels(index);
+				}
+			}, width, height, reducedLevel);
+		}
+	}
+
 	@Override
 	public int getNDimensions() {
 		return nDimensions;
@@ -724,13 +869,26 @@ public class Image5D extends ImagePlus {
 
 	/**
 	 * Returns a reference to the imageStack that contains all channels, slices
-	 * and frames.
+	 * and frames. If {@link #appendFrame(Object[])} has dropped frames, the
+	 * planes are first moved back into the order of the frames.
 	 */
 	@Override
 	public ImageStack getImageStack() {
+		if (ringHead != 0) alignFrames();
 		return imageStack;
 	}
 
+	/**
+	 * Returns the short label of the plane at the given position, without
+	 * reordering the imageStack like {@link #getImageStack()}.
+	 */
+	public String getShortSliceLabel(final int channel, final int slice,
+		final int frame)
+	{
+		return imageStack.getShortSliceLabel(getImageStackIndex(channel, slice,
+			frame));
+	}
+
 	/**
 	 * Returns Image5D-specific metadata to be saved in TIFF-file.
 	 */
@@ -746,6 +904,9 @@ public class Image5D extends ImagePlus {
 
 		fi.nImages = getImageStackSize();
 
+		// No copies here: empty planes may share one array, which is harmless
+		// for writing. Stacks without an image array leave fi.pixels null; the
+		// saver then reads them plane by plane.
 		if (fi.nImages > 1) fi.pixels = getImageStack().getImageArray();
 
 		return fi;
@@ -753,7 +914,12 @@ public class Image5D extends ImagePlus {
 
 	/**
 	 * Returns a reference to the image data of the given channel, slice and
-	 * frame: An object of type byte-array, short-array or float-array.
+	 * frame: An object of type byte-array, short-array or float-array. After
+	 * {@link #duplicate()}, the array may be shared with the duplicate, and
+	 * empty planes added by {@link #expandDimension(int, int, boolean)} share
+	 * one array, so assign changed pixels with
+	 * {@link #setPixels(Object, int, int, int)}, or change the array returned by
+	 * {@link #getWritablePixels(int, int, int)}.
 	 */
 	public Object getPixels(final int channel, final int slice, final int frame) {
 		if (channel < 1 || channel > getNChannels() || slice < 1 ||
@@ -765,6 +931,101 @@ public class Image5D extends ImagePlus {
 		return imageStack.getPixels(getImageStackIndex(channel, slice, frame));
 	}
 
+	/**
+	 * Returns the image data of the given channel, slice and frame, like
+	 * {@link #getPixels(int, int, int)}, but an array that only this plane uses,
+	 * so that it can be changed in place. A shared array is replaced by a copy
+	 * first.
+	 */
+	public synchronized Object getWritablePixels(final int channel,
+		final int slice, final int frame)
+	{
+		final Object pixels = getPixels(channel, slice, frame);
+		if (!isSharedPlane(pixels)) return pixels;
+		final Object copy = copyPixels(pixels);
+		setPixels(copy, channel, slice, frame);
+		return copy;
+	}
+
+	/**
+	 * Returns the pixels of plane n of the imageStack for use outside of this
+	 * image, e.g. in a stack of an ImagePlus. Arrays that are shared with
+	 * other planes or a duplicate are copied.
+	 */
+	public Object getExportedPixels(final int n) {
+		final Object pixels = imageStack.getPixels(n);
+		return isSharedPlane(pixels) ? copyPixels(pixels) : pixels;
+	}
+
+	/**
+	 * Returns true if the pixels are the zero plane or an array shared with a
+	 * duplicate, which must not be changed in place.
+	 */
+	synchronized boolean isSharedPlane(final Object pixels) {
+		return pixels != null &&
+			(pixels == zeroPlane || sharedPixels != null && sharedPixels
+				.contains(pixels));
+	}
+
+	/**
+	 * Returns a copy of the voxels of a region of one channel, ordered x fastest,
+	 * then y, slice and frame. The region starts at pixel (x, y) of the given
+	 * slice and frame and extends over width x height pixels, depth slices and
+	 * duration frames. E.g. the time trace of a pixel is the region of size (1,
+	 * 1, 1, nFrames), and an XZ section the region of size (width, 1, nSlices,
+	 * 1). For an {@link I5DChunkedStack}, only the chunks that intersect the
+	 * region are read; otherwise each plane of the region is read. Views read
+	 * the region from their parent.
+	 */
+	public Object getRegion(final int channel, final int x, final int y,
+		final int slice, final int frame, final int width, final int height,
+		final int depth, final int duration)
+	{
+		checkChannel(channel);
+		if (x < 0 || y < 0 || width < 0 || height < 0 || depth < 0 ||
+			duration < 0 || x + width > this.width || y + height > this.height ||
+			slice < 1 || slice + depth - 1 > getNSlices() || frame < 1 ||
+			frame + duration - 1 > getNFrames())
+		{
+			throw new IllegalArgumentException(outOfRange + "<" + x + ", " + y +
+				", " + channel + ", " + slice + ", " + frame + ">");
+		}
+		if (imageStack instanceof I5DChunkedStack) {
+			return ((I5DChunkedStack) imageStack).getRegion(channel - 1, x, y,
+				slice - 1, frame - 1, width, height, depth, duration);
+		}
+		if (imageStack instanceof I5DSubStack) {
+			return ((I5DSubStack) imageStack).getRegion(channel - 1, x, y,
+				slice - 1, frame - 1, width, height, depth, duration);
+		}
+
+		final int size = width * height * depth * duration;
+		final Object region;
+		switch (getType()) {
+			case GRAY8:
+				region = new byte[size];
+				break;
+			case GRAY16:
+				region = new short[size];
+				break;
+			default:
+				region = new float[size];
+		}
+		int offset = 0;
+		for (int t = frame; t < frame + duration; t++) {
+			for (int z = slice; z < slice + depth; z++) {
+				final Object pixels =
+					imageStack.getPixels(getImageStackIndex(channel, z, t));
+				for (int row = y; row < y + height; row++) {
+					System.arraycopy(pixels, row * this.width + x, region, offset,
+						width);
+					offset += width;
+				}
+			}
+		}
+		return region;
+	}
+
 	/**
 	 * Assigns a pixel array to the current position,
 	 * 
@@ -772,7 +1033,7 @@ public class Image5D extends ImagePlus {
 	 */
 	public void setPixels(final Object pixels) {
 		if (isInitialized && pixels != null) {
-			if (imageStack.isVirtual()) return;
+			if (!isImageStackWritable()) return;
 
 			if (!pixels.getClass().equals(
 				imageStack.getPixels(getCurrentImageStackIndex()).getClass())) return;
@@ -782,6 +1043,7 @@ public class Image5D extends ImagePlus {
 			}
 
 			imageStack.setPixels(pixels, getCurrentImageStackIndex());
+			invalidateStatistics(getCurrentImageStackIndex());
 
 			channelIPs[currentPosition[2]].setPixels(pixels);
 
@@ -799,7 +1061,7 @@ public class Image5D extends ImagePlus {
 		final int slice, final int frame)
 	{
 		if (isInitialized && pixels != null) {
-			if (imageStack.isVirtual()) return;
+			if (!isImageStackWritable()) return;
 
 			if (!pixels.getClass().equals(
 				imageStack.getPixels(getImageStackIndex(channel, slice, frame))
@@ -815,6 +1077,7 @@ public class Image5D extends ImagePlus {
 
 			// Put reference to "pixels" array to all locations that need it.
 			imageStack.setPixels(pixels, getImageStackIndex(channel, slice, frame));
+			invalidateStatistics(getImageStackIndex(channel, slice, frame));
 			if (slice == getCurrentSlice() && frame == getCurrentFrame()) channelIPs[channel - 1]
 				.setPixels(pixels);
 			if (channel == getCurrentChannel() && frame == getCurrentFrame()) super
@@ -825,6 +1088,50 @@ public class Image5D extends ImagePlus {
 
 	}
 
+	/**
+	 * Returns true if pixels can be assigned to the planes of the imageStack.
+	 * This is not possible for virtual stacks, except for off-heap, compressed
+	 * and chunked stacks, which copy the pixels, and views of other Image5Ds.
+	 */
+	private boolean isImageStackWritable() {
+		return !imageStack.isVirtual() || isImageStackCopying();
+	}
+
+	/**
+	 * Returns true if the imageStack only hands out copies of its planes, or
+	 * planes that have to be assigned back to another image.
+	 */
+	private boolean isImageStackCopying() {
+		return imageStack instanceof I5DPlaneStack;
+	}
+
+	/**
+	 * Returns true if the planes of the imageStack are held in memory, also if
+	 * the stack reports itself as virtual because it only hands out copies.
+	 * False for stacks that read their planes from disk, and for views of them.
+	 */
+	private boolean isImageStackInMemory() {
+		if (imageStack instanceof I5DSubStack) {
+			return ((I5DSubStack) imageStack).getParent().isImageStackInMemory();
+		}
+		return !imageStack.isVirtual() || isImageStackCopying();
+	}
+
+	/**
+	 * Copies the pixels of the channel at the current position back to an
+	 * imageStack that only hands out copies of its planes. All channels if
+	 * channel is 0.
+	 */
+	private void writeBack(final int channel) {
+		if (!isImageStackCopying() || !isInitialized) return;
+		for (int c = 1; c <= getNChannels(); c++) {
+			if ((channel == 0 || c == channel) && channelIPs[c - 1] != null) {
+				imageStack.setPixels(channelIPs[c - 1].getPixels(), getImageStackIndex(
+					c, getCurrentSlice(), getCurrentFrame()));
+			}
+		}
+	}
+
 	/**
 	 * Creates an empty pixels-array of size width*height and type of this image,
 	 * and returns a reference to it.
@@ -853,8 +1160,8 @@ public class Image5D extends ImagePlus {
 	 * Returns the index in the imageStack corresponding to the current position.
 	 */
 	public int getCurrentImageStackIndex() {
-		return (currentPosition[4] * getNChannels() * getNSlices() +
-			currentPosition[3] * getNChannels() + currentPosition[2] + 1);
+		return (getImageStackFrame(currentPosition[4]) * getNChannels() *
+			getNSlices() + currentPosition[3] * getNChannels() + currentPosition[2] + 1);
 	}
 
 	/**
@@ -864,8 +1171,44 @@ public class Image5D extends ImagePlus {
 	public int getImageStackIndex(final int channel, final int slice,
 		final int frame)
 	{
-		return ((frame - 1) * getNChannels() * getNSlices() + (slice - 1) *
-			getNChannels() + (channel - 1) + 1);
+		return (getImageStackFrame(frame - 1) * getNChannels() * getNSlices() +
+			(slice - 1) * getNChannels() + (channel - 1) + 1);
+	}
+
+	/**
+	 * Returns the frame of the imageStack (0-based) that holds the given frame
+	 * (0-based). They differ after appendFrame() has replaced the oldest frames
+	 * in place, until the frames are aligned again.
+	 */
+	private int getImageStackFrame(final int frame) {
+		final int head = ringHead;
+		return head == 0 ? frame : (frame + head) % getNFrames();
+	}
+
+	/**
+	 * Moves the planes of the imageStack back into the order of the frames,
+	 * after appendFrame() has replaced the oldest frames in place.
+	 */
+	private synchronized void alignFrames() {
+		if (ringHead == 0) return;
+		final int shift = ringHead * getNChannels() * getNSlices();
+		final int size = imageStack.getSize();
+		final Object[] pixels = imageStack.getImageArray();
+		final String[] labels = imageStack.getSliceLabels();
+		final Object[] oldPixels = Arrays.copyOf(pixels, size);
+		final String[] oldLabels = Arrays.copyOf(labels, size);
+		System.arraycopy(oldPixels, shift, pixels, 0, size - shift);
+		System.arraycopy(oldPixels, 0, pixels, size - shift, shift);
+		System.arraycopy(oldLabels, shift, labels, 0, size - shift);
+		System.arraycopy(oldLabels, 0, labels, size - shift, shift);
+		if (statistics != null && statistics.getStack() == imageStack) {
+			statistics.rotate(shift);
+		}
+		ringHead = 0;
+		if (stackView != null && getStack() == stackView) {
+			stackView.setView(imageStack, getCurrentStackOffset(),
+				getCurrentStackIncrement(), getNSlices());
+		}
 	}
 
 	public int[] getCurrentPosition() {
@@ -906,6 +1249,93 @@ public class Image5D extends ImagePlus {
 		restoreChannelProperties(channel);
 	}
 
+	/**
+	 * Returns the minimum, maximum, mean and histogram of the planes of this
+	 * image. The statistics of all planes are computed in the background,
+	 * except for stacks on disk (virtual and mapped stacks): reading them
+	 * completely would take long, so their planes are scanned when their
+	 * statistics are first needed.
+	 */
+	public synchronized PlaneStatistics getPlaneStatistics() {
+		if (statistics == null || statistics.getStack() != imageStack ||
+			statistics.getSize() != imageStack.getSize())
+		{
+			if (statistics != null) statistics.stop();
+			statistics = new PlaneStatistics(imageStack);
+			if (isImageStackInMemory()) statistics.start();
+		}
+		return statistics;
+	}
+
+	/**
+	 * Updates the plane statistics, if they are computed, after planes were
+	 * added to the imageStack. If appended is true, the planes were added to
+	 * the end of the same stack and the statistics of the old planes are kept.
+	 * Otherwise the planes moved and all statistics are computed again.
+	 */
+	private synchronized void updateStatistics(final boolean appended) {
+		final PlaneStatistics old = statistics;
+		if (old == null) return;
+		if (appended && old.getStack() == imageStack) {
+			old.setSize(imageStack.getSize());
+			return;
+		}
+		old.stop();
+		statistics = new PlaneStatistics(imageStack);
+		if (isImageStackInMemory()) statistics.start();
+	}
+
+	/**
+	 * Returns the ratio of the uncompressed to the compressed size of the planes
+	 * of the channel, if the imageStack is an {@link I5DCompressedStack}, and 1
+	 * otherwise.
+	 */
+	public double getCompressionRatio(final int channel) {
+		checkChannel(channel);
+		if (!(imageStack instanceof I5DCompressedStack)) return 1;
+		final int[] planes = new int[getNSlices() * getNFrames()];
+		for (int t = 1; t <= getNFrames(); t++) {
+			for (int z = 1; z <= getNSlices(); z++) {
+				planes[(t - 1) * getNSlices() + z - 1] =
+					getImageStackIndex(channel, z, t);
+			}
+		}
+		return ((I5DCompressedStack) imageStack).getCompressionRatio(planes);
+	}
+
+	/**
+	 * Sets the display range of the channel from all its slices and frames, so
+	 * that <code>saturated</code> percent of their pixels are saturated. Uses
+	 * the plane statistics (see {@link #getPlaneStatistics()}), so only planes
+	 * whose statistics are not known yet are scanned. Does not redraw the image.
+	 */
+	public void setChannelMinMaxFromAllPositions(final int channel,
+		final double saturated)
+	{
+		checkChannel(channel);
+		final int[] planes = new int[getNSlices() * getNFrames()];
+		for (int t = 1; t <= getNFrames(); t++) {
+			for (int z = 1; z <= getNSlices(); z++) {
+				planes[(t - 1) * getNSlices() + z - 1] =
+					getImageStackIndex(channel, z, t);
+			}
+		}
+		final double[] range = getPlaneStatistics().getRange(planes, saturated);
+		if (range != null) setChannelMinMax(channel, range[0], range[1]);
+	}
+
+	/**
+	 * Reports changed pixels of plane n of the imageStack to the statistics.
+	 */
+	private void invalidateStatistics(final int n) {
+		final PlaneStatistics statistics = this.statistics;
+		if (statistics != null && statistics.getStack() == imageStack &&
+			n <= statistics.getSize())
+		{
+			statistics.invalidate(n);
+		}
+	}
+
 	/**
 	 * Changes the min- and max-value of a channel to these ones.
 	 */
@@ -1061,6 +1491,8 @@ public class Image5D extends ImagePlus {
 		activated5d = false;
 		win = new Image5DWindow(this);
 		if (roi != null) roi.setImage(this);
+		// Start computing the statistics of all planes in the background.
+		getPlaneStatistics();
 
 		draw();
 		IJ.showStatus(statusMessage);
@@ -1094,121 +1526,338 @@ public class Image5D extends ImagePlus {
 	 * ImageCanvas.paint() calls this method when the ImageProcessor has generated
 	 * a new image. Calculates the AWT Image displayed in the Image5DWindow. For
 	 * ONE_CHANNEL_GRAY and ONE_CHANNEL_COLOR this uses the method from
-	 * ImageProcessor. For OVERLAY this method has to calculate a lot.
+	 * ImageProcessor. For OVERLAY this method has to calculate a lot. Only the
+	 * part of the overlay visible in the window is calculated, the rest follows
+	 * when it is scrolled into view.
 	 */
 	@Override
 	public void updateImage() {
+		updateImage(win == null ? null : ((Image5DWindow) win).getVisibleRegion(),
+			false);
+	}
 
-		final int imageSize = width * height;
-		final int nChannels = getNChannels();
-		int redValue, greenValue, blueValue;
+	/**
+	 * Returns true if the displayed overlay is out of date in the given region,
+	 * e.g. because it was not visible when the overlay was calculated.
+	 */
+	public boolean isDisplayOutdated(final Rectangle region) {
+		if (img == null) return false;
+		final int displayMode =
+			win == null ? this.displayMode : ((Image5DWindow) win).getDisplayMode();
+		if (displayMode != ChannelControl.OVERLAY &&
+			displayMode != ChannelControl.TILED)
+		{
+			return false;
+		}
+		if (tileRenderer != null && tileRenderer.isBackgroundRendering() &&
+			tileRenderer.isStale(region))
+		{
+			return true;
+		}
+		if (frameProducer != null) return frameProducer.isOutdated(region);
+		return compositor != null && compositor.isStale(region);
+	}
+
+	/**
+	 * Returns the displayed image reduced by a factor of 2^level in each
+	 * direction, calculated from downsampled planes (see {@link PyramidCache}).
+	 * This is much faster than calculating the full image, when a large image is
+	 * shown at low magnification. Returns the image of the last call if
+	 * <code>update</code> is false and the level hasn't changed. Returns null if
+	 * the image can't be reduced, e.g. while a pasted ROI is dragged, or if the
+	 * downsampled planes are not ready yet: they are then built in the
+	 * background, and the canvas is repainted when they are ready.
+	 */
+	public Image getReducedImage(final int level, final boolean update) {
+		if (level < 1 || level > PyramidCache.MAX_LEVEL || ip == null) return null;
+		if (pasteRoi != null && getRoi() == pasteRoi) return null;
+		if (!update && reducedImage != null && level == reducedLevel) {
+			return reducedImage;
+		}
 
-		ImageProcessor tmpProcessor = ip; // Set tmpProcessor to something so that
-																			// Java compiler doesn't
-																			// complain later.
-		final int type = getType();
+		final int reducedWidth = PyramidCache.getLevelSize(width, level);
+		final int reducedHeight = PyramidCache.getLevelSize(height, level);
+		final int nChannels = getNChannels();
+		if (pyramid == null) pyramid = new PyramidCache();
 
-		int displayMode = -1;
+		int displayMode = this.displayMode;
 		if (win != null) displayMode = ((Image5DWindow) win).getDisplayMode();
 
 		if ((displayMode == ChannelControl.ONE_CHANNEL_GRAY) ||
 			(displayMode == ChannelControl.ONE_CHANNEL_COLOR))
 		{
-			img = ip.createImage();
-
+			final ImageProcessor reduced = reduce(ip, level);
+			if (reduced == null) return null;
+			reducedImage = reduced.createImage();
 		}
-		else if (displayMode == ChannelControl.OVERLAY ||
-			displayMode == ChannelControl.TILED)
-		{
-			// Lengthy calculation of overlay image from the time when there was no
-			// ImageProcessor.getCurrentColorModel() method.
-			// Actually faster than with ImageProcessor.getCurrentColorModel()!!
-			if (awtImagePixels == null || awtImagePixels.length != imageSize) {
-				awtImagePixels = new int[imageSize];
-				newPixels = true;
+		else {
+			final ImageProcessor[] reduced = new ImageProcessor[nChannels];
+			for (int i = 0; i < nChannels; ++i) {
+				if (!chDisplayProps[i].isDisplayedInOverlay()) continue;
+				reduced[i] = reduce(channelIPs[i], level);
+				if (reduced[i] == null) return null;
 			}
-
-			// Build imagePixels array from AWT images of each channel.
-			if (awtChannelPixels == null || awtChannelPixels.length != nChannels ||
-				awtChannelPixels[0].length != imageSize)
+			if (reducedCompositor == null ||
+				reducedCompositor.getWidth() != reducedWidth ||
+				reducedCompositor.getHeight() != reducedHeight)
 			{
-				awtChannelPixels = new int[nChannels][];
-				for (int i = 0; i < nChannels; ++i) {
-					awtChannelPixels[i] = new int[imageSize];
+				reducedCompositor = new ChannelCompositor(reducedWidth, reducedHeight);
+				reducedPixels = new int[reducedWidth * reducedHeight];
+				reducedSource =
+					new MemoryImageSource(reducedWidth, reducedHeight,
+						new DirectColorModel(32, 0xFF0000, 0xFF00, 0xFF), reducedPixels, 0,
+						reducedWidth);
+				reducedSource.setAnimated(true);
+				reducedSource.setFullBufferUpdates(true);
+				reducedImage = Toolkit.getDefaultToolkit().createImage(reducedSource);
+			}
+			reducedCompositor.setNChannels(nChannels);
+			for (int i = 0; i < nChannels; ++i) {
+				if (reduced[i] == null) {
+					reducedCompositor.hideChannel(i + 1);
+				}
+				else if (displayMode == ChannelControl.OVERLAY) {
+					reducedCompositor.setChannel(i + 1, reduced[i]);
+				}
+				else {
+					reducedCompositor.setChannel(i + 1, reduced[i], chDisplayProps[i]
+						.getColorModel());
 				}
 			}
+			reducedCompositor.composite(reducedPixels);
+			reducedSource.newPixels();
+		}
+		reducedLevel = level;
+		return reducedImage;
+	}
 
-			if (displayMode == ChannelControl.TILED) {
-				// tmpProcessor will be used to apply colormap to channel.
-				switch (type) {
-					case GRAY8:
-						tmpProcessor = new ByteProcessor(width, height, null, null);
-						break;
-					case GRAY16:
-						dummyImage = new short[imageSize];
-						tmpProcessor = new ShortProcessor(width, height, null, null);
-						break;
-					case GRAY32:
-						tmpProcessor = new FloatProcessor(width, height, null, null);
-						break;
+	/**
+	 * Returns a processor with the pixels of ip reduced to the given level and
+	 * the same display range, color model and threshold. Returns null if the
+	 * level is not cached yet; it is then built in the background.
+	 */
+	private ImageProcessor reduce(final ImageProcessor ip, final int level) {
+		final Object pixels = pyramid.getCached(ip.getPixels(), level);
+		if (pixels == null) {
+			pyramid.request(ip.getPixels(), width, height, level, new Runnable() {
+
+				@Override
+				public void run() {
+					final ImageWindow win = getWindow();
+					if (win != null) win.getCanvas().repaint();
 				}
-				// Recalculate current channel image to display pasted ROIs in channel
-				// tiles.
-				channelIPs[getCurrentChannel() - 1].createImage();
+			});
+			return null;
+		}
+		final ImageProcessor reduced =
+			ip.createProcessor(PyramidCache.getLevelSize(width, level), PyramidCache
+				.getLevelSize(height, level));
+		reduced.setPixels(pixels);
+		reduced.setMinAndMax(ip.getMin(), ip.getMax());
+		if (ip.getMinThreshold() != ImageProcessor.NO_THRESHOLD) {
+			reduced.setThreshold(ip.getMinThreshold(), ip.getMaxThreshold(), ip
+				.getLutUpdateMode());
+		}
+		return reduced;
+	}
+
+	/**
+	 * Hands the current channels to the compositor. Overlay image in TILED mode
+	 * is colored, even if "allGray" checkbox is selected, and thresholds are not
+	 * displayed in overlays.
+	 */
+	void setCompositorChannels(final ChannelCompositor compositor) {
+		int displayMode = this.displayMode;
+		if (win != null) displayMode = ((Image5DWindow) win).getDisplayMode();
+		final int nChannels = getNChannels();
+		compositor.setNChannels(nChannels);
+		for (int i = 0; i < nChannels; ++i) {
+			if (!chDisplayProps[i].isDisplayedInOverlay()) {
+				compositor.hideChannel(i + 1);
+			}
+			else if (displayMode == ChannelControl.OVERLAY) {
+				compositor.setChannel(i + 1, channelIPs[i]);
+			}
+			else {
+				compositor.setChannel(i + 1, channelIPs[i], chDisplayProps[i]
+					.getColorModel());
 			}
+		}
+	}
 
-			// Get RGB (int-)array for each channel by applying the colomap to the
-			// ImageProcessor of the channel.
-			for (int i = 0; i < nChannels; ++i) {
-				if (!chDisplayProps[i].isDisplayedInOverlay()) continue;
+	/**
+	 * Called by the FrameProducer when a frame is finished. Repaints the canvas,
+	 * which then displays the frame.
+	 */
+	void frameReady() {
+		final ImageCanvas canvas = getCanvas();
+		if (canvas == null) return;
+		canvas.setImageUpdated();
+		canvas.repaint();
+	}
+
+	/**
+	 * Called by the FrameProducer when it has rendered channel images in TILED
+	 * mode. Repaints the channel canvasses, which then display them.
+	 */
+	void tilesReady() {
+		if (win != null) ((Image5DWindow) win).repaintCanvasses();
+	}
+
+	/**
+	 * Marks the rectangle r of the channel for recalculation in the overlay and
+	 * the channel for rendering in its tile. The whole channel if r is null, all
+	 * channels if channel is 0.
+	 */
+	private void invalidateOverlay(final int channel, final Rectangle r) {
+		if (compositor != null) {
+			if (channel == 0) compositor.invalidateAll();
+			else compositor.invalidate(channel, r);
+		}
+		if (frameProducer != null) frameProducer.invalidate(channel, r);
+		if (tileRenderer != null) {
+			if (channel == 0) tileRenderer.invalidateAll();
+			else if (channel <= tileRenderer.getNChannels()) tileRenderer
+				.invalidate(channel);
+		}
+	}
+
+	/**
+	 * Lets a TileRenderer render the images of the channel canvasses, as needed
+	 * in TILED mode. Otherwise the channel images are created by their
+	 * processors and the renderer is discarded with its buffers.
+	 */
+	private void setTileRendering(final boolean enabled) {
+		if (!enabled) {
+			if (tileRenderer == null) return;
+			tileRenderer = null;
+			for (int i = 0; i < channelImps.length; i++) {
+				if (channelImps[i] != null) channelImps[i].setTileRenderer(null, 0);
+			}
+			return;
+		}
+		if (tileRenderer == null || tileRenderer.getWidth() != width ||
+			tileRenderer.getHeight() != height)
+		{
+			tileRenderer = new TileRenderer(width, height);
+		}
+		final int nChannels = getNChannels();
+		tileRenderer.setNChannels(nChannels);
+		for (int i = 0; i < nChannels; i++) {
+			if (channelImps[i] == null) continue;
+			tileRenderer.setChannel(i + 1, channelImps[i]);
+			channelImps[i].setTileRenderer(tileRenderer, i + 1);
+		}
+	}
+
+	/**
+	 * Enables or disables compositing the overlay on a background thread while a
+	 * window is shown. If enabled (the default), the window displays the last
+	 * finished overlay until the next one is ready.
+	 */
+	public void setBackgroundCompositing(final boolean backgroundCompositing) {
+		this.backgroundCompositing = backgroundCompositing;
+	}
+
+	public boolean isBackgroundCompositing() {
+		return backgroundCompositing;
+	}
+
+	/**
+	 * Composites the overlay in the given region into awtImagePixels on the
+	 * calling thread.
+	 */
+	private void compositeOverlay(final Rectangle region, final int imageSize) {
+		if (awtImagePixels == null || awtImagePixels.length != imageSize) {
+			awtImagePixels = new int[imageSize];
+			newPixels = true;
+		}
+		if (compositor == null || compositor.getWidth() != width ||
+			compositor.getHeight() != height)
+		{
+			compositor = new ChannelCompositor(width, height);
+		}
+		setCompositorChannels(compositor);
+		compositor.setViewport(region);
+		compositor.composite(awtImagePixels);
+	}
 
-				if (displayMode == ChannelControl.OVERLAY) {
+	/**
+	 * Calculates the AWT Image. In OVERLAY and TILED mode, restricts the
+	 * calculation of the overlay to the given region. The whole image if region
+	 * is null. Waits for the overlay if <code>wait</code> is true, otherwise
+	 * the last finished overlay is displayed while a new one is composited in
+	 * the background.
+	 */
+	private void updateImage(final Rectangle region, final boolean wait) {
+		// The full image is displayed again, stop building reduced planes.
+		reducedLevel = 0;
+
+		final int imageSize = width * height;
 
-					final PixelGrabber pg =
-						new PixelGrabber(channelIPs[i].createImage(), 0, 0, width, height,
-							awtChannelPixels[i], 0, width);
-					try {
-						pg.grabPixels();
-					}
-					catch (final InterruptedException e) {}
+		// Without a window (e.g. headless), use the display mode of the image.
+		int displayMode = this.displayMode;
+		if (win != null) displayMode = ((Image5DWindow) win).getDisplayMode();
 
+		setTileRendering(displayMode == ChannelControl.TILED);
+		if (tileRenderer != null) {
+			// With a FrameProducer, the channel images are rendered on its thread.
+			tileRenderer.setViewport(region);
+			tileRenderer.setBackgroundRendering(win != null && backgroundCompositing);
+		}
+
+		if ((displayMode == ChannelControl.ONE_CHANNEL_GRAY) ||
+			(displayMode == ChannelControl.ONE_CHANNEL_COLOR))
+		{
+			img = ip.createImage();
+
+		}
+		else if (displayMode == ChannelControl.OVERLAY ||
+			displayMode == ChannelControl.TILED)
+		{
+			if (pasteRoi != null) {
+				// The pasted ROI has moved: update its old and new region.
+				final Rectangle r = pasteRoi.getBounds();
+				invalidateOverlay(getCurrentChannel(), pasteBounds == null ? r : r
+					.union(pasteBounds));
+				pasteBounds = r;
+				if (getRoi() != pasteRoi) pasteRoi = null;
+			}
+
+			if (win != null && backgroundCompositing) {
+				// Display the last finished frame and let the FrameProducer composite
+				// the next one.
+				if (frameProducer == null || frameProducer.getWidth() != width ||
+					frameProducer.getHeight() != height)
+				{
+					if (frameProducer != null) frameProducer.stop();
+					frameProducer = new FrameProducer(this, width, height);
+					frameProducer.invalidate(0, null);
 				}
-				else if (displayMode == ChannelControl.TILED) {
-					// Overlay image is colored, even if "allGray" checkbox is selected,
-					// and
-					// thresholds are not displayed in overlays.
-					tmpProcessor.setPixels(channelIPs[i].getPixels());
-					tmpProcessor.setColorModel(getChannelDisplayProperties(i + 1)
-						.getColorModel());
-					tmpProcessor.setMinAndMax(channelIPs[i].getMin(), channelIPs[i]
-						.getMax());
-
-					final PixelGrabber pg =
-						new PixelGrabber(tmpProcessor.createImage(), 0, 0, width, height,
-							awtChannelPixels[i], 0, width);
-					try {
-						pg.grabPixels();
-					}
-					catch (final InterruptedException e) {}
+				final long request = frameProducer.request(region);
+				int[] frame = frameProducer.takeFrame();
+				if (wait || imageSource == null || awtImagePixels == null ||
+					awtImagePixels.length != imageSize)
+				{
+					frame = frameProducer.awaitFrame(request);
+				}
+				if (frame != null && frame != awtImagePixels) {
+					awtImagePixels = frame;
+					newPixels = true;
+				}
+				else if (frame == null &&
+					(awtImagePixels == null || awtImagePixels.length != imageSize))
+				{
+					// The FrameProducer has failed to composite a frame.
+					compositeOverlay(region, imageSize);
 				}
 			}
-
-			// Combine the RGB int-)images of all channels to the overlay RGB image.
-			for (int i = 0; i < imageSize; ++i) {
-				redValue = 0;
-				greenValue = 0;
-				blueValue = 0;
-				for (int j = 0; j < nChannels; ++j) {
-					if (!chDisplayProps[j].isDisplayedInOverlay()) continue;
-
-					redValue += (awtChannelPixels[j][i] >> 16) & 0xFF;
-					greenValue += (awtChannelPixels[j][i] >> 8) & 0xFF;
-					blueValue += (awtChannelPixels[j][i]) & 0xFF;
-					if (redValue > 255) redValue = 255;
-					if (greenValue > 255) greenValue = 255;
-					if (blueValue > 255) blueValue = 255;
+			else {
+				if (frameProducer != null) {
+					frameProducer.stop();
+					frameProducer = null;
 				}
-				awtImagePixels[i] = (redValue << 16) | (greenValue << 8) | (blueValue);
+				compositeOverlay(region, imageSize);
 			}
 
 			// Manage that the RGB image gets displayed.
@@ -1249,12 +1898,21 @@ public class Image5D extends ImagePlus {
 
 	/**
 	 * Updates this image from the pixel data in its associated ImageProcessor,
-	 * then displays it. Does nothing if there is no window associated with this
-	 * image (i.e. show() has not been called).
+	 * then displays it. Of the other channels, only changed display settings
+	 * are taken into account. Does nothing if there is no window associated
+	 * with this image (i.e. show() has not been called).
 	 */
 	@Override
 	public void updateAndDraw() {
 		if (win != null) ((Image5DWindow) win).setImagesUpdated();
+		// The pixels of the current channel may have been changed in place.
+		if (pasteRoi == null) invalidateOverlay(getCurrentChannel(), null);
+		if (pyramid != null && pasteRoi == null && ip != null) pyramid
+			.invalidate(ip.getPixels());
+		if (pasteRoi == null) {
+			writeBack(getCurrentChannel());
+			invalidateStatistics(getCurrentImageStackIndex());
+		}
 
 		super.updateAndDraw();
 //        if (ip != null) {
@@ -1307,6 +1965,8 @@ public class Image5D extends ImagePlus {
 			imageStackArrays[i] = null;
 
 		dummyImage = null;
+		zeroPlane = null;
+		stackView = null;
 
 		if (channelImps != null) for (int i = 0; i < channelImps.length; i++) {
 			channelImps[i].flush();
@@ -1323,9 +1983,18 @@ public class Image5D extends ImagePlus {
 			chDisplayProps[i] = null;
 
 		awtImagePixels = null;
-
-		if (awtChannelPixels != null) for (int i = 0; i < awtChannelPixels.length; i++)
-			awtChannelPixels[i] = null;
+		compositor = null;
+		if (frameProducer != null) frameProducer.stop();
+		frameProducer = null;
+		tileRenderer = null;
+		if (statistics != null) statistics.stop();
+		statistics = null;
+		sharedPixels = null;
+		pyramid = null;
+		reducedImage = null;
+		reducedPixels = null;
+		reducedSource = null;
+		reducedCompositor = null;
 
 //        if (channelCMReds!= null)
 //            for (int i=0; i<channelCMReds.length; i++)
@@ -1349,6 +2018,8 @@ public class Image5D extends ImagePlus {
 	@Override
 	public void paste() {
 		super.paste();
+		pasteRoi = getRoi();
+		pasteBounds = null;
 
 		if (win != null) {
 			((Image5DWindow) win).adaptRois(((Image5DCanvas) getCanvas()));
@@ -1371,6 +2042,8 @@ public class Image5D extends ImagePlus {
 
 			// make sure the clipboard is not null and get reference to it
 			super.copy(false);
+			// Parts of the overlay outside the window may not be calculated yet.
+			updateImage(null, true);
 			final ImagePlus imgClip = getClipboard();
 
 			// imagePixels: pixels of displayed AWT Image
@@ -1451,12 +2124,18 @@ public class Image5D extends ImagePlus {
 	 * @param dimension
 	 * @param newSize
 	 * @param fill if true, create black image for each position, if false, link a
-	 *          common dummy image to each position
+	 *          common dummy image to each position. The black images are one
+	 *          shared zero plane until a position is shown or its pixels are
+	 *          set, so the cost grows with the number of new planes only.
+	 *          Does nothing for virtual stacks, which includes the off-heap,
+	 *          compressed and chunked stacks and subset views: their number of
+	 *          planes is fixed.
 	 */
 	public synchronized void expandDimension(final int dimension,
 		final int newSize, final boolean fill)
 	{
 		if (imageStack.isVirtual()) return;
+		alignFrames();
 
 		if (dimension < 2 || dimension > nDimensions) throw new IllegalArgumentException(
 			"Invalid dimension: " + dimension);
@@ -1473,63 +2152,52 @@ public class Image5D extends ImagePlus {
 			else if (i > dimension) higherDimSize *= dimensionSize[i];
 		}
 
-		final int type = getType(), imageSize = dimensionSize[0] * dimensionSize[1];
-
-		// creates "dummy" image if needed
-		if (!fill && dummyImage == null) {
-			switch (type) {
-				case GRAY8:
-					dummyImage = new byte[imageSize];
-					break;
-				case GRAY16:
-					dummyImage = new short[imageSize];
-					break;
-				case GRAY32:
-					dummyImage = new float[imageSize];
-					break;
-			}
+		// Planes of the new positions all reference one array: a zero plane that
+		// is copied when processors get it, or a dummy image that stays shared.
+		final Object emptyPixels;
+		if (fill) {
+			if (zeroPlane == null) zeroPlane = createEmptyPixels();
+			emptyPixels = zeroPlane;
+		}
+		else {
+			if (dummyImage == null) dummyImage = createEmptyPixels();
+			emptyPixels = dummyImage;
 		}
 
-		final ImageStack newImageStack =
-			new ImageStack(width, height, grayColorModel);
-		// copy data references from old ImageStack to new ImageStack
-		for (int highIndex = 0; highIndex < higherDimSize; ++highIndex) {
-			final int baseIndexOld = highIndex * lowerDimSize * oldSize + 1;
-//			int baseIndexNew = highIndex*lowerDimSize*newSize+1;
-
-			for (int oldIndex = baseIndexOld; oldIndex < baseIndexOld + lowerDimSize *
-				oldSize; ++oldIndex)
-			{
-				newImageStack.addSlice(imageStack.getSliceLabel(oldIndex), imageStack
-					.getPixels(oldIndex));
-			}
-
-			if (fill) {
-				for (int newIndex = lowerDimSize * oldSize; newIndex < lowerDimSize *
-					newSize; ++newIndex)
-				{
-					switch (type) {
-						case GRAY8:
-							newImageStack.addSlice("", new byte[imageSize]);
-							break;
-						case GRAY16:
-							newImageStack.addSlice("", new short[imageSize]);
-							break;
-						case GRAY32:
-							newImageStack.addSlice("", new float[imageSize]);
-					}
-				}
+		final int oldBlockSize = lowerDimSize * oldSize;
+		final int newBlockSize = lowerDimSize * newSize;
+		if (higherDimSize == 1) {
+			// With only one block, e.g. when frames are added, the new planes go to
+			// the end of the stack.
+			for (int i = oldBlockSize; i < newBlockSize; ++i) {
+				imageStack.addSlice("", emptyPixels);
 			}
-			else {
-				for (int newIndex = lowerDimSize * oldSize; newIndex < lowerDimSize *
-					newSize; ++newIndex)
-				{
-					newImageStack.addSlice("", dummyImage);
-				}
+		}
+		else {
+			// Copy the data references from the old to the new ImageStack block by
+			// block.
+			final ImageStack newImageStack =
+				new ImageStack(width, height, higherDimSize * newBlockSize);
+			newImageStack.setColorModel(grayColorModel);
+			final Object[] oldPixels = imageStack.getImageArray();
+			final String[] oldLabels = imageStack.getSliceLabels();
+			final Object[] newPixels = newImageStack.getImageArray();
+			final String[] newLabels = newImageStack.getSliceLabels();
+			for (int highIndex = 0; highIndex < higherDimSize; ++highIndex) {
+				final int baseIndexOld = highIndex * oldBlockSize;
+				final int baseIndexNew = highIndex * newBlockSize;
+				System.arraycopy(oldPixels, baseIndexOld, newPixels, baseIndexNew,
+					oldBlockSize);
+				System.arraycopy(oldLabels, baseIndexOld, newLabels, baseIndexNew,
+					oldBlockSize);
+				Arrays.fill(newPixels, baseIndexNew + oldBlockSize, baseIndexNew +
+					newBlockSize, emptyPixels);
+				Arrays.fill(newLabels, baseIndexNew + oldBlockSize, baseIndexNew +
+					newBlockSize, "");
 			}
+			imageStack = newImageStack;
 		}
-
-		imageStack = newImageStack;
+		updateStatistics(higherDimSize == 1);
 
 		// update imageStackSize
 		imageStackSize = 1;
@@ -1540,6 +2208,15 @@ public class Image5D extends ImagePlus {
 		// update dimension sizes
 		super.setDimensions(dimensionSize[2], dimensionSize[3], dimensionSize[4]);
 
+		// Processors may change the new planes at the current position.
+		unsharePlanes();
+
+		// Point the current z-stack to the new imageStack.
+		if (stackView != null && getStack() == stackView) {
+			stackView.setView(imageStack, getCurrentStackOffset(),
+				getCurrentStackIncrement(), getNSlices());
+		}
+
 		// copy references to colorModels, and min/max-arrays and fill new ones.
 		if (dimension == colorDimension) {
 			// Copy ChannelCalibrations
@@ -1607,6 +2284,128 @@ public class Image5D extends ImagePlus {
 																						// Image5DWindow.
 	}
 
+	/**
+	 * Appends a frame to the image, e.g. while it is acquired. The planes are
+	 * ordered by channel, then slice: {@code planes[(slice - 1) * nChannels +
+	 * channel - 1]}. They are not copied. Can be called from any thread while
+	 * the image is shown: only references are inserted, so the cost per frame
+	 * does not grow with the number of frames. The window is asked to update,
+	 * and to show the new frame if it showed the last one, at the rate of its
+	 * RenderScheduler.
+	 * <p>
+	 * If a maximum number of frames is set (see {@link #setMaxFrames(int)}), the
+	 * oldest frames are removed to make room for the new one.
+	 */
+	public synchronized void appendFrame(final Object[] planes) {
+		if (imageStack.isVirtual() || imageStack.getImageArray() == null) {
+			throw new IllegalStateException(
+				"Frames can't be appended to a virtual stack.");
+		}
+		final int nChannels = getNChannels();
+		final int nSlices = getNSlices();
+		final int frameSize = nChannels * nSlices;
+		if (planes == null || planes.length != frameSize) {
+			throw new IllegalArgumentException("Expected " + frameSize + " planes.");
+		}
+		final Class<?> pixelsClass = imageStack.getPixels(1).getClass();
+		for (final Object pixels : planes) {
+			if (pixels == null || pixels.getClass() != pixelsClass ||
+				Array.getLength(pixels) != width * height)
+			{
+				throw new IllegalArgumentException("Invalid pixels array.");
+			}
+		}
+
+		final int nFrames = getNFrames();
+		final int nDrop =
+			maxFrames > 0 ? Math.min(nFrames, nFrames + 1 - maxFrames) : 0;
+		final int nKept = nFrames - Math.max(nDrop, 0);
+		if (nDrop == 1) {
+			// A full ring: the new frame replaces the oldest one in place, and
+			// the first frame moves on by one. Only the planes of one frame change.
+			final int first = ringHead * frameSize;
+			final Object[] pixels = imageStack.getImageArray();
+			for (int i = 0; i < frameSize; i++) {
+				if (pyramid != null) pyramid.invalidate(pixels[first + i]);
+				imageStack.setPixels(planes[i], first + i + 1);
+				imageStack.setSliceLabel("", first + i + 1);
+				invalidateStatistics(first + i + 1);
+			}
+			ringHead = (ringHead + 1) % nFrames;
+		}
+		else if (nDrop > 0) {
+			// Fewer frames are kept than before, e.g. because the maximum was
+			// lowered: move the references of the kept frames to the front and
+			// reuse the slot of the last one for the new frame.
+			alignFrames();
+			final Object[] pixels = imageStack.getImageArray();
+			final String[] labels = imageStack.getSliceLabels();
+			if (pyramid != null) {
+				for (int i = 0; i < nDrop * frameSize; i++) {
+					pyramid.invalidate(pixels[i]);
+				}
+			}
+			System.arraycopy(pixels, nDrop * frameSize, pixels, 0, nKept *
+				frameSize);
+			System.arraycopy(labels, nDrop * frameSize, labels, 0, nKept *
+				frameSize);
+			while (imageStack.getSize() > (nKept + 1) * frameSize) {
+				imageStack.deleteLastSlice();
+			}
+			for (int i = 0; i < frameSize; i++) {
+				imageStack.setPixels(planes[i], nKept * frameSize + i + 1);
+				imageStack.setSliceLabel("", nKept * frameSize + i + 1);
+			}
+			// Statistics are kept by index in the imageStack: move them with the
+			// planes, and compute those of the new frame.
+			if (statistics != null && statistics.getStack() == imageStack) {
+				statistics.rotate(nDrop * frameSize);
+				statistics.setSize(nKept * frameSize);
+				statistics.setSize((nKept + 1) * frameSize);
+			}
+		}
+		else {
+			alignFrames();
+			for (int i = 0; i < frameSize; i++) {
+				imageStack.addSlice("", planes[i]);
+			}
+			updateStatistics(true);
+		}
+
+		imageStackSize = (nKept + 1) * frameSize;
+		super.setDimensions(nChannels, nSlices, nKept + 1);
+
+		if (nDrop > 0) {
+			// Keep showing the same planes, which moved to an earlier frame, or the
+			// first frame that is left if the shown one was removed.
+			final boolean removed = currentPosition[4] < nDrop;
+			currentPosition[4] = removed ? 0 : currentPosition[4] - nDrop;
+			if (stackView != null && getStack() == stackView) {
+				stackView.setView(imageStack, getCurrentStackOffset(),
+					getCurrentStackIncrement(), nSlices);
+			}
+			if (removed) setCurrentPosition(getCurrentPosition(), true);
+		}
+
+		if (win != null) {
+			((Image5DWindow) win).frameAppended();
+		}
+	}
+
+	/**
+	 * Sets the maximum number of frames. When more frames are appended by
+	 * {@link #appendFrame(Object[])}, the oldest ones are removed, so that the
+	 * image works as a ring buffer of the latest frames. 0 for no limit.
+	 */
+	public synchronized void setMaxFrames(final int maxFrames) {
+		this.maxFrames = Math.max(maxFrames, 0);
+	}
+
+	/** Returns the maximum number of frames, 0 if there is no limit. */
+	public synchronized int getMaxFrames() {
+		return maxFrames;
+	}
+
 	/**
 	 * Make setDimensions non-functional, so that no one messes up stack
 	 * dimensions in the GUI.
@@ -1620,13 +2419,13 @@ public class Image5D extends ImagePlus {
 
 //	 instance utility methods
 	protected int getCurrentSliceOffset() {
-		return (currentPosition[4] * getNSlices() * getNChannels() +
-			currentPosition[3] * getNChannels() + 1);
+		return (getImageStackFrame(currentPosition[4]) * getNSlices() *
+			getNChannels() + currentPosition[3] * getNChannels() + 1);
 	}
 
 	protected int getCurrentStackOffset() {
-		return (currentPosition[4] * getNSlices() * getNChannels() +
-			currentPosition[2] + 1);
+		return (getImageStackFrame(currentPosition[4]) * getNSlices() *
+			getNChannels() + currentPosition[2] + 1);
 	}
 
 	protected int getCurrentStackIncrement() {
@@ -1766,29 +2565,123 @@ public class Image5D extends ImagePlus {
 		return channelIPs[channel - 1];
 	}
 
+	/**
+	 * Returns an Image5D that shows the given channels, nSlices slices from
+	 * firstSlice and nFrames frames from firstFrame (all 1-based) of this image
+	 * and, if crop is not null, only that rectangle of the planes. No pixels are
+	 * copied: the view reads the planes of this image when they are needed (see
+	 * {@link I5DSubStack}), so it can be passed to plugins that only read a few
+	 * planes, like a projection or a montage. Without a crop rectangle, changes
+	 * of the view show in this image. The view keeps the calibration and channel
+	 * settings of this image. It must not be used after the dimensions of this
+	 * image changed.
+	 * 
+	 * @throws IllegalArgumentException if the subset is empty or out of range.
+	 */
+	public Image5D createView(final int[] channels, final int firstSlice,
+		final int nSlices, final int firstFrame, final int nFrames,
+		final Rectangle crop)
+	{
+		storeCurrentChannelProperties();
+		writeBack(0);
+		final I5DSubStack stack =
+			new I5DSubStack(this, channels, firstSlice, nSlices, firstFrame,
+				nFrames, crop);
+		final Image5D view =
+			new Image5D(WindowManager.makeUniqueName(getTitle()), stack,
+				channels.length, nSlices, nFrames);
+
+		final Calibration cal = getCalibration().copy();
+		if (crop != null) {
+			cal.xOrigin -= crop.x;
+			cal.yOrigin -= crop.y;
+		}
+		cal.zOrigin -= firstSlice - 1;
+		view.setCalibration(cal);
+		for (int c = 1; c <= channels.length; c++) {
+			view.setChannelCalibration(c, getChannelCalibration(channels[c - 1])
+				.copy());
+			view.setChannelDisplayProperties(c, getChannelDisplayProperties(
+				channels[c - 1]).copy());
+			view.restoreChannelProperties(c);
+		}
+		view.restoreCurrentChannelProperties();
+		view.setDisplayGrayInTiles(displayGrayInTiles);
+		view.setDisplayMode(displayMode);
+		return view;
+	}
+
+	/**
+	 * Returns a copy of this image with the same channel settings and position.
+	 * For stacks in memory, the copy shares the pixel arrays with this image
+	 * copy-on-write: each image copies a shared plane when it moves to a
+	 * position where processors can change it.
+	 */
 	@Override
 	public Image5D duplicate() {
 		final String newTitle = WindowManager.makeUniqueName(getTitle());
-		final ImagePlus impOrig = new ImagePlus(newTitle, imageStack);
-		final ImagePlus impCopy =
-			(new ij.plugin.filter.Duplicater()).duplicateStack(impOrig, newTitle);
-		final ImageStack stackCopy = impCopy.getStack();
+		final ImageStack stackCopy;
+		Set<Object> shared = null;
+		if (imageStack.isVirtual() || imageStack.getImageArray() == null) {
+			final ImagePlus impOrig = new ImagePlus(newTitle, imageStack);
+			final ImagePlus impCopy =
+				(new ij.plugin.filter.Duplicater()).duplicateStack(impOrig, newTitle);
+			stackCopy = impCopy.getStack();
+		}
+		else {
+			alignFrames();
+			// Share the pixel arrays copy-on-write. Only the planes that processors
+			// can change right away are copied: those at the current position of
+			// this image and at the first position, where the duplicate starts.
+			final IdentityHashMap<Object, Object> copies =
+				new IdentityHashMap<Object, Object>();
+			final boolean[] exposed = new boolean[imageStack.getSize() + 1];
+			for (final int n : getExposedPlanes(currentPosition)) {
+				exposed[n] = true;
+			}
+			for (final int n : getExposedPlanes(new int[nDimensions])) {
+				exposed[n] = true;
+			}
+			for (int n = 1; n <= imageStack.getSize(); n++) {
+				final Object pixels = imageStack.getPixels(n);
+				if (exposed[n] && pixels != zeroPlane && !copies.containsKey(pixels)) {
+					copies.put(pixels, copyPixels(pixels));
+				}
+			}
+			shared = Collections.newSetFromMap(new WeakHashMap<Object, Boolean>());
+			stackCopy =
+				new ImageStack(width, height, imageStack.getColorModel());
+			for (int n = 1; n <= imageStack.getSize(); n++) {
+				Object pixels = imageStack.getPixels(n);
+				// The zero plane stays shared; each exposed position gets its own.
+				if (pixels == zeroPlane) {
+					if (exposed[n]) pixels = createEmptyPixels();
+				}
+				else if (copies.containsKey(pixels)) pixels = copies.get(pixels);
+				else shared.add(pixels);
+				stackCopy.addSlice(imageStack.getSliceLabel(n), pixels);
+			}
+			if (sharedPixels == null) sharedPixels =
+				Collections.newSetFromMap(new WeakHashMap<Object, Boolean>());
+			sharedPixels.addAll(shared);
+		}
 
 		final Image5D i5d =
 			new Image5D(newTitle, stackCopy, getNChannels(), getNSlices(),
 				getNFrames());
+		i5d.sharedPixels = shared;
+		if (shared != null) i5d.zeroPlane = zeroPlane;
 
 		// Copy the calibration data.
 		i5d.setCalibration(getCalibration().copy());
 
 		// Copy the arrays for channel display handling.
 		for (int i = 0; i < getNChannels(); i++) {
-			i5d.setCurrentPosition(0, 0, i, 0, 0);
 			i5d.chCalibration[i] = chCalibration[i].copy();
 			i5d.chDisplayProps[i] = chDisplayProps[i].copy();
-
-			i5d.restoreCurrentChannelProperties();
+			i5d.restoreChannelProperties(i + 1);
 		}
+		i5d.restoreCurrentChannelProperties();
 
 		i5d.setDisplayGrayInTiles(displayGrayInTiles);
 		i5d.setDisplayMode(displayMode);
@@ -1799,6 +2692,63 @@ public class Image5D extends ImagePlus {
 		return i5d;
 	}
 
+	/**
+	 * Returns the indices in the imageStack of the planes that processors can
+	 * change in place at the given position: the z-stack of its channel and
+	 * frame, and the planes of the other channels at its slice.
+	 */
+	private int[] getExposedPlanes(final int[] position) {
+		final int nSlices = getNSlices();
+		final int nChannels = getNChannels();
+		final int[] planes = new int[nSlices + nChannels];
+		for (int z = 0; z < nSlices; z++) {
+			planes[z] =
+				getImageStackIndex(position[colorDimension] + 1, z + 1, position[4] + 1);
+		}
+		for (int c = 0; c < nChannels; c++) {
+			planes[nSlices + c] =
+				getImageStackIndex(c + 1, position[3] + 1, position[4] + 1);
+		}
+		return planes;
+	}
+
+	/**
+	 * Replaces pixel arrays at the current position that are shared with a
+	 * duplicate, and the zero plane, by private copies, before they are handed
+	 * to processors.
+	 */
+	private void unsharePlanes() {
+		if (zeroPlane == null && (sharedPixels == null || sharedPixels.isEmpty())) {
+			return;
+		}
+		final IdentityHashMap<Object, Object> copies =
+			new IdentityHashMap<Object, Object>();
+		for (final int n : getExposedPlanes(currentPosition)) {
+			final Object pixels = imageStack.getPixels(n);
+			if (pixels == null) continue;
+			if (pixels == zeroPlane) {
+				imageStack.setPixels(createEmptyPixels(), n);
+				continue;
+			}
+			if (sharedPixels == null || !sharedPixels.contains(pixels)) continue;
+			// Planes that share one array within this image keep sharing the copy.
+			Object copy = copies.get(pixels);
+			if (copy == null) {
+				copy = copyPixels(pixels);
+				copies.put(pixels, copy);
+			}
+			imageStack.setPixels(copy, n);
+		}
+	}
+
+	private static Object copyPixels(final Object pixels) {
+		if (pixels instanceof byte[]) return ((byte[]) pixels).clone();
+		if (pixels instanceof short[]) return ((short[]) pixels).clone();
+		if (pixels instanceof float[]) return ((float[]) pixels).clone();
+		if (pixels instanceof int[]) return ((int[]) pixels).clone();
+		return pixels;
+	}
+
 // static utility methods.
 	/**
 	 * Called from constructor Image5D(String title, ImageProcessor ip) in call to
@@ -0,0 +1,443 @@
+//
+// PlaneStatistics.java
+//
+
+/*
+Image5D plugins for 5-dimensional image stacks in ImageJ.
+
+Copyright (c) 2010, Joachim Walter and ImageJDev.org.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package sc.fiji.i5d;
+
+import ij.ImageStack;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Minimum, maximum, mean and a coarse histogram of each plane of an image
+ * stack, so that display ranges over many planes (e.g. all slices and frames
+ * of a channel) can be determined without scanning the pixels again.
+ * <p>
+ * The statistics are computed on background threads after {@link #start()}.
+ * Planes whose pixels change have to be reported with
+ * {@link #invalidate(int)}, which computes them again.
+ */
+public class PlaneStatistics {
+
+	/** Number of bins of the histogram of each plane. */
+	public static final int N_BINS = 256;
+
+	/**
+	 * Number of bins into which the histograms of several planes are added up.
+	 * More than N_BINS, so that planes with a wider range than the others don't
+	 * coarsen the result much.
+	 */
+	static final int RANGE_BINS = 16 * N_BINS;
+
+	static final int COMPUTE_THREADS = 2;
+
+	private static ExecutorService computeExecutor;
+
+	private final ImageStack stack;
+	// The arrays may be longer than the number of planes, so that planes can be
+	// added without copying them each time.
+	private Statistics[] statistics;
+	// Incremented when a plane is invalidated, so that results computed from
+	// its old pixels are discarded.
+	private int[] versions;
+	private boolean[] queued;
+	private int size;
+	private int nComputed;
+	private boolean stopped;
+
+	public PlaneStatistics(final ImageStack stack) {
+		this.stack = stack;
+		size = stack.getSize();
+		statistics = new Statistics[size];
+		versions = new int[size];
+		queued = new boolean[size];
+	}
+
+	public ImageStack getStack() {
+		return stack;
+	}
+
+	/** Returns the number of planes. */
+	public synchronized int getSize() {
+		return size;
+	}
+
+	/**
+	 * Sets the number of planes, after planes were added to the end of the
+	 * stack or removed from it. The statistics of the other planes are kept,
+	 * and those of added planes are computed in the background if the
+	 * statistics are started.
+	 */
+	public synchronized void setSize(final int newSize) {
+		if (newSize < 0) throw new IllegalArgumentException(
+			"Invalid number of planes: " + newSize);
+		if (newSize > statistics.length) {
+			// Grow by half, so that planes can be added one by one at constant
+			// cost on average.
+			final int capacity = Math.max(newSize, statistics.length * 3 / 2);
+			statistics = Arrays.copyOf(statistics, capacity);
+			versions = Arrays.copyOf(versions, capacity);
+			queued = Arrays.copyOf(queued, capacity);
+		}
+		for (int i = newSize; i < size; i++) {
+			versions[i]++;
+			if (statistics[i] != null) {
+				statistics[i] = null;
+				nComputed--;
+			}
+		}
+		final int oldSize = size;
+		size = newSize;
+		if (!stopped) {
+			for (int n = oldSize + 1; n <= newSize; n++) {
+				schedule(n);
+			}
+		}
+	}
+
+	/**
+	 * Moves the statistics of the planes down by shift places, after the
+	 * planes of the stack were rotated the same way: the statistics of plane n
+	 * become those of plane n - shift, and those of the first shift planes
+	 * those of the last ones.
+	 */
+	public synchronized void rotate(final int shift) {
+		if (size == 0) return;
+		final int k = ((shift % size) + size) % size;
+		if (k == 0) return;
+		final Statistics[] rotated = new Statistics[size];
+		System.arraycopy(statistics, k, rotated, 0, size - k);
+		System.arraycopy(statistics, 0, rotated, size - k, k);
+		System.arraycopy(rotated, 0, statistics, 0, size);
+		// Results that are being computed belong to the planes before the
+		// rotation.
+		for (int i = 0; i < size; i++) {
+			versions[i]++;
+		}
+		if (!stopped) start();
+	}
+
+	/** Computes the statistics of all planes that are not known yet. */
+	public synchronized void start() {
+		stopped = false;
+		for (int n = 1; n <= size; n++) {
+			if (statistics[n - 1] == null) schedule(n);
+		}
+	}
+
+	/** Stops computing statistics in the background. */
+	public synchronized void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Returns the statistics of plane n, where {@code 1<=n<=size}, or null if
+	 * they are not computed yet.
+	 */
+	public synchronized Statistics get(final int n) {
+		checkPlane(n);
+		return statistics[n - 1];
+	}
+
+	/**
+	 * Returns the statistics of plane n. Computes them if they are not known
+	 * yet.
+	 */
+	public Statistics compute(final int n) {
+		final int version;
+		synchronized (this) {
+			checkPlane(n);
+			if (statistics[n - 1] != null) return statistics[n - 1];
+			version = versions[n - 1];
+		}
+		final Statistics s = Statistics.of(stack.getPixels(n));
+		synchronized (this) {
+			if (versions[n - 1] == version) put(n, s);
+		}
+		return s;
+	}
+
+	/**
+	 * Marks plane n as changed. Its statistics are computed again in the
+	 * background.
+	 */
+	public synchronized void invalidate(final int n) {
+		checkPlane(n);
+		versions[n - 1]++;
+		if (statistics[n - 1] != null) {
+			statistics[n - 1] = null;
+			nComputed--;
+		}
+		if (!stopped) schedule(n);
+	}
+
+	/** Returns true if the statistics of all planes are known. */
+	public synchronized boolean isComplete() {
+		return nComputed == size;
+	}
+
+	/** Returns the number of planes whose statistics are known. */
+	public synchronized int getNComputed() {
+		return nComputed;
+	}
+
+	/**
+	 * Returns the display range {min, max} of the given planes, like
+	 * "Enhance Contrast" determines it: <code>saturated</code> percent of the
+	 * pixels are saturated, half of them at each end. Without saturation, the
+	 * range is the minimum and maximum of the planes. Statistics that are not
+	 * known yet are computed. Returns null if the planes contain no pixel
+	 * values.
+	 */
+	public double[] getRange(final int[] planes, final double saturated) {
+		final Statistics[] s = new Statistics[planes.length];
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+		long nPixels = 0;
+		for (int i = 0; i < planes.length; i++) {
+			s[i] = compute(planes[i]);
+			if (s[i].getNPixels() == 0) continue;
+			min = Math.min(min, s[i].getMin());
+			max = Math.max(max, s[i].getMax());
+			nPixels += s[i].getNPixels();
+		}
+		if (nPixels == 0) return null;
+		if (saturated <= 0.0 || max == min) return new double[] { min, max };
+
+		// Add up the histograms of the planes in bins of the whole range.
+		final long[] histogram = new long[RANGE_BINS];
+		final double binSize = (max - min) / RANGE_BINS;
+		for (final Statistics plane : s) {
+			if (plane.getNPixels() == 0) continue;
+			final double planeBinSize = plane.getBinSize();
+			for (int b = 0; b < N_BINS; b++) {
+				final int count = plane.histogram[b];
+				if (count == 0) continue;
+				final double value = plane.getMin() + (b + 0.5) * planeBinSize;
+				int bin = (int) ((value - min) / binSize);
+				if (bin < 0) bin = 0;
+				else if (bin >= RANGE_BINS) bin = RANGE_BINS - 1;
+				histogram[bin] += count;
+			}
+		}
+
+		// As in ContrastEnhancer.getMinAndMax()
+		final long threshold = (long) (nPixels * saturated / 200.0);
+		int hmin = 0;
+		long count = 0;
+		while (hmin < RANGE_BINS - 1) {
+			count += histogram[hmin];
+			if (count > threshold) break;
+			hmin++;
+		}
+		int hmax = RANGE_BINS - 1;
+		count = 0;
+		while (hmax > 0) {
+			count += histogram[hmax];
+			if (count > threshold) break;
+			hmax--;
+		}
+		if (hmax < hmin) return new double[] { min, max };
+		return new double[] { min + hmin * binSize, min + (hmax + 1) * binSize };
+	}
+
+	private void put(final int n, final Statistics s) {
+		if (statistics[n - 1] == null) nComputed++;
+		statistics[n - 1] = s;
+	}
+
+	private void schedule(final int n) {
+		if (queued[n - 1]) return;
+		queued[n - 1] = true;
+		getComputeExecutor().execute(new Runnable() {
+
+			@Override
+			public void run() {
+				synchronized (PlaneStatistics.this) {
+					queued[n - 1] = false;
+					// The plane may have been removed in the meantime.
+					if (stopped || n > size) return;
+				}
+				compute(n);
+			}
+		});
+	}
+
+	private void checkPlane(final int n) {
+		if (n < 1 || n > size) throw new IllegalArgumentException(
+			"Plane out of range: " + n);
+	}
+
+	private static synchronized ExecutorService getComputeExecutor() {
+		if (computeExecutor == null) {
+			computeExecutor =
+				Executors.newFixedThreadPool(COMPUTE_THREADS, new ThreadFactory() {
+
+					private int count;
+
+					@Override
+					public synchronized Thread newThread(final Runnable r) {
+						final Thread thread =
+							new Thread(r, "Image5D-Statistics-" + (++count));
+						thread.setDaemon(true);
+						thread.setPriority(Thread.MIN_PRIORITY);
+						return thread;
+					}
+				});
+		}
+		return computeExecutor;
+	}
+
+	/**
+	 * Statistics of one plane. The histogram has {@link #N_BINS} bins from the
+	 * minimum to the maximum of the plane. NaN pixels of float planes are not
+	 * counted.
+	 */
+	public static class Statistics {
+
+		private final double min, max, mean;
+		private final long nPixels;
+		final int[] histogram;
+
+		Statistics(final double min, final double max, final double mean,
+			final long nPixels, final int[] histogram)
+		{
+			this.min = min;
+			this.max = max;
+			this.mean = mean;
+			this.nPixels = nPixels;
+			this.histogram = histogram;
+		}
+
+		public double getMin() {
+			return min;
+		}
+
+		public double getMax() {
+			return max;
+		}
+
+		public double getMean() {
+			return mean;
+		}
+
+		/** Returns the number of pixels with a value (i.e. not NaN). */
+		public long getNPixels() {
+			return nPixels;
+		}
+
+		/** Returns the width of the histogram bins. */
+		public double getBinSize() {
+			return (max - min) / N_BINS;
+		}
+
+		/** Returns a copy of the histogram. */
+		public int[] getHistogram() {
+			return histogram.clone();
+		}
+
+		/**
+		 * Computes the statistics of a byte, short or float array. Returns empty
+		 * statistics for other pixel types.
+		 */
+		public static Statistics of(final Object pixels) {
+			if (pixels instanceof byte[]) return of((byte[]) pixels);
+			if (pixels instanceof short[]) return of((short[]) pixels);
+			if (pixels instanceof float[]) return of((float[]) pixels);
+			return new Statistics(0, 0, 0, 0, new int[N_BINS]);
+		}
+
+		private static Statistics of(final byte[] pixels) {
+			final int[] counts = new int[256];
+			for (final byte p : pixels) {
+				counts[p & 0xff]++;
+			}
+			return fromCounts(counts, pixels.length);
+		}
+
+		private static Statistics of(final short[] pixels) {
+			final int[] counts = new int[65536];
+			for (final short p : pixels) {
+				counts[p & 0xffff]++;
+			}
+			return fromCounts(counts, pixels.length);
+		}
+
+		/** Bins a full histogram of integer values into N_BINS bins. */
+		private static Statistics fromCounts(final int[] counts, final int n) {
+			final int[] histogram = new int[N_BINS];
+			if (n == 0) return new Statistics(0, 0, 0, 0, histogram);
+			int min = 0;
+			while (counts[min] == 0) {
+				min++;
+			}
+			int max = counts.length - 1;
+			while (counts[max] == 0) {
+				max--;
+			}
+			double sum = 0;
+			final double binSize = (double) (max - min) / N_BINS;
+			for (int v = min; v <= max; v++) {
+				if (counts[v] == 0) continue;
+				sum += (double) v * counts[v];
+				int bin = binSize == 0 ? 0 : (int) ((v - min) / binSize);
+				if (bin >= N_BINS) bin = N_BINS - 1;
+				histogram[bin] += counts[v];
+			}
+			return new Statistics(min, max, sum / n, n, histogram);
+		}
+
+		private static Statistics of(final float[] pixels) {
+			double min = Double.MAX_VALUE, max = -Double.MAX_VALUE, sum = 0;
+			int n = 0;
+			for (final float p : pixels) {
+				if (Float.isNaN(p)) continue;
+				if (p < min) min = p;
+				if (p > max) max = p;
+				sum += p;
+				n++;
+			}
+			final int[] histogram = new int[N_BINS];
+			if (n == 0) return new Statistics(0, 0, 0, 0, histogram);
+			final double scale = max > min ? N_BINS / (max - min) : 0;
+			for (final float p : pixels) {
+				if (Float.isNaN(p)) continue;
+				int bin = (int) ((p - min) * scale);
+				if (bin >= N_BINS) bin = N_BINS - 1;
+				histogram[bin]++;
+			}
+			return new Statistics(min, max, sum / n, n, histogram);
+		}
+	}
+
+}
@@ -0,0 +1,573 @@
+//
+// PyramidCache.java
+//
+
+/*
+Image5D plugins for 5-dimensional image stacks in ImageJ.
+
+Copyright (c) 2010, Joachim Walter and ImageJDev.org.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package sc.fiji.i5d;
+
+import ij.IJ;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Least recently used cache of downsampled versions of image planes, bounded by
+ * the number of bytes it holds. Level k of a plane is the plane reduced by a
+ * factor of 2^k in each direction, each pixel being the average of a 2x2 block
+ * of level k-1. Zoomed-out views are displayed from the coarsest level that
+ * still has at least the resolution of the screen, so their cost does not
+ * depend on the size of the planes.
+ * <p>
+ * Levels are stored per pixel array, which is only weakly referenced. If the
+ * pixels of a plane are changed in place, {@link #invalidate(Object)} has to be
+ * called.
+ * <p>
+ * Levels are built on background threads by {@link #prefetch} and
+ * {@link #request}, so that painting does not have to wait for them: it can
+ * use {@link #getCached(Object, int)} and show the full resolution plane until
+ * the level is ready.
+ */
+public class PyramidCache {
+
+	/** The coarsest level that is built. */
+	public static final int MAX_LEVEL = 8;
+
+	static final int BUILD_THREADS = 2;
+
+	/** Number of pixels below which downsampling is not split further. */
+	static final int MIN_PIXELS_PER_TASK = 1 << 16;
+
+	/**
+	 * Maximum number of builds that wait to be run. The oldest ones are dropped,
+	 * because the position has moved on since they were requested.
+	 */
+	static final int MAX_PREFETCHES = 32;
+
+	private static ExecutorService buildExecutor;
+
+	private final LinkedHashMap<PlaneKey, Object[]> planes =
+		new LinkedHashMap<PlaneKey, Object[]>(16, 0.75f, true);
+	// Planes whose levels are being built, with the callbacks to run when they
+	// are ready.
+	private final HashMap<PlaneKey, List<Runnable>> pending =
+		new HashMap<PlaneKey, List<Runnable>>();
+	// Builds that have not finished, in the order they were requested.
+	private final Set<Future<?>> queued = new LinkedHashSet<Future<?>>();
+	private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+
+	private long maxBytes;
+	private long bytes;
+
+	private long hits;
+	private long misses;
+
+	/** Creates a cache that uses up to an eighth of the maximum memory. */
+	public PyramidCache() {
+		this(IJ.maxMemory() / 8);
+	}
+
+	public PyramidCache(final long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the level with a reduction factor of at most 1/magnification, i.e.
+	 * the coarsest level that can be displayed at the given magnification
+	 * without loss of resolution. Returns 0 for magnifications above 0.5.
+	 */
+	public static int getLevel(final double magnification) {
+		int level = 0;
+		while (level < MAX_LEVEL && magnification * (2 << level) <= 1.0) {
+			level++;
+		}
+		return level;
+	}
+
+	/** Returns the width or height of a plane of the given size at level. */
+	public static int getLevelSize(final int size, final int level) {
+		return (size + (1 << level) - 1) >> level;
+	}
+
+	/**
+	 * Returns the pixels of the plane reduced to the given level. Missing levels
+	 * are calculated from the finest available one and cached. Returns the
+	 * plane itself for level 0 and null if the pixel type is not supported.
+	 */
+	public Object get(final Object pixels, final int width, final int height,
+		final int level)
+	{
+		final Object cached = getCached(pixels, level);
+		if (cached != null) return cached;
+		return build(pixels, width, height, level);
+	}
+
+	/**
+	 * Returns the pixels of the plane reduced to the given level if they are
+	 * cached, without calculating them. Returns the plane itself for level 0
+	 * and null otherwise.
+	 */
+	public Object getCached(final Object pixels, final int level) {
+		if (level < 0 || level > MAX_LEVEL) throw new IllegalArgumentException(
+			"Invalid level: " + level);
+		if (level == 0) return pixels;
+		synchronized (this) {
+			purge();
+			final Object[] levels = planes.get(new PlaneKey(pixels, null));
+			if (levels != null && levels[level] != null) {
+				hits++;
+				return levels[level];
+			}
+			misses++;
+			return null;
+		}
+	}
+
+	/**
+	 * Calculates the missing levels up to the given one from the finest
+	 * available level and caches them. Returns null if the pixel type is not
+	 * supported.
+	 */
+	private Object build(final Object pixels, final int width, final int height,
+		final int level)
+	{
+		if (!(pixels instanceof byte[] || pixels instanceof short[] ||
+			pixels instanceof float[]))
+		{
+			return null;
+		}
+
+		Object source = pixels;
+		int sourceLevel = 0;
+		synchronized (this) {
+			final Object[] levels = planes.get(new PlaneKey(pixels, null));
+			if (levels != null) {
+				for (int k = level; k > 0; k--) {
+					if (levels[k] != null) {
+						source = levels[k];
+						sourceLevel = k;
+						break;
+					}
+				}
+			}
+		}
+
+		for (int k = sourceLevel + 1; k <= level; k++) {
+			source =
+				downsample(source, getLevelSize(width, k - 1),
+					getLevelSize(height, k - 1));
+			put(pixels, k, source);
+		}
+		return source;
+	}
+
+	/**
+	 * Builds the given level of the plane returned by source on a background
+	 * thread, unless it is already cached or being built.
+	 */
+	public void prefetch(final Callable<Object> source, final int width,
+		final int height, final int level)
+	{
+		submit(source, width, height, level, null);
+	}
+
+	/**
+	 * Builds the given level of the plane on a background thread, unless it is
+	 * already cached or being built, and runs whenReady on that thread when the
+	 * level is cached.
+	 */
+	public void request(final Object pixels, final int width, final int height,
+		final int level, final Runnable whenReady)
+	{
+		submit(new Callable<Object>() {
+
+			@Override
+			public Object call() {
+				return pixels;
+			}
+		}, width, height, level, whenReady);
+	}
+
+	/**
+	 * Drops the builds that have not started yet, e.g. when the direction of
+	 * browsing reverses. Builds that are already running finish.
+	 */
+	public void cancelPrefetches() {
+		final Future<?>[] tasks;
+		synchronized (this) {
+			tasks = queued.toArray(new Future<?>[queued.size()]);
+			queued.clear();
+		}
+		for (final Future<?> task : tasks) {
+			task.cancel(false);
+		}
+	}
+
+	private void submit(final Callable<Object> source, final int width,
+		final int height, final int level, final Runnable whenReady)
+	{
+		final FutureTask<Object> task = new FutureTask<Object>(new Runnable() {
+
+			@Override
+			public void run() {
+				buildInBackground(source, width, height, level, whenReady);
+			}
+		}, null)
+		{
+
+			@Override
+			protected void done() {
+				// Also called when the build is dropped before it has run.
+				synchronized (PyramidCache.this) {
+					queued.remove(this);
+				}
+			}
+		};
+		synchronized (this) {
+			// Drop the oldest builds. Those that are already running finish.
+			final Iterator<Future<?>> iter = queued.iterator();
+			while (queued.size() >= MAX_PREFETCHES && iter.hasNext()) {
+				final Future<?> oldest = iter.next();
+				iter.remove();
+				oldest.cancel(false);
+			}
+			queued.add(task);
+		}
+		getBuildExecutor().execute(task);
+	}
+
+	private void buildInBackground(final Callable<Object> source,
+		final int width, final int height, final int level,
+		final Runnable whenReady)
+	{
+		final Object pixels;
+		try {
+			pixels = source.call();
+		}
+		catch (final Exception e) {
+			return;
+		}
+		if (pixels == null) return;
+		final PlaneKey key = new PlaneKey(pixels, null);
+		final boolean cached;
+		synchronized (this) {
+			final List<Runnable> callbacks = pending.get(key);
+			if (callbacks != null) {
+				// Another thread builds the levels of the plane and runs the callback.
+				if (whenReady != null) callbacks.add(whenReady);
+				return;
+			}
+			final Object[] levels = planes.get(key);
+			cached = levels != null && levels[level] != null;
+			if (!cached) {
+				final List<Runnable> list = new ArrayList<Runnable>();
+				if (whenReady != null) list.add(whenReady);
+				pending.put(key, list);
+			}
+		}
+		if (cached) {
+			if (whenReady != null) whenReady.run();
+			return;
+		}
+		final List<Runnable> callbacks;
+		try {
+			build(pixels, width, height, level);
+		}
+		finally {
+			synchronized (this) {
+				callbacks = pending.remove(key);
+			}
+		}
+		for (final Runnable callback : callbacks) {
+			callback.run();
+		}
+	}
+
+	/** Removes all levels of the plane, e.g. after its pixels were changed. */
+	public synchronized void invalidate(final Object pixels) {
+		final Object[] levels = planes.remove(new PlaneKey(pixels, null));
+		if (levels != null) bytes -= sizeOf(levels);
+	}
+
+	/** Removes all planes from the cache. */
+	public synchronized void clear() {
+		planes.clear();
+		bytes = 0;
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public synchronized void setMaxBytes(final long maxBytes) {
+		this.maxBytes = maxBytes;
+		trim();
+	}
+
+	/** Returns the number of bytes of all cached levels. */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/** Number of requests for a level that was cached. */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/** Number of requests that had to calculate the level. */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized void resetCounters() {
+		hits = 0;
+		misses = 0;
+	}
+
+	/** Adds a level of the plane and evicts the least recently used planes. */
+	private synchronized void put(final Object pixels, final int level,
+		final Object levelPixels)
+	{
+		final long size = SliceCache.sizeOf(levelPixels);
+		if (size > maxBytes) return;
+		final PlaneKey key = new PlaneKey(pixels, null);
+		Object[] levels = planes.get(key);
+		if (levels == null) {
+			levels = new Object[MAX_LEVEL + 1];
+			planes.put(new PlaneKey(pixels, collected), levels);
+		}
+		if (levels[level] != null) bytes -= SliceCache.sizeOf(levels[level]);
+		levels[level] = levelPixels;
+		bytes += size;
+		trim();
+	}
+
+	private void trim() {
+		final Iterator<Object[]> iter = planes.values().iterator();
+		while (bytes > maxBytes && iter.hasNext()) {
+			bytes -= sizeOf(iter.next());
+			iter.remove();
+		}
+	}
+
+	/** Removes the levels of planes that have been garbage collected. */
+	private void purge() {
+		Reference<?> ref;
+		while ((ref = collected.poll()) != null) {
+			final Object[] levels = planes.remove(ref);
+			if (levels != null) bytes -= sizeOf(levels);
+		}
+	}
+
+	private static long sizeOf(final Object[] levels) {
+		long size = 0;
+		for (final Object level : levels) {
+			if (level != null) size += SliceCache.sizeOf(level);
+		}
+		return size;
+	}
+
+	/**
+	 * Reduces the plane by a factor of two in each direction. Each pixel is the
+	 * average of the 2x2 block it replaces; blocks at the right and bottom edge
+	 * of planes with odd sizes are smaller.
+	 */
+	static Object downsample(final Object pixels, final int width,
+		final int height)
+	{
+		final int width2 = getLevelSize(width, 1);
+		final int height2 = getLevelSize(height, 1);
+		final Object reduced;
+		if (pixels instanceof byte[]) reduced = new byte[width2 * height2];
+		else if (pixels instanceof short[]) reduced = new short[width2 * height2];
+		else reduced = new float[width2 * height2];
+		final DownsampleTask task =
+			new DownsampleTask(pixels, width, height, reduced, 0, height2);
+		if ((long) width * height < 2 * MIN_PIXELS_PER_TASK) task.compute();
+		else ForkJoinPool.commonPool().invoke(task);
+		return reduced;
+	}
+
+	/** Splits the rows of the reduced plane in halves until they are few. */
+	private static class DownsampleTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Object pixels;
+		private final int width, height;
+		private final Object reduced;
+		private final int from, to;
+
+		DownsampleTask(final Object pixels, final int width, final int height,
+			final Object reduced, final int from, final int to)
+		{
+			this.pixels = pixels;
+			this.width = width;
+			this.height = height;
+			this.reduced = reduced;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if ((long) (to - from) * 4 * width > MIN_PIXELS_PER_TASK && to - from > 1)
+			{
+				final int mid = (from + to) >>> 1;
+				invokeAll(new DownsampleTask(pixels, width, height, reduced, from, mid),
+					new DownsampleTask(pixels, width, height, reduced, mid, to));
+				return;
+			}
+			final int width2 = getLevelSize(width, 1);
+			for (int y2 = from; y2 < to; y2++) {
+				final int row0 = 2 * y2 * width;
+				final int row1 = 2 * y2 + 1 < height ? row0 + width : row0;
+				if (pixels instanceof short[]) {
+					reduceRow((short[]) pixels, row0, row1, (short[]) reduced, y2 * width2);
+				}
+				else if (pixels instanceof byte[]) {
+					reduceRow((byte[]) pixels, row0, row1, (byte[]) reduced, y2 * width2);
+				}
+				else {
+					reduceRow((float[]) pixels, row0, row1, (float[]) reduced, y2 * width2);
+				}
+			}
+		}
+
+		private void reduceRow(final byte[] p, final int row0, final int row1,
+			final byte[] out, final int offset)
+		{
+			final int pairs = width / 2;
+			for (int x2 = 0; x2 < pairs; x2++) {
+				final int i0 = row0 + 2 * x2, i1 = row1 + 2 * x2;
+				out[offset + x2] =
+					(byte) (((p[i0] & 0xff) + (p[i0 + 1] & 0xff) + (p[i1] & 0xff) +
+						(p[i1 + 1] & 0xff) + 2) >> 2);
+			}
+			if (pairs * 2 < width) {
+				final int i0 = row0 + width - 1, i1 = row1 + width - 1;
+				out[offset + pairs] = (byte) (((p[i0] & 0xff) + (p[i1] & 0xff) + 1) >> 1);
+			}
+		}
+
+		private void reduceRow(final short[] p, final int row0, final int row1,
+			final short[] out, final int offset)
+		{
+			final int pairs = width / 2;
+			for (int x2 = 0; x2 < pairs; x2++) {
+				final int i0 = row0 + 2 * x2, i1 = row1 + 2 * x2;
+				out[offset + x2] =
+					(short) (((p[i0] & 0xffff) + (p[i0 + 1] & 0xffff) + (p[i1] & 0xffff) +
+						(p[i1 + 1] & 0xffff) + 2) >> 2);
+			}
+			if (pairs * 2 < width) {
+				final int i0 = row0 + width - 1, i1 = row1 + width - 1;
+				out[offset + pairs] =
+					(short) (((p[i0] & 0xffff) + (p[i1] & 0xffff) + 1) >> 1);
+			}
+		}
+
+		private void reduceRow(final float[] p, final int row0, final int row1,
+			final float[] out, final int offset)
+		{
+			final int pairs = width / 2;
+			for (int x2 = 0; x2 < pairs; x2++) {
+				final int i0 = row0 + 2 * x2, i1 = row1 + 2 * x2;
+				out[offset + x2] = (p[i0] + p[i0 + 1] + p[i1] + p[i1 + 1]) * 0.25f;
+			}
+			if (pairs * 2 < width) {
+				final int i0 = row0 + width - 1, i1 = row1 + width - 1;
+				out[offset + pairs] = (p[i0] + p[i1]) * 0.5f;
+			}
+		}
+	}
+
+	/**
+	 * Weak reference to a pixel array that compares by the identity of the
+	 * array.
+	 */
+	private static class PlaneKey extends WeakReference<Object> {
+
+		private final int hash;
+
+		PlaneKey(final Object pixels, final ReferenceQueue<Object> queue) {
+			super(pixels, queue);
+			hash = System.identityHashCode(pixels);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (o == this) return true;
+			if (!(o instanceof PlaneKey)) return false;
+			final Object pixels = get();
+			return pixels != null && pixels == ((PlaneKey) o).get();
+		}
+	}
+
+	private static synchronized ExecutorService getBuildExecutor() {
+		if (buildExecutor == null) {
+			buildExecutor =
+				Executors.newFixedThreadPool(BUILD_THREADS, new ThreadFactory() {
+
+					private int count;
+
+					@Override
+					public synchronized Thread newThread(final Runnable r) {
+						final Thread thread =
+							new Thread(r, "Image5D-Pyramid-" + (++count));
+						thread.setDaemon(true);
+						thread.setPriority(Thread.NORM_PRIORITY - 1);
+						return thread;
+					}
+				});
+		}
+		return buildExecutor;
+	}
+
+}
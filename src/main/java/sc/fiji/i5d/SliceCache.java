@@ -0,0 +1,281 @@
+//
+// SliceCache.java
+//
+
+/*
+Image5D plugins for 5-dimensional image stacks in ImageJ.
+
+Copyright (c) 2010, Joachim Walter and ImageJDev.org.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package sc.fiji.i5d;
+
+import ij.IJ;
+
+import java.lang.reflect.Array;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Least recently used cache of decoded pixel arrays, bounded by the number of
+ * bytes it holds. Slices can be loaded ahead of time on a background thread
+ * with {@link #prefetch(String, Callable)}. A request for a slice that is
+ * being prefetched waits for the prefetch instead of loading it again.
+ * <p>
+ * The cached arrays must not be changed: stacks hand out copies.
+ */
+public class SliceCache {
+
+	static final int PREFETCH_THREADS = 2;
+
+	/**
+	 * Maximum number of prefetches that wait to be loaded. The oldest ones are
+	 * dropped, because the position has moved on since they were requested.
+	 */
+	static final int MAX_PREFETCHES = 32;
+
+	private static ExecutorService prefetchExecutor;
+
+	private final LinkedHashMap<String, Object> slices =
+		new LinkedHashMap<String, Object>(16, 0.75f, true);
+	// Slices being loaded, in the order they were requested.
+	private final LinkedHashMap<String, Future<Object>> pending =
+		new LinkedHashMap<String, Future<Object>>();
+
+	private long maxBytes;
+	private long bytes;
+
+	private long hits;
+	private long misses;
+	private long prefetches;
+
+	/** Creates a cache that uses up to a quarter of the maximum memory. */
+	public SliceCache() {
+		this(IJ.maxMemory() / 4);
+	}
+
+	public SliceCache(final long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the slice stored under key. If it is not in the cache, it is
+	 * obtained from loader and cached. Returns null if loader returns null.
+	 */
+	public Object get(final String key, final Callable<Object> loader) {
+		Future<Object> future;
+		synchronized (this) {
+			final Object pixels = slices.get(key);
+			if (pixels != null) {
+				hits++;
+				return pixels;
+			}
+			future = pending.get(key);
+			if (future != null) hits++;
+			else misses++;
+		}
+
+		if (future != null) {
+			try {
+				final Object pixels = future.get();
+				if (pixels != null) return pixels;
+			}
+			catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			catch (final ExecutionException e) {
+				// Load it ourselves below.
+			}
+			catch (final CancellationException e) {
+				// The prefetch was dropped. Load it ourselves below.
+			}
+		}
+
+		final Object pixels = load(loader);
+		put(key, pixels);
+		return pixels;
+	}
+
+	/**
+	 * Loads the slice stored under key on a background thread, unless it is
+	 * already cached or being loaded.
+	 */
+	public void prefetch(final String key, final Callable<Object> loader) {
+		final FutureTask<Object> task;
+		synchronized (this) {
+			if (slices.containsKey(key) || pending.containsKey(key)) return;
+			task = new FutureTask<Object>(new Callable<Object>() {
+
+				@Override
+				public Object call() throws Exception {
+					final Object pixels = loader.call();
+					put(key, pixels);
+					return pixels;
+				}
+			})
+			{
+
+				@Override
+				protected void done() {
+					// Also called when the prefetch is dropped before it has run.
+					synchronized (SliceCache.this) {
+						if (pending.get(key) == this) pending.remove(key);
+					}
+				}
+			};
+			// Drop the oldest prefetches. Those that are already running finish.
+			final Iterator<Future<Object>> iter = pending.values().iterator();
+			while (pending.size() >= MAX_PREFETCHES && iter.hasNext()) {
+				final Future<Object> oldest = iter.next();
+				iter.remove();
+				oldest.cancel(false);
+			}
+			pending.put(key, task);
+			prefetches++;
+		}
+		getPrefetchExecutor().execute(task);
+	}
+
+	/**
+	 * Drops the prefetches that have not finished, e.g. when the direction of
+	 * browsing reverses and the slices ahead are no longer needed. Prefetches
+	 * that are already running finish.
+	 */
+	public void cancelPrefetches() {
+		final Future<?>[] tasks;
+		synchronized (this) {
+			tasks = pending.values().toArray(new Future<?>[pending.size()]);
+			pending.clear();
+		}
+		for (final Future<?> task : tasks) {
+			task.cancel(false);
+		}
+	}
+
+	/** Adds pixels to the cache and evicts the least recently used slices. */
+	public synchronized void put(final String key, final Object pixels) {
+		if (pixels == null) return;
+		final long size = sizeOf(pixels);
+		if (size > maxBytes) return;
+		final Object old = slices.put(key, pixels);
+		if (old != null) bytes -= sizeOf(old);
+		bytes += size;
+		trim();
+	}
+
+	/** Removes all slices from the cache. */
+	public synchronized void clear() {
+		slices.clear();
+		bytes = 0;
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public synchronized void setMaxBytes(final long maxBytes) {
+		this.maxBytes = maxBytes;
+		trim();
+	}
+
+	/** Returns the number of bytes of all cached slices. */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/** Number of requests served from the cache or from a running prefetch. */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/** Number of requests that had to load the slice themselves. */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/** Number of prefetches started. */
+	public synchronized long getPrefetches() {
+		return prefetches;
+	}
+
+	public synchronized void resetCounters() {
+		hits = 0;
+		misses = 0;
+		prefetches = 0;
+	}
+
+	private void trim() {
+		final Iterator<Object> iter = slices.values().iterator();
+		while (bytes > maxBytes && iter.hasNext()) {
+			bytes -= sizeOf(iter.next());
+			iter.remove();
+		}
+	}
+
+	private static Object load(final Callable<Object> loader) {
+		try {
+			return loader.call();
+		}
+		catch (final Exception e) {
+			IJ.log("Image5D: " + e);
+			return null;
+		}
+	}
+
+	static long sizeOf(final Object pixels) {
+		final long length = Array.getLength(pixels);
+		if (pixels instanceof byte[]) return length;
+		if (pixels instanceof short[]) return 2 * length;
+		return 4 * length;
+	}
+
+	private static synchronized ExecutorService getPrefetchExecutor() {
+		if (prefetchExecutor == null) {
+			prefetchExecutor =
+				Executors.newFixedThreadPool(PREFETCH_THREADS, new ThreadFactory() {
+
+					private int count;
+
+					@Override
+					public synchronized Thread newThread(final Runnable r) {
+						final Thread thread =
+							new Thread(r, "Image5D-Prefetch-" + (++count));
+						thread.setDaemon(true);
+						thread.setPriority(Thread.NORM_PRIORITY - 1);
+						return thread;
+					}
+				});
+		}
+		return prefetchExecutor;
+	}
+
+}
@@ -0,0 +1,362 @@
+//
+// TileRenderer.java
+//
+
+/*
+Image5D plugins for 5-dimensional image stacks in ImageJ.
+
+Copyright (c) 2010, Joachim Walter and ImageJDev.org.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package sc.fiji.i5d;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.Toolkit;
+import java.awt.image.ColorModel;
+import java.awt.image.DirectColorModel;
+import java.awt.image.MemoryImageSource;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import sc.fiji.i5d.ChannelCompositor.ChannelMapping;
+
+/**
+ * Renders the channel images that are displayed in the channel canvasses in
+ * TILED mode. Each channel is mapped to RGB the same way as
+ * <code>ip.createImage()</code> would do it, into an int-array that is kept
+ * between updates together with the AWT image that displays it.
+ * <p>
+ * Only channels whose pixels, display range, threshold or color model have
+ * changed, or which were invalidated with {@link #invalidate(int)}, are
+ * rendered again. They are rendered together on the threads of a
+ * ForkJoinPool, so the first canvas that is painted after an update renders
+ * all channels, and the others find their image ready. Like the
+ * ChannelCompositor, only the viewport (see {@link #setViewport(Rectangle)})
+ * is rendered; the rest follows when it becomes visible.
+ * <p>
+ * With background rendering (see {@link #setBackgroundRendering(boolean)}),
+ * {@link #getImage(int)} returns the last rendered image without waiting, and
+ * another thread calls {@link #render()}.
+ */
+public class TileRenderer {
+
+	private final int width;
+	private final int height;
+
+	private Tile[] tiles = new Tile[0];
+	/** Region that is rendered, or null for the whole image. */
+	private Rectangle viewport;
+	private boolean background;
+	// Held while rendering, so that the lock of the renderer is free for
+	// getImage() in the meantime.
+	private final Object renderLock = new Object();
+
+	private long nRendered;
+
+	public TileRenderer(final int width, final int height) {
+		this.width = width;
+		this.height = height;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Sets the number of channels. Buffers and images of existing channels are
+	 * kept.
+	 */
+	public synchronized void setNChannels(final int nChannels) {
+		if (nChannels == tiles.length) return;
+		final Tile[] newTiles = new Tile[nChannels];
+		System.arraycopy(tiles, 0, newTiles, 0, Math.min(nChannels, tiles.length));
+		for (int i = tiles.length; i < nChannels; i++) {
+			newTiles[i] = new Tile();
+		}
+		tiles = newTiles;
+	}
+
+	public synchronized int getNChannels() {
+		return tiles.length;
+	}
+
+	/**
+	 * Renders the channel from the current processor of <code>imp</code>. The
+	 * processor is looked up on each update, so it may be replaced.
+	 */
+	public synchronized void setChannel(final int channel, final ImagePlus imp) {
+		getTile(channel).imp = imp;
+	}
+
+	/**
+	 * Marks the channel for rendering, e.g. after its pixels have been changed
+	 * in place.
+	 */
+	public synchronized void invalidate(final int channel) {
+		getTile(channel).invalid = true;
+	}
+
+	/** Marks all channels for rendering. */
+	public synchronized void invalidateAll() {
+		for (final Tile tile : tiles) {
+			tile.invalid = true;
+		}
+	}
+
+	/**
+	 * Restricts rendering to the rectangle r, e.g. the part of the image that is
+	 * visible in the canvasses. Parts outside are rendered when they get into
+	 * the viewport. If r is null, the whole image is rendered.
+	 */
+	public synchronized void setViewport(final Rectangle r) {
+		viewport =
+			r == null ? null : r.intersection(new Rectangle(0, 0, width, height));
+	}
+
+	public synchronized Rectangle getViewport() {
+		return viewport == null ? null : new Rectangle(viewport);
+	}
+
+	/**
+	 * Enables or disables background rendering. If enabled, getImage() does not
+	 * render channels that have been rendered before, and {@link #render()}
+	 * has to be called by another thread.
+	 */
+	public synchronized void setBackgroundRendering(final boolean background) {
+		this.background = background;
+	}
+
+	public synchronized boolean isBackgroundRendering() {
+		return background;
+	}
+
+	/**
+	 * Returns the image of the channel, after rendering all channels that have
+	 * changed. With background rendering, returns the last rendered image
+	 * instead, if there is one. Returns null if the channel can't be rendered,
+	 * e.g. because it has RGB pixels.
+	 */
+	public Image getImage(final int channel) {
+		synchronized (this) {
+			final Tile tile = getTile(channel);
+			if (background) {
+				if (tile.getProcessor() == null) return null;
+				if (tile.drawn) return tile.image;
+			}
+		}
+		render();
+		synchronized (this) {
+			final Tile tile = getTile(channel);
+			return tile.mapping.pixels == null ? null : tile.image;
+		}
+	}
+
+	/**
+	 * Returns true if a channel image is out of date in the region r, e.g.
+	 * because r was outside the viewport when it was rendered.
+	 */
+	public synchronized boolean isStale(final Rectangle r) {
+		final Rectangle clipped = r.intersection(new Rectangle(0, 0, width, height));
+		if (clipped.isEmpty()) return false;
+		for (final Tile tile : tiles) {
+			if (tile.mapping.pixels == null) continue;
+			if (tile.invalid || tile.rendered == null ||
+				!tile.rendered.contains(clipped))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if the current processor of the channel can be rendered.
+	 * Channels with RGB pixels can't.
+	 */
+	public synchronized boolean canRender(final int channel) {
+		return getTile(channel).getProcessor() != null;
+	}
+
+	/**
+	 * Renders all channels that have changed since the last call. Returns the
+	 * number of channels rendered.
+	 */
+	public int render() {
+		synchronized (renderLock) {
+			final Rectangle area;
+			final Tile[] changed;
+			int nChanged = 0;
+			synchronized (this) {
+				area =
+					viewport == null ? new Rectangle(0, 0, width, height) : viewport;
+				if (area.isEmpty()) return 0;
+				changed = new Tile[tiles.length];
+				for (final Tile tile : tiles) {
+					if (tile.update(area)) changed[nChanged++] = tile;
+				}
+			}
+			if (nChanged == 0) return 0;
+
+			final long nPixels = (long) nChanged * area.width * area.height;
+			final RenderTask task =
+				new RenderTask(changed, area, 0, nChanged * area.height);
+			if (nPixels < 2 * ChannelCompositor.MIN_PIXELS_PER_TASK) task.compute();
+			else ForkJoinPool.commonPool().invoke(task);
+
+			synchronized (this) {
+				for (int i = 0; i < nChanged; i++) {
+					changed[i].rendered = new Rectangle(area);
+					changed[i].drawn = true;
+				}
+				nRendered += nChanged;
+			}
+			for (int i = 0; i < nChanged; i++) {
+				changed[i].source.newPixels();
+			}
+			return nChanged;
+		}
+	}
+
+	/** Returns the number of channel images rendered so far. */
+	public synchronized long getNRendered() {
+		return nRendered;
+	}
+
+	private Tile getTile(final int channel) {
+		if (channel < 1 || channel > tiles.length) throw new IllegalArgumentException(
+			"Invalid channel: " + channel);
+		return tiles[channel - 1];
+	}
+
+	/** The displayed image of one channel and how it was mapped. */
+	private class Tile {
+
+		ImagePlus imp;
+		final ChannelMapping mapping = new ChannelMapping();
+		boolean invalid = true;
+		/** Region in which rgb is up to date, null if nowhere. */
+		Rectangle rendered;
+		/** True once rgb has been rendered. */
+		boolean drawn;
+		int[] rgb;
+		MemoryImageSource source;
+		Image image;
+
+		/**
+		 * Takes over pixels and display settings of the current processor.
+		 * Returns true if the channel has to be rendered in the given area.
+		 */
+		boolean update(final Rectangle area) {
+			final ImageProcessor ip = getProcessor();
+			if (ip == null) {
+				mapping.visible = false;
+				mapping.pixels = null;
+				return false;
+			}
+			final ColorModel cm = ip.getCurrentColorModel();
+			boolean changed = mapping.set(ip, cm, false);
+			changed = mapping.setThreshold(ip) || changed;
+			if (changed || invalid) rendered = null;
+			invalid = false;
+			if (rendered != null && rendered.contains(area)) return false;
+			if (rgb == null) {
+				rgb = new int[width * height];
+				source =
+					new MemoryImageSource(width, height, new DirectColorModel(32,
+						0xFF0000, 0xFF00, 0xFF), rgb, 0, width);
+				source.setAnimated(true);
+				source.setFullBufferUpdates(true);
+				image = Toolkit.getDefaultToolkit().createImage(source);
+			}
+			return true;
+		}
+
+		/**
+		 * Returns the current processor, or null if it can't be rendered, e.g.
+		 * because it has RGB pixels.
+		 */
+		ImageProcessor getProcessor() {
+			final ImageProcessor ip = imp == null ? null : imp.getProcessor();
+			final Object pixels = ip == null ? null : ip.getPixels();
+			if (!(pixels instanceof byte[] || pixels instanceof short[] ||
+				pixels instanceof float[]) || ip.getWidth() != width ||
+				ip.getHeight() != height)
+			{
+				return null;
+			}
+			return ip;
+		}
+	}
+
+	/**
+	 * Renders the rows from..to-1 of the area of the changed channels, counted
+	 * through all of them, and splits the range in halves until it is small
+	 * enough.
+	 */
+	private class RenderTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Tile[] changed;
+		private final Rectangle area;
+		private final int from, to;
+
+		RenderTask(final Tile[] changed, final Rectangle area, final int from,
+			final int to)
+		{
+			this.changed = changed;
+			this.area = area;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if ((long) (to - from) * area.width <= ChannelCompositor.MIN_PIXELS_PER_TASK ||
+				to - from == 1)
+			{
+				for (int row = from; row < to; row++) {
+					final Tile tile = changed[row / area.height];
+					final int start = (area.y + row % area.height) * width + area.x;
+					tile.mapping.map(tile.rgb, start, start, start + area.width);
+				}
+			}
+			else {
+				final int mid = (from + to) >>> 1;
+				invokeAll(new RenderTask(changed, area, from, mid), new RenderTask(
+					changed, area, mid, to));
+			}
+		}
+	}
+
+}
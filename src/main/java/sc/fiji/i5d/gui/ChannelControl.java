@@ -110,6 +110,7 @@ public class ChannelControl extends Panel implements ItemListener,
 
 	Button colorButton;
 	boolean colorChooserDisplayed;
+	Button autoButton; // Sets the display range from all slices and frames.
 	ChannelColorChooser cColorChooser;
 
 	int nChannels;
@@ -130,6 +131,7 @@ public class ChannelControl extends Panel implements ItemListener,
 
 	public static final String BUTTON_ACTIVATE_COLOR_CHOOSER = "Color";
 	public static final String BUTTON_DEACTIVATE_COLOR_CHOOSER = "Color";
+	public static final String BUTTON_AUTO_CONTRAST = "Auto z/t";
 
 	public ChannelControl(final Image5DWindow win) {
 		super(new BorderLayout(5, 5));
@@ -161,7 +163,7 @@ public class ChannelControl extends Panel implements ItemListener,
 		selectorPanel = new Panel(new BorderLayout(0, 0));
 		add(selectorPanel, BorderLayout.CENTER);
 
-		final Panel subPanel = new Panel(new GridLayout(2, 1, 1, 1));
+		final Panel subPanel = new Panel(new GridLayout(3, 1, 1, 1));
 
 		// colorButton: makes colorChooser visible/invisible
 		colorButton = new Button(BUTTON_ACTIVATE_COLOR_CHOOSER);
@@ -174,6 +176,16 @@ public class ChannelControl extends Panel implements ItemListener,
 		colorButton.addKeyListener(ij);
 		colorButton.addKeyListener(win);
 
+		// autoButton: display range of the current channel over all slices and
+		// frames
+		autoButton = new Button(BUTTON_AUTO_CONTRAST);
+		subPanel.add(autoButton);
+		autoButton.addActionListener(this);
+
+		autoButton.addKeyListener(win);
+		autoButton.addKeyListener(ij);
+		autoButton.addKeyListener(win);
+
 		// displayChoice: selects desired display mode
 		displayChoice = new Choice();
 		for (final String mode : displayModes) {
@@ -487,6 +499,11 @@ public class ChannelControl extends Panel implements ItemListener,
 				win.pack();
 			}
 		}
+		else if (e.getSource() == autoButton) {
+			i5d.setChannelMinMaxFromAllPositions(i5d.getCurrentChannel(),
+				Image5D.AUTO_CONTRAST_SATURATED);
+			i5d.updateAndDraw();
+		}
 	}
 
 	/**
@@ -702,7 +719,7 @@ public class ChannelControl extends Panel implements ItemListener,
 					i5d.setDisplayedInOverlay(i + 1, true);
 				}
 				updateFromI5D();
-				i5d.updateImageAndDraw();
+				i5d.updateAndDraw();
 			}
 			else if (e.getSource() == noneButton) {
 				for (int i = 0; i < nChannels; ++i) {
@@ -710,7 +727,7 @@ public class ChannelControl extends Panel implements ItemListener,
 					i5d.setDisplayedInOverlay(i + 1, false);
 				}
 				updateFromI5D();
-				i5d.updateImageAndDraw();
+				i5d.updateAndDraw();
 			}
 		}
 
@@ -725,7 +742,7 @@ public class ChannelControl extends Panel implements ItemListener,
 						i5d.setDisplayedInOverlay(i + 1, false);
 					}
 					updateFromI5D();
-					i5d.updateImageAndDraw();
+					i5d.updateAndDraw();
 					return;
 				}
 				if (e.getItemSelectable() == channelActive[i]) {
@@ -37,10 +37,17 @@ import ij.gui.ImageCanvas;
 import ij.gui.ImageWindow;
 import ij.gui.Roi;
 import ij.gui.Toolbar;
+import sc.fiji.i5d.ChannelImagePlus;
+import sc.fiji.i5d.Image5D;
+import sc.fiji.i5d.PyramidCache;
 
 import java.awt.Dimension;
 import java.awt.Event;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Image;
 import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.awt.event.MouseEvent;
 
 /*
@@ -56,6 +63,10 @@ public class Image5DCanvas extends ImageCanvas {
 	 */
 	private static final long serialVersionUID = -8563611296852137396L;
 
+	// Set while the image is painted from a reduced image.
+	private boolean paintedReduced;
+	private Image reducedBuffer;
+
 	/**
 	 * @param imp
 	 */
@@ -68,6 +79,71 @@ public class Image5DCanvas extends ImageCanvas {
 		return imp;
 	}
 
+	/**
+	 * Paints zoomed-out images from a reduced image (see
+	 * {@link Image5D#getReducedImage(int, boolean)}). Otherwise, recalculates the
+	 * image before painting if the overlay has not been calculated for the
+	 * visible part yet, e.g. after scrolling. Channel images of TILED mode are
+	 * rendered for the visible part.
+	 */
+	@Override
+	public void paint(final Graphics g) {
+		if (imp instanceof Image5D) {
+			final Image5D i5d = (Image5D) imp;
+			if (paintReduced(g, i5d)) return;
+			if (paintedReduced) {
+				// The full image has not been updated while the reduced one was shown.
+				paintedReduced = false;
+				setImageUpdated();
+			}
+			if (i5d.isDisplayOutdated(srcRect)) setImageUpdated();
+		}
+		else if (imp instanceof ChannelImagePlus) {
+			((ChannelImagePlus) imp).setVisibleRegion(srcRect);
+		}
+		super.paint(g);
+	}
+
+	/**
+	 * Paints the image and its ROI from the reduced image, if the magnification
+	 * is low enough. Returns false, if the image has to be painted by the
+	 * superclass, e.g. because there are overlays or the image is not fully
+	 * visible.
+	 */
+	private boolean paintReduced(final Graphics g, final Image5D i5d) {
+		final int level = PyramidCache.getLevel(getMagnification());
+		if (level == 0 || getOverlay() != null || getShowAllList() != null ||
+			srcRect.width < imageWidth || srcRect.height < imageHeight)
+		{
+			return false;
+		}
+		final Image img =
+			i5d.getReducedImage(level, imageUpdated || !paintedReduced);
+		if (img == null) return false;
+		imageUpdated = false;
+		paintedReduced = true;
+
+		final int width = (int) (srcRect.width * getMagnification() + 0.5);
+		final int height = (int) (srcRect.height * getMagnification() + 0.5);
+		if (reducedBuffer == null || reducedBuffer.getWidth(null) != width ||
+			reducedBuffer.getHeight(null) != height)
+		{
+			reducedBuffer = createImage(width, height);
+			if (reducedBuffer == null) return false;
+		}
+		final Graphics bg = reducedBuffer.getGraphics();
+		((Graphics2D) bg).setRenderingHint(RenderingHints.KEY_RENDERING,
+			RenderingHints.VALUE_RENDER_QUALITY);
+		bg.drawImage(img, 0, 0, width, height, 0, 0, PyramidCache.getLevelSize(
+			imageWidth, level), PyramidCache.getLevelSize(imageHeight, level), null);
+		final Roi roi = imp.getRoi();
+		if (roi != null) roi.draw(bg);
+		bg.dispose();
+		g.drawImage(reducedBuffer, 0, 0, null);
+		setPaintPending(false);
+		return true;
+	}
+
 	/**
 	 * Adjust the canvas size symmetrically about the middle of the srcRect, if
 	 * the user resizes the window. Called from Image5DLayout.layoutContainer().
@@ -301,6 +377,10 @@ public class Image5DCanvas extends ImageCanvas {
 		super.mouseMoved(e);
 
 		adaptChannelMouse();
+		if (imp.getWindow() instanceof Image5DWindow) {
+			((Image5DWindow) imp.getWindow()).cursorMoved(offScreenX(e.getX()),
+				offScreenY(e.getY()));
+		}
 
 		// To avoid ROI flickering, only adapt ROI when it really has changed.
 		// Code copied from ImageCanvas.mouseMoved().
@@ -34,7 +34,6 @@ package sc.fiji.i5d.gui;
 import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
-import ij.ImageStack;
 import ij.WindowManager;
 import ij.gui.Roi;
 import ij.gui.StackWindow;
@@ -79,9 +78,12 @@ public class Image5DWindow extends StackWindow implements KeyListener {
 	protected Vector<Image5DCanvas> channelCanvasses =
 		new Vector<Image5DCanvas>();
 
-	// Array for storing change of position in each dimension.
-	// 0: no change, 1 - dimensionSize : changed position
-	protected int[] positions;
+	// Applies changes of channel, slice and frame.
+	protected RenderScheduler renderScheduler;
+	// Plays the frames, created on demand.
+	protected PlaybackController playbackController;
+	// Sections through the cursor position, created on demand.
+	protected OrthogonalViews orthogonalViews;
 
 	protected int nDimensions = 5;
 	protected int[] dimensions;
@@ -116,7 +118,6 @@ public class Image5DWindow extends StackWindow implements KeyListener {
 		}
 
 		scrollbarsWL = new ScrollbarWithLabel[nDimensions];
-		positions = new int[nDimensions];
 		dimensions = i5d.getDimensions();
 
 		// Remove all components and then add them with the Image5DLayout
@@ -184,13 +185,20 @@ public class Image5DWindow extends StackWindow implements KeyListener {
 		i5d.updateAndRepaintWindow();
 		i5d.updateImageAndDraw();
 		// Stop thread started in parent (StackWindow) constructor.
-		done = true;
-		thread.interrupt();
-		while (thread.isAlive()) {}
+		synchronized (this) {
+			done = true;
+			notify();
+		}
+		try {
+			thread.join();
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 		done = false;
 
-		thread = new Thread(this, "SliceSelector");
-		thread.start();
+		renderScheduler = new RenderScheduler(i5d);
+		renderScheduler.start();
 
 		/* ----------------------------------------------------------------------------
 		 * Handle Key events:
@@ -263,15 +271,14 @@ public class Image5DWindow extends StackWindow implements KeyListener {
 	 * Handles changes in the scrollbars for z and t.
 	 */
 	@Override
-	public synchronized void adjustmentValueChanged(final AdjustmentEvent e) {
+	public void adjustmentValueChanged(final AdjustmentEvent e) {
 		if (!running2) {
 
 			for (int i = 3; i < nDimensions; ++i) {
 				if (e.getSource() == scrollbarsWL[i]) {
-					positions[i] = scrollbarsWL[i].getValue();
+					renderScheduler.request(i, scrollbarsWL[i].getValue() - 1);
 				}
 			}
-			notify();
 		}
 	}
 
@@ -327,12 +334,10 @@ public class Image5DWindow extends StackWindow implements KeyListener {
 	 * Handles change in ChannelControl. Is called by ChannelControl without any
 	 * events involved.
 	 */
-	public synchronized void channelChanged() {
+	public void channelChanged() {
 		if (!running2) {
-			positions[2] = channelControl.getCurrentChannel();
+			renderScheduler.request(2, channelControl.getCurrentChannel() - 1);
 		}
-
-		notify();
 	}
 
 	public void updateCanvasses() {
@@ -405,6 +410,7 @@ public class Image5DWindow extends StackWindow implements KeyListener {
 				}
 				scrollbarsWL[i].setValue(((Image5D) imp).getCurrentPosition(i) + 1);
 			}
+			if (orthogonalViews != null) orthogonalViews.positionChanged();
 		}
 	}
 
@@ -418,7 +424,6 @@ public class Image5DWindow extends StackWindow implements KeyListener {
 		final Image5D img5 = (Image5D) imp;
 		final int[] dimensions = imp.getDimensions();
 		final Calibration cal = img5.getCalibration();
-		final ImageStack imageStack = img5.getImageStack();
 
 		// current position
 		for (int i = 2; i < img5.getNDimensions(); ++i) {
@@ -431,7 +436,8 @@ public class Image5DWindow extends StackWindow implements KeyListener {
 
 		// slice label
 		final String label =
-			imageStack.getShortSliceLabel(img5.getCurrentImageStackIndex());
+			img5.getShortSliceLabel(img5.getCurrentChannel(), img5.getCurrentSlice(),
+				img5.getCurrentFrame());
 		if (label != null && label.length() > 0) {
 			s += "(" + label + "); ";
 		}
@@ -487,28 +493,63 @@ public class Image5DWindow extends StackWindow implements KeyListener {
 		drawInfo(g);
 	}
 
+	/**
+	 * Does nothing. Changes of the position are applied by the RenderScheduler
+	 * instead of the thread of StackWindow.
+	 */
 	@Override
-	public void run() {
-		if (!isInitialized) return;
-		while (!done) {
-			synchronized (this) {
-				try {
-					wait(500);
-				}
-				catch (final InterruptedException e) {}
-			}
-			if (done) return;
-
-			for (int i = 2; i < nDimensions; ++i) {
-				if (positions[i] > 0) {
-					final int p = positions[i];
-					positions[i] = 0;
-					if (p != i5d.getCurrentPosition(i) + 1) {
-						i5d.setCurrentPosition(i, p - 1);
-					}
-				}
-			}
+	public void run() {}
+
+	@Override
+	public boolean close() {
+		if (!super.close()) return false;
+		renderScheduler.stop();
+		if (playbackController != null) playbackController.stop();
+		if (orthogonalViews != null) orthogonalViews.stop();
+		return true;
+	}
+
+	public RenderScheduler getRenderScheduler() {
+		return renderScheduler;
+	}
+
+	/**
+	 * Called by {@link Image5D#appendFrame(Object[])}. Shows the new frame if
+	 * the last one was shown before and updates the scrollbars. Returns at once:
+	 * the display is updated by the RenderScheduler at its maximum rate.
+	 */
+	public void frameAppended() {
+		if (renderScheduler == null) return;
+		final int last = i5d.getNFrames() - 1;
+		if (renderScheduler.getRequestedPosition(4) >= last - 1) {
+			renderScheduler.request(4, last);
+		}
+		renderScheduler.requestSelectorUpdate();
+	}
+
+	/** Returns the controller for playing the frames of the image. */
+	public synchronized PlaybackController getPlaybackController() {
+		if (playbackController == null) {
+			playbackController = new PlaybackController(i5d);
+		}
+		return playbackController;
+	}
 
+	/** Returns the XZ, YZ and XT views of the image. */
+	public synchronized OrthogonalViews getOrthogonalViews() {
+		if (orthogonalViews == null) {
+			orthogonalViews = new OrthogonalViews(i5d);
+		}
+		return orthogonalViews;
+	}
+
+	/**
+	 * Called by the canvasses when the mouse moves to the pixel (x, y). Moves
+	 * the orthogonal views, if they are shown.
+	 */
+	public void cursorMoved(final int x, final int y) {
+		if (orthogonalViews != null && orthogonalViews.isShowing()) {
+			orthogonalViews.setCursor(x, y);
 		}
 	}
 
@@ -573,13 +614,13 @@ public class Image5DWindow extends StackWindow implements KeyListener {
 					(code == KeyEvent.VK_PAGE_DOWN && shiftPressed))
 				{
 					// Numpad 1 / 2 and shift-pageDown / shift-pageUp for frame change
-					i5d.setFrame(i5d.getCurrentFrame() - 1);
+					renderScheduler.step(4, -1);
 					e.setKeyCode(KeyEvent.CHAR_UNDEFINED);
 				}
 				else if (code == KeyEvent.VK_NUMPAD2 ||
 					(code == KeyEvent.VK_PAGE_UP && shiftPressed))
 				{
-					i5d.setFrame(i5d.getCurrentFrame() + 1);
+					renderScheduler.step(4, 1);
 					e.setKeyCode(KeyEvent.CHAR_UNDEFINED);
 
 				}
@@ -588,13 +629,13 @@ public class Image5DWindow extends StackWindow implements KeyListener {
 				{
 					// Numpad 7 / 8 and ctrl-pageDown / ctrl-pageUp (w/o modifier) for
 					// channel change
-					i5d.setChannel(i5d.getCurrentChannel() - 1);
+					renderScheduler.step(2, -1);
 					e.setKeyCode(KeyEvent.CHAR_UNDEFINED);
 				}
 				else if (code == KeyEvent.VK_NUMPAD8 ||
 					(code == KeyEvent.VK_PAGE_UP && ctrlPressed))
 				{
-					i5d.setChannel(i5d.getCurrentChannel() + 1);
+					renderScheduler.step(2, 1);
 					e.setKeyCode(KeyEvent.CHAR_UNDEFINED);
 
 				}
@@ -603,13 +644,13 @@ public class Image5DWindow extends StackWindow implements KeyListener {
 					code == KeyEvent.VK_COMMA)
 				{
 					// Numpad 4 / 5 and pageDown / pageUp for slice change
-					i5d.setSlice(i5d.getCurrentSlice() - 1);
+					renderScheduler.step(3, -1);
 					e.setKeyCode(KeyEvent.CHAR_UNDEFINED);
 				}
 				else if (code == KeyEvent.VK_NUMPAD5 || (code == KeyEvent.VK_PAGE_UP) ||
 					code == KeyEvent.VK_GREATER || code == KeyEvent.VK_PERIOD)
 				{
-					i5d.setSlice(i5d.getCurrentSlice() + 1);
+					renderScheduler.step(3, 1);
 					e.setKeyCode(KeyEvent.CHAR_UNDEFINED);
 
 				}
@@ -632,39 +673,42 @@ public class Image5DWindow extends StackWindow implements KeyListener {
 
 	/**
 	 * Control + Mousewheel moves channel (Ctrl as in Channel) Shift - Mousewheel
-	 * moves frame (shiFt as in Frame)
+	 * moves frame (shiFt as in Frame), Mousewheel alone moves slice.
 	 */
 	@Override
 	public void mouseWheelMoved(final MouseWheelEvent event) {
 		if (event.isControlDown()) {
-			synchronized (this) {
-				int channel = i5d.getCurrentChannel() + event.getWheelRotation();
-				if (channel < 1) channel = 1;
-				else if (channel > i5d.getNChannels()) channel = i5d.getNChannels();
-				i5d.setChannel(channel);
-			}
+			renderScheduler.step(2, event.getWheelRotation());
 		}
 		else if (event.isShiftDown()) {
-			synchronized (this) {
-				int frame = i5d.getCurrentFrame() + event.getWheelRotation();
-				if (frame < 1) frame = 1;
-				else if (frame > i5d.getNFrames()) frame = i5d.getNFrames();
-				i5d.setFrame(frame);
-			}
+			renderScheduler.step(4, event.getWheelRotation());
 		}
-		else {
+		else if (IJ.shiftKeyDown() || IJ.spaceBarDown()) {
+			// Zooming and scrolling are left to ImageJ, as before.
 			super.mouseWheelMoved(event);
 		}
+		else {
+			renderScheduler.step(3, event.getWheelRotation());
+		}
 	}
 
 	public void setImagesUpdated() {
 		ic.setImageUpdated();
+		if (orthogonalViews != null) orthogonalViews.invalidate();
 		if (channelCanvasses == null) return;
 		for (int i = 0; i < channelCanvasses.size(); i++) {
 			channelCanvasses.get(i).setImageUpdated();
 		}
 	}
 
+	/**
+	 * Returns the part of the image that is visible in the canvasses. All
+	 * canvasses share the source rectangle of the main canvas.
+	 */
+	public Rectangle getVisibleRegion() {
+		return (Rectangle) ic.getSrcRect().clone();
+	}
+
 	public void repaintCanvasses() {
 		ic.repaint();
 		if (channelCanvasses == null) return;
@@ -0,0 +1,439 @@
+//
+// OrthogonalViews.java
+//
+
+/*
+Image5D plugins for 5-dimensional image stacks in ImageJ.
+
+Copyright (c) 2010, Joachim Walter and ImageJDev.org.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package sc.fiji.i5d.gui;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import sc.fiji.i5d.Image5D;
+import sc.fiji.i5d.cal.ChannelDisplayProperties;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shows sections of the current channel of an Image5D through the cursor
+ * position: XZ (through the row of the cursor), YZ (through its column) and XT
+ * (a kymograph of its row in the current slice). The sections are read with
+ * {@link Image5D#getRegion}, which only reads the requested voxels from
+ * chunked stacks.
+ * <p>
+ * Sections are cached by position. A view is only recomputed when its row or
+ * column, channel, slice or frame changes, and while the cursor rests, the
+ * sections of the neighboring rows and columns are read ahead, so that moving
+ * the cursor by one row or column only needs the sections from the cache.
+ * Sections are read in blocks of {@link #BLOCK} rows or columns, so that each
+ * plane of a virtual stack is read from disk once per block, not once per row.
+ * The views are updated on their own thread; positions requested while a
+ * section is read are coalesced.
+ */
+public class OrthogonalViews implements Runnable {
+
+	public static final int XZ = 0;
+	public static final int YZ = 1;
+	public static final int XT = 2;
+	public static final String[] names = { "XZ", "YZ", "XT" };
+
+	/** Maximum number of sections in the cache. */
+	public static final int CACHED_SECTIONS = 96;
+
+	/** Number of neighboring rows or columns read together. */
+	public static final int BLOCK = 16;
+
+	private final Image5D i5d;
+	private Thread thread;
+	private volatile boolean done;
+
+	// Views that are shown, and their images. Guarded by this.
+	private final boolean[] enabled = new boolean[names.length];
+	private final ImagePlus[] views = new ImagePlus[names.length];
+	// Cursor position in pixels, and whether an update is requested.
+	private int cursorX, cursorY;
+	private boolean pending;
+	// Set by invalidate(): the thread discards the cached and shown sections.
+	private boolean invalid;
+
+	// Key of the section shown in each view. Only used by the thread.
+	private final String[] shown = new String[names.length];
+
+	private final LinkedHashMap<String, Object> sections =
+		new LinkedHashMap<String, Object>(16, 0.75f, true)
+	{
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, Object> eldest)
+		{
+			return size() > CACHED_SECTIONS;
+		}
+	};
+
+	public OrthogonalViews(final Image5D i5d) {
+		this.i5d = i5d;
+		cursorX = i5d.getWidth() / 2;
+		cursorY = i5d.getHeight() / 2;
+	}
+
+	/**
+	 * Shows the views that make sense for the image: XZ and YZ if it has more
+	 * than one slice, XT if it has more than one frame. Does nothing if the
+	 * views are already shown.
+	 */
+	public synchronized void start() {
+		if (isShowing()) return;
+		enabled[XZ] = enabled[YZ] = i5d.getNSlices() > 1;
+		enabled[XT] = i5d.getNFrames() > 1;
+		done = false;
+		pending = true;
+		thread = new Thread(this, "Image5D-OrthogonalViews");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Stops updating the views and closes them. */
+	public void stop() {
+		final Thread t;
+		synchronized (this) {
+			done = true;
+			notify();
+			t = thread;
+			thread = null;
+		}
+		if (t != null && t != Thread.currentThread()) {
+			try {
+				t.join();
+			}
+			catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		final ImagePlus[] closing;
+		synchronized (this) {
+			closing = views.clone();
+			for (int i = 0; i < views.length; i++) {
+				views[i] = null;
+				shown[i] = null;
+			}
+		}
+		for (final ImagePlus view : closing) {
+			if (view != null && view.getWindow() != null) view.close();
+		}
+	}
+
+	/** Returns true if the views are shown and updated. */
+	public synchronized boolean isShowing() {
+		return thread != null && !done;
+	}
+
+	/** Returns true if the given view (XZ, YZ or XT) is shown. */
+	public synchronized boolean isEnabled(final int view) {
+		return enabled[view];
+	}
+
+	/** Returns the image of the given view, null if it is not shown (yet). */
+	public synchronized ImagePlus getView(final int view) {
+		return views[view];
+	}
+
+	/** Moves the views to the cursor position (x, y) in pixels. */
+	public synchronized void setCursor(final int x, final int y) {
+		if (x == cursorX && y == cursorY) return;
+		if (x < 0 || y < 0 || x >= i5d.getWidth() || y >= i5d.getHeight()) return;
+		cursorX = x;
+		cursorY = y;
+		pending = true;
+		notify();
+	}
+
+	/** Updates the views after a change of channel, slice or frame. */
+	public synchronized void positionChanged() {
+		pending = true;
+		notify();
+	}
+
+	/**
+	 * Discards the cached sections, e.g. after the pixels were changed, and
+	 * updates the views. Also applies changed display ranges and LUTs.
+	 */
+	public synchronized void invalidate() {
+		invalid = true;
+		pending = true;
+		notify();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			final int x, y;
+			final boolean discard;
+			synchronized (this) {
+				try {
+					while (!done && !pending) {
+						wait();
+					}
+				}
+				catch (final InterruptedException e) {
+					return;
+				}
+				if (done) return;
+				pending = false;
+				discard = invalid;
+				invalid = false;
+				x = cursorX;
+				y = cursorY;
+			}
+			if (discard) {
+				// Sections read before are out of date, even those that were read
+				// while invalidate() was called.
+				synchronized (sections) {
+					sections.clear();
+				}
+				Arrays.fill(shown, null);
+			}
+			final int c = i5d.getCurrentChannel();
+			final int z = i5d.getCurrentSlice();
+			final int t = i5d.getCurrentFrame();
+			for (int view = 0; view < names.length; view++) {
+				if (isEnabled(view)) update(view, c, z, t, x, y);
+			}
+			// Read ahead the sections one row and column away, unless the cursor
+			// has moved on.
+			for (int d = -1; d <= 1; d += 2) {
+				for (int view = 0; view < names.length; view++) {
+					if (hasPending()) break;
+					if (!isEnabled(view)) continue;
+					if (view == YZ) {
+						if (x + d >= 0 && x + d < i5d.getWidth()) getSection(view, c, z, t,
+							x + d, y);
+					}
+					else if (y + d >= 0 && y + d < i5d.getHeight()) getSection(view, c,
+						z, t, x, y + d);
+				}
+			}
+		}
+	}
+
+	private synchronized boolean hasPending() {
+		return pending || done;
+	}
+
+	/** Shows the section of the view at the given position. */
+	private void update(final int view, final int c, final int z, final int t,
+		final int x, final int y)
+	{
+		final ImagePlus imp;
+		synchronized (this) {
+			imp = views[view];
+			// The user closed the view.
+			if (imp != null && imp.getWindow() == null && shown[view] != null) {
+				enabled[view] = false;
+				views[view] = null;
+				return;
+			}
+		}
+		final String key = getKey(view, c, z, t, x, y);
+		if (key.equals(shown[view])) return;
+		final Object section = getSection(view, c, z, t, x, y);
+		final ImageProcessor ip = createProcessor(view, section);
+
+		// Display the section with the LUT and display range of the channel.
+		final ChannelDisplayProperties props = i5d.getChannelDisplayProperties(c);
+		final ImageProcessor channelIP = i5d.getProcessor(c);
+		ip.setColorModel(props.getColorModel());
+		ip.setMinAndMax(channelIP.getMin(), channelIP.getMax());
+
+		if (imp == null) {
+			final ImagePlus newView =
+				new ImagePlus(i5d.getTitle() + " " + names[view], ip);
+			newView.setCalibration(getCalibration(view));
+			synchronized (this) {
+				if (done) return;
+				views[view] = newView;
+			}
+			newView.show();
+		}
+		else {
+			imp.setProcessor(ip);
+			imp.updateAndDraw();
+		}
+		shown[view] = key;
+	}
+
+	/** Returns a processor for a copy of the section, transposed for YZ. */
+	private ImageProcessor createProcessor(final int view, final Object section) {
+		final int width = i5d.getWidth();
+		final int height = i5d.getHeight();
+		final int nSlices = i5d.getNSlices();
+		final int w = view == YZ ? nSlices : width;
+		final int h =
+			view == XZ ? nSlices : view == YZ ? height : i5d.getNFrames();
+		final ImageProcessor ip;
+		if (section instanceof byte[]) ip = new ByteProcessor(w, h);
+		else if (section instanceof short[]) ip = new ShortProcessor(w, h);
+		else ip = new FloatProcessor(w, h);
+		final Object pixels = ip.getPixels();
+		if (view != YZ) {
+			System.arraycopy(section, 0, pixels, 0, w * h);
+		}
+		else {
+			// The section is ordered y fastest, then z. Show z horizontally.
+			for (int z = 0; z < nSlices; z++) {
+				for (int y = 0; y < height; y++) {
+					ip.setf(z, y, getf(section, z * height + y));
+				}
+			}
+		}
+		return ip;
+	}
+
+	private static float getf(final Object section, final int i) {
+		if (section instanceof byte[]) return ((byte[]) section)[i] & 0xff;
+		if (section instanceof short[]) return ((short[]) section)[i] & 0xffff;
+		return ((float[]) section)[i];
+	}
+
+	/** Scales the z axis of the XZ and YZ views with the voxel depth. */
+	private Calibration getCalibration(final int view) {
+		final Calibration cal = i5d.getCalibration().copy();
+		if (view == XZ) cal.pixelHeight = cal.pixelDepth;
+		else if (view == YZ) cal.pixelWidth = cal.pixelDepth;
+		else cal.pixelHeight = cal.frameInterval > 0 ? cal.frameInterval : 1;
+		return cal;
+	}
+
+	/**
+	 * Returns the section of the view through the given position from the
+	 * cache, or reads it from the image together with the other sections of its
+	 * block of rows (columns for YZ), which are cached, too.
+	 */
+	private Object getSection(final int view, final int c, final int z,
+		final int t, final int x, final int y)
+	{
+		final String key = getKey(view, c, z, t, x, y);
+		synchronized (sections) {
+			final Object section = sections.get(key);
+			if (section != null) return section;
+		}
+		final int width = i5d.getWidth();
+		final int height = i5d.getHeight();
+		final int first = (view == YZ ? x : y) / BLOCK * BLOCK;
+		final int n = Math.min(BLOCK, (view == YZ ? width : height) - first);
+		final Object block;
+		switch (view) {
+			case XZ:
+				block = i5d.getRegion(c, 0, first, 1, t, width, n, i5d.getNSlices(), 1);
+				break;
+			case YZ:
+				block =
+					i5d.getRegion(c, first, 0, 1, t, n, height, i5d.getNSlices(), 1);
+				break;
+			default:
+				block = i5d.getRegion(c, 0, first, z, 1, width, n, 1, i5d.getNFrames());
+		}
+
+		// Split the block into sections. Rows are interleaved in the block, one
+		// per slice or frame; columns element by element.
+		final int length = Array.getLength(block) / n;
+		final Object[] split = new Object[n];
+		for (int k = 0; k < n; k++) {
+			split[k] = Array.newInstance(block.getClass().getComponentType(), length);
+			if (view == YZ) {
+				gather(block, k, n, split[k]);
+			}
+			else {
+				for (int row = 0; row < length / width; row++) {
+					System.arraycopy(block, (row * n + k) * width, split[k], row * width,
+						width);
+				}
+			}
+		}
+		final Object section = split[(view == YZ ? x : y) - first];
+		synchronized (sections) {
+			for (int k = 0; k < n; k++) {
+				if (split[k] == section) continue;
+				sections.put(view == YZ ? getKey(view, c, z, t, first + k, y) : getKey(
+					view, c, z, t, x, first + k), split[k]);
+			}
+			// Put last, so that it is evicted last.
+			sections.put(key, section);
+		}
+		return section;
+	}
+
+	/** Copies every n-th element of src, starting at offset, into dest. */
+	private static void gather(final Object src, final int offset, final int n,
+		final Object dest)
+	{
+		if (src instanceof byte[]) {
+			final byte[] s = (byte[]) src;
+			final byte[] d = (byte[]) dest;
+			for (int i = 0; i < d.length; i++) {
+				d[i] = s[offset + i * n];
+			}
+		}
+		else if (src instanceof short[]) {
+			final short[] s = (short[]) src;
+			final short[] d = (short[]) dest;
+			for (int i = 0; i < d.length; i++) {
+				d[i] = s[offset + i * n];
+			}
+		}
+		else {
+			final float[] s = (float[]) src;
+			final float[] d = (float[]) dest;
+			for (int i = 0; i < d.length; i++) {
+				d[i] = s[offset + i * n];
+			}
+		}
+	}
+
+	/** Each view only depends on some of the coordinates. */
+	private static String getKey(final int view, final int c, final int z,
+		final int t, final int x, final int y)
+	{
+		switch (view) {
+			case XZ:
+				return "XZ " + c + " " + t + " " + y;
+			case YZ:
+				return "YZ " + c + " " + t + " " + x;
+			default:
+				return "XT " + c + " " + z + " " + y;
+		}
+	}
+
+}
@@ -0,0 +1,414 @@
+//
+// PlaybackController.java
+//
+
+/*
+Image5D plugins for 5-dimensional image stacks in ImageJ.
+
+Copyright (c) 2010, Joachim Walter and ImageJDev.org.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package sc.fiji.i5d.gui;
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.plugin.Animator;
+import sc.fiji.i5d.I5DVirtualStack;
+import sc.fiji.i5d.Image5D;
+import sc.fiji.i5d.SliceCache;
+
+/**
+ * Plays the frames (t dimension) of an Image5D at a given frame rate. Frames
+ * that are not displayed in time are dropped, so that playback keeps up with
+ * real time. The planes of the frames ahead are read from virtual stacks on a
+ * separate thread, which stays at most {@link #getReadAhead()} frames ahead of
+ * the displayed one.
+ */
+public class PlaybackController {
+
+	public static final int LOOP = 0;
+	public static final int BOUNCE = 1;
+	public static final int ONCE = 2;
+	public static final String[] modes = { "Loop", "Bounce", "Once" };
+
+	public static final int DEFAULT_READ_AHEAD = 8;
+
+	private final Image5D i5d;
+
+	private double fps;
+	private int mode = LOOP;
+	private int firstFrame;
+	private int lastFrame;
+	private boolean[] channels;
+	private int readAhead = DEFAULT_READ_AHEAD;
+
+	private Thread player;
+	private Thread loader;
+	private volatile boolean done;
+	private boolean[] savedOverlay;
+
+	// Playback position, shared with the loader. Guarded by this.
+	private int frame;
+	private int direction;
+	// Number of steps taken and steps read ahead, counted in playback order.
+	private long step;
+	private long loadedStep;
+
+	// Statistics. Guarded by this.
+	private long nDisplayed;
+	private long nDropped;
+	private long startTime;
+	private long stopTime;
+
+	public PlaybackController(final Image5D i5d) {
+		this.i5d = i5d;
+		fps = i5d.getCalibration().fps > 0 ? i5d.getCalibration().fps : Animator
+			.getFrameRate();
+		firstFrame = 1;
+		lastFrame = i5d.getNFrames();
+	}
+
+	/** Starts playback at the current frame. Does nothing if already playing. */
+	public synchronized void start() {
+		if (isPlaying()) return;
+		if (lastFrame <= firstFrame) return;
+		done = false;
+		frame = Math.max(firstFrame, Math.min(lastFrame, i5d.getCurrentFrame()));
+		direction = 1;
+		step = 0;
+		loadedStep = 0;
+		nDisplayed = 0;
+		nDropped = 0;
+		startTime = System.nanoTime();
+		stopTime = 0;
+
+		if (channels != null) {
+			// Show only the selected channels.
+			savedOverlay = new boolean[i5d.getNChannels()];
+			for (int c = 1; c <= savedOverlay.length; c++) {
+				savedOverlay[c - 1] = i5d.isDisplayedInOverlay(c);
+				i5d.setDisplayedInOverlay(c, c <= channels.length && channels[c - 1]);
+			}
+			i5d.updateImageAndDraw();
+		}
+
+		player = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				play();
+			}
+		}, "Image5D-Playback");
+		player.setDaemon(true);
+		player.start();
+
+		if (i5d.getImageStack().isVirtual()) {
+			loader = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					readAhead();
+				}
+			}, "Image5D-ReadAhead");
+			loader.setDaemon(true);
+			loader.setPriority(Thread.NORM_PRIORITY - 1);
+			loader.start();
+		}
+	}
+
+	/** Stops playback and waits for the threads to finish. */
+	public void stop() {
+		final Thread p, l;
+		synchronized (this) {
+			if (!isPlaying()) return;
+			done = true;
+			notifyAll();
+			p = player;
+			l = loader;
+			player = null;
+			loader = null;
+		}
+		join(p);
+		join(l);
+		finish();
+	}
+
+	/** Restores the channels shown in the overlay after playback. */
+	private synchronized void finish() {
+		if (stopTime == 0) stopTime = System.nanoTime();
+		if (savedOverlay != null) {
+			for (int c = 1; c <= savedOverlay.length && c <= i5d.getNChannels(); c++)
+			{
+				i5d.setDisplayedInOverlay(c, savedOverlay[c - 1]);
+			}
+			savedOverlay = null;
+			i5d.updateImageAndDraw();
+		}
+	}
+
+	public synchronized boolean isPlaying() {
+		return player != null && player.isAlive();
+	}
+
+	public synchronized double getFramesPerSecond() {
+		return fps;
+	}
+
+	/** Sets the target frame rate. */
+	public synchronized void setFramesPerSecond(final double fps) {
+		if (fps <= 0) throw new IllegalArgumentException("Invalid frame rate: " +
+			fps);
+		this.fps = fps;
+	}
+
+	public synchronized int getMode() {
+		return mode;
+	}
+
+	/** Sets what happens at the last frame: LOOP, BOUNCE or ONCE. */
+	public synchronized void setMode(final int mode) {
+		if (mode < LOOP || mode > ONCE) throw new IllegalArgumentException(
+			"Invalid mode: " + mode);
+		this.mode = mode;
+	}
+
+	/** Restricts playback to the frames first to last (starting at 1). */
+	public synchronized void setFrameRange(final int first, final int last) {
+		firstFrame = Math.max(1, first);
+		lastFrame = Math.min(i5d.getNFrames(), last);
+	}
+
+	public synchronized int getFirstFrame() {
+		return firstFrame;
+	}
+
+	public synchronized int getLastFrame() {
+		return lastFrame;
+	}
+
+	/**
+	 * Restricts the channels shown in the overlay during playback. channels[c-1]
+	 * is true if channel c is shown. All channels if null.
+	 */
+	public synchronized void setChannels(final boolean[] channels) {
+		this.channels = channels == null ? null : channels.clone();
+	}
+
+	public synchronized int getReadAhead() {
+		return readAhead;
+	}
+
+	/** Sets the maximum number of frames read ahead of the displayed frame. */
+	public synchronized void setReadAhead(final int readAhead) {
+		this.readAhead = Math.max(0, readAhead);
+	}
+
+	/** Returns the number of frames displayed since playback was started. */
+	public synchronized long getNDisplayed() {
+		return nDisplayed;
+	}
+
+	/** Returns the number of frames skipped to keep up with the frame rate. */
+	public synchronized long getNDropped() {
+		return nDropped;
+	}
+
+	/** Returns the frame rate achieved since playback was started. */
+	public synchronized double getAchievedFramesPerSecond() {
+		final long end = stopTime > 0 ? stopTime : System.nanoTime();
+		final double seconds = (end - startTime) / 1e9;
+		return seconds > 0 ? nDisplayed / seconds : 0;
+	}
+
+	public synchronized String getSummary() {
+		return IJ.d2s(getAchievedFramesPerSecond(), 1) + " fps (target " +
+			IJ.d2s(fps, 1) + "), " + nDisplayed + " frames displayed, " + nDropped +
+			" dropped";
+	}
+
+	private void play() {
+		final long start = System.nanoTime();
+		long shown = 0;
+		long lastStatus = start;
+		displayFrame();
+		while (!done) {
+			final long period;
+			synchronized (this) {
+				period = (long) (1e9 / fps);
+			}
+			final long deadline = start + (shown + 1) * period;
+			long now = System.nanoTime();
+			if (deadline > now) {
+				try {
+					Thread.sleep((deadline - now) / 1000000,
+						(int) ((deadline - now) % 1000000));
+				}
+				catch (final InterruptedException e) {
+					return;
+				}
+				now = System.nanoTime();
+			}
+			if (done) return;
+
+			// Frames whose time has passed while the last one was displayed are
+			// dropped.
+			final long due = Math.max(shown + 1, (now - start) / period);
+			synchronized (this) {
+				nDropped += due - shown - 1;
+				for (long i = shown; i < due; i++) {
+					if (!advance()) {
+						done = true;
+						notifyAll();
+						break;
+					}
+				}
+			}
+			shown = due;
+			if (done) break;
+			displayFrame();
+
+			if (now - lastStatus > 1000000000L) {
+				lastStatus = now;
+				IJ.showStatus("Playback: " + getSummary());
+			}
+		}
+		// Ended by itself in ONCE mode.
+		if (!isStopping()) finish();
+		IJ.showStatus("Playback: " + getSummary());
+	}
+
+	private synchronized boolean isStopping() {
+		return player == null;
+	}
+
+	/** Moves to the next frame. Returns false at the end in ONCE mode. */
+	private boolean advance() {
+		step++;
+		final int next = frame + direction;
+		if (next >= firstFrame && next <= lastFrame) {
+			frame = next;
+			return true;
+		}
+		if (mode == ONCE) return false;
+		if (mode == BOUNCE) {
+			direction = -direction;
+			frame += direction;
+		}
+		else {
+			frame = direction > 0 ? firstFrame : lastFrame;
+		}
+		return true;
+	}
+
+	private void displayFrame() {
+		final int t;
+		synchronized (this) {
+			t = frame;
+			nDisplayed++;
+			notifyAll();
+		}
+		if (t != i5d.getCurrentFrame()) i5d.setFrame(t);
+	}
+
+	/**
+	 * Reads the planes of the next frames in playback order, so that they are in
+	 * the slice cache of an I5DVirtualStack (or in the file system cache) when
+	 * they are displayed.
+	 */
+	private void readAhead() {
+		final ImageStack stack = i5d.getImageStack();
+		final int nChannels = i5d.getNChannels();
+		int depth;
+		synchronized (this) {
+			depth = readAhead;
+		}
+		if (stack instanceof I5DVirtualStack) {
+			// Don't read ahead more than the cache can hold.
+			final SliceCache cache = ((I5DVirtualStack) stack).getSliceCache();
+			final long frameBytes =
+				(long) i5d.getWidth() * i5d.getHeight() * i5d.getBytesPerPixel() *
+					nChannels;
+			depth = (int) Math.min(depth, cache.getMaxBytes() / frameBytes / 2);
+		}
+		if (depth <= 0) return;
+
+		while (!done) {
+			final int slice = i5d.getCurrentSlice();
+			final int t;
+			synchronized (this) {
+				if (loadedStep < step) loadedStep = step;
+				while (!done && loadedStep - step >= depth) {
+					try {
+						wait();
+					}
+					catch (final InterruptedException e) {
+						return;
+					}
+				}
+				if (done) return;
+				t = nextFrame(frame, direction, (int) (loadedStep - step + 1));
+				loadedStep++;
+			}
+			if (t < 1) continue;
+			for (int c = 1; c <= nChannels && !done; c++) {
+				stack.getPixels(i5d.getImageStackIndex(c, slice, t));
+			}
+		}
+	}
+
+	/**
+	 * Returns the frame k steps ahead of t in playback order, or 0 if playback
+	 * ends before.
+	 */
+	private int nextFrame(int t, int dir, final int k) {
+		for (int i = 0; i < k; i++) {
+			final int next = t + dir;
+			if (next >= firstFrame && next <= lastFrame) {
+				t = next;
+			}
+			else if (mode == ONCE) {
+				return 0;
+			}
+			else if (mode == BOUNCE) {
+				dir = -dir;
+				t += dir;
+			}
+			else {
+				t = dir > 0 ? firstFrame : lastFrame;
+			}
+		}
+		return t;
+	}
+
+	private static void join(final Thread thread) {
+		if (thread == null || thread == Thread.currentThread()) return;
+		try {
+			thread.join();
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
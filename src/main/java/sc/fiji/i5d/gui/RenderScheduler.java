@@ -0,0 +1,207 @@
+//
+// RenderScheduler.java
+//
+
+/*
+Image5D plugins for 5-dimensional image stacks in ImageJ.
+
+Copyright (c) 2010, Joachim Walter and ImageJDev.org.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package sc.fiji.i5d.gui;
+
+import ij.gui.ImageWindow;
+import sc.fiji.i5d.Image5D;
+
+import java.util.Arrays;
+
+/**
+ * Applies changes of the position (channel, slice, frame) of an Image5D on its
+ * own thread. The thread is woken as soon as a position is requested. Requests
+ * that arrive while a position is displayed are coalesced, so that only the
+ * latest position is displayed and intermediate positions, e.g. while a
+ * scrollbar is dragged, are dropped. At most {@link #getMaxFramesPerSecond()}
+ * positions are displayed per second.
+ */
+public class RenderScheduler implements Runnable {
+
+	public static final double DEFAULT_MAX_FPS = 50;
+
+	private final Image5D i5d;
+	private final Thread thread;
+	private volatile boolean done;
+
+	// Requested position in each dimension, -1 if unchanged.
+	private final int[] requested;
+	private boolean pending;
+	// True if the scrollbars must be updated, e.g. after frames were appended.
+	private boolean updateSelectors;
+	private long minInterval;
+	private long nextFrame;
+
+	private long nRequests;
+	private long nFrames;
+
+	public RenderScheduler(final Image5D i5d) {
+		this.i5d = i5d;
+		requested = new int[i5d.getNDimensions()];
+		Arrays.fill(requested, -1);
+		setMaxFramesPerSecond(DEFAULT_MAX_FPS);
+		thread = new Thread(this, "Image5D-Renderer");
+		thread.setDaemon(true);
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	/** Stops the thread and waits for it to finish. */
+	public void stop() {
+		synchronized (this) {
+			done = true;
+			notify();
+		}
+		if (Thread.currentThread() == thread) return;
+		try {
+			thread.join();
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Requests that the given dimension (2: channel, 3: slice, 4: frame) is
+	 * displayed at position (starting at 0). Replaces any request for this
+	 * dimension that has not been displayed yet.
+	 */
+	public synchronized void request(final int dimension, final int position) {
+		final int size = i5d.getDimensionSize(dimension);
+		requested[dimension] = Math.max(0, Math.min(position, size - 1));
+		nRequests++;
+		pending = true;
+		notify();
+	}
+
+	/**
+	 * Requests that the scrollbars and the info of the window are updated to
+	 * the dimensions of the image, e.g. after a frame was appended. Coalesced
+	 * with the requests for positions.
+	 */
+	public synchronized void requestSelectorUpdate() {
+		updateSelectors = true;
+		pending = true;
+		notify();
+	}
+
+	/**
+	 * Requests a position that is <code>delta</code> steps from the last
+	 * requested or, if there is none, the current position.
+	 */
+	public synchronized void step(final int dimension, final int delta) {
+		request(dimension, getRequestedPosition(dimension) + delta);
+	}
+
+	/**
+	 * Returns the position that will be displayed in the given dimension when
+	 * all requests are applied.
+	 */
+	public synchronized int getRequestedPosition(final int dimension) {
+		return requested[dimension] >= 0 ? requested[dimension] : i5d
+			.getCurrentPosition(dimension);
+	}
+
+	public synchronized double getMaxFramesPerSecond() {
+		return minInterval == 0 ? Double.POSITIVE_INFINITY : 1e9 / minInterval;
+	}
+
+	/** Sets the maximum rate of position changes. */
+	public synchronized void setMaxFramesPerSecond(final double fps) {
+		minInterval = fps > 0 ? (long) (1e9 / fps) : 0;
+	}
+
+	/** Returns the number of requested positions. */
+	public synchronized long getNRequests() {
+		return nRequests;
+	}
+
+	/** Returns the number of positions that were displayed. */
+	public synchronized long getNFrames() {
+		return nFrames;
+	}
+
+	@Override
+	public void run() {
+		final int[] target = new int[requested.length];
+		boolean update;
+		while (true) {
+			synchronized (this) {
+				try {
+					while (!done && !pending) {
+						wait();
+					}
+					// Keep collecting requests until the next frame is due.
+					long delay = nextFrame - System.nanoTime();
+					while (!done && delay > 0) {
+						wait(delay / 1000000, (int) (delay % 1000000));
+						delay = nextFrame - System.nanoTime();
+					}
+				}
+				catch (final InterruptedException e) {
+					return;
+				}
+				if (done) return;
+				System.arraycopy(requested, 0, target, 0, requested.length);
+				Arrays.fill(requested, -1);
+				update = updateSelectors;
+				updateSelectors = false;
+				pending = false;
+				nextFrame = System.nanoTime() + minInterval;
+				nFrames++;
+			}
+			display(target, update);
+		}
+	}
+
+	private void display(final int[] target, final boolean update) {
+		final int[] position = i5d.getCurrentPosition();
+		boolean changed = false;
+		for (int i = 0; i < target.length; i++) {
+			if (target[i] >= 0 && target[i] != position[i]) {
+				position[i] = target[i];
+				changed = true;
+			}
+		}
+		if (changed) i5d.setCurrentPosition(position);
+		else if (update) {
+			// setCurrentPosition() updates the scrollbars itself.
+			final ImageWindow win = i5d.getWindow();
+			if (win instanceof Image5DWindow) {
+				((Image5DWindow) win).updateSliceSelector();
+				win.repaint();
+			}
+		}
+	}
+
+}
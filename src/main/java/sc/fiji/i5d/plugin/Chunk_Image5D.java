@@ -0,0 +1,70 @@
+package sc.fiji.i5d.plugin;
+//
+// Chunk_Image5D.java
+//
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+import sc.fiji.i5d.I5DChunkedStack;
+import sc.fiji.i5d.Image5D;
+
+/**
+ * Creates a copy of the current Image5D that keeps its planes in chunks of a
+ * few pixels in x, y, z and t (see {@link I5DChunkedStack}), so that time
+ * traces, XZ and YZ sections and sub-volumes are read in proportion to their
+ * size.
+ */
+public class Chunk_Image5D implements PlugIn {
+
+	private static int[] chunkShape = I5DChunkedStack.DEFAULT_CHUNK_SHAPE
+		.clone();
+
+	@Override
+	public void run(final String arg) {
+		final ImagePlus imp = WindowManager.getCurrentImage();
+		if (imp == null) {
+			IJ.noImage();
+			return;
+		}
+		if (!(imp instanceof Image5D)) {
+			IJ.error("Image is not an Image5D.");
+			return;
+		}
+		final Image5D i5d = (Image5D) imp;
+		IJ.register(Chunk_Image5D.class);
+
+		final GenericDialog gd = new GenericDialog("Chunked Copy");
+		gd.addNumericField("Chunk width:", chunkShape[0], 0, 5, "pixels");
+		gd.addNumericField("Chunk height:", chunkShape[1], 0, 5, "pixels");
+		gd.addNumericField("Chunk slices:", chunkShape[2], 0, 5, "");
+		gd.addNumericField("Chunk frames:", chunkShape[3], 0, 5, "");
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		final int[] shape = new int[4];
+		for (int i = 0; i < 4; i++) {
+			shape[i] = (int) gd.getNextNumber();
+			if (shape[i] < 1) {
+				IJ.error("Chunk extents must be at least 1.");
+				return;
+			}
+		}
+		chunkShape = shape;
+
+		IJ.showStatus("Copying " + i5d.getTitle() + " to chunks...");
+		final long startTime = System.currentTimeMillis();
+		i5d.storeCurrentChannelProperties();
+		final I5DChunkedStack stack =
+			I5DChunkedStack.copyOf(i5d.getImageStack(), i5d.getNChannels(), i5d
+				.getNSlices(), i5d.getNFrames(), chunkShape);
+		final Image5D copy =
+			new Image5D(WindowManager.makeUniqueName(i5d.getTitle()), stack, i5d
+				.getNChannels(), i5d.getNSlices(), i5d.getNFrames());
+		Compress_Image5D.copySettings(i5d, copy);
+		copy.show(IJ.d2s((System.currentTimeMillis() - startTime) / 1000.0, 2) +
+			" seconds");
+	}
+
+}
@@ -0,0 +1,93 @@
+package sc.fiji.i5d.plugin;
+//
+// Compress_Image5D.java
+//
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.plugin.PlugIn;
+import sc.fiji.i5d.I5DCompressedStack;
+import sc.fiji.i5d.Image5D;
+
+/**
+ * Creates a copy of the current Image5D that keeps its planes compressed in
+ * memory (see {@link I5DCompressedStack}) and logs the compression ratio of
+ * each channel. For an Image5D that is already compressed, only logs the
+ * ratios.
+ */
+public class Compress_Image5D implements PlugIn {
+
+	@Override
+	public void run(final String arg) {
+		final ImagePlus imp = WindowManager.getCurrentImage();
+		if (imp == null) {
+			IJ.noImage();
+			return;
+		}
+		if (!(imp instanceof Image5D)) {
+			IJ.error("Image is not an Image5D.");
+			return;
+		}
+		final Image5D i5d = (Image5D) imp;
+
+		if (i5d.getImageStack() instanceof I5DCompressedStack) {
+			logCompressionRatios(i5d);
+			return;
+		}
+
+		IJ.showStatus("Compressing " + i5d.getTitle() + "...");
+		final long startTime = System.currentTimeMillis();
+		final Image5D copy = compress(i5d);
+		copy.show(IJ.d2s((System.currentTimeMillis() - startTime) / 1000.0, 2) +
+			" seconds");
+		logCompressionRatios(copy);
+	}
+
+	/**
+	 * Returns a copy of the Image5D with compressed planes and the same channel
+	 * settings and position.
+	 */
+	public static Image5D compress(final Image5D i5d) {
+		i5d.storeCurrentChannelProperties();
+		final I5DCompressedStack stack =
+			I5DCompressedStack.copyOf(i5d.getImageStack());
+		final Image5D copy =
+			new Image5D(WindowManager.makeUniqueName(i5d.getTitle()), stack, i5d
+				.getNChannels(), i5d.getNSlices(), i5d.getNFrames());
+		copySettings(i5d, copy);
+		return copy;
+	}
+
+	/**
+	 * Copies the calibration, the channel settings and the position of an
+	 * Image5D to another one of the same dimensions.
+	 */
+	static void copySettings(final Image5D i5d, final Image5D copy) {
+		copy.setCalibration(i5d.getCalibration().copy());
+		for (int c = 1; c <= i5d.getNChannels(); c++) {
+			copy.setChannelCalibration(c, i5d.getChannelCalibration(c).copy());
+			copy.setChannelDisplayProperties(c, i5d.getChannelDisplayProperties(c)
+				.copy());
+			copy.restoreChannelProperties(c);
+		}
+		copy.restoreCurrentChannelProperties();
+		copy.setDisplayGrayInTiles(i5d.isDisplayGrayInTiles());
+		copy.setDisplayMode(i5d.getDisplayMode());
+		copy.setCurrentPosition(i5d.getCurrentPosition());
+	}
+
+	static void logCompressionRatios(final Image5D i5d) {
+		final I5DCompressedStack stack = (I5DCompressedStack) i5d.getImageStack();
+		IJ.log(i5d.getTitle() + ": " + IJ.d2s(stack.getSizeInBytes() / 1048576.0,
+			1) + " MB compressed, ratio " + IJ.d2s(stack.getCompressionRatio(null),
+			2));
+		for (int c = 1; c <= i5d.getNChannels(); c++) {
+			final String label = i5d.getChannelCalibration(c).getLabel();
+			IJ.log("  Channel " + c + (label == null || label.length() == 0 ? ""
+				: " (" + label + ")") + ": ratio " +
+				IJ.d2s(i5d.getCompressionRatio(c), 2));
+		}
+	}
+
+}
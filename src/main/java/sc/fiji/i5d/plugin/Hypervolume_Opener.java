@@ -15,6 +15,7 @@ import ij.plugin.PlugIn;
 import ij.process.ImageConverter;
 import ij.process.ImageProcessor;
 import sc.fiji.i5d.util.NumberedStringSorter;
+import sc.fiji.i5d.util.ParallelImageLoader;
 
 import java.awt.Checkbox;
 import java.awt.Label;
@@ -23,6 +24,7 @@ import java.awt.event.ItemEvent;
 import java.awt.event.TextEvent;
 import java.awt.image.ColorModel;
 import java.io.File;
+import java.util.ArrayList;
 
 /**
  * Opens a folder of image stacks as one big stack ("Hypervolume"). Can be used
@@ -34,6 +36,7 @@ public class Hypervolume_Opener implements PlugIn {
 	private static boolean grayscale;
 	private static double scale = 100.0;
 	private int n, start, increment;
+	private int nThreads = ParallelImageLoader.getThreads();
 	private String filter;
 	private FileInfo fi;
 	private Calibration cal;
@@ -61,6 +64,7 @@ public class Hypervolume_Opener implements PlugIn {
 		ImageStack stack = null;
 		double min = Double.MAX_VALUE;
 		double max = -Double.MAX_VALUE;
+		ParallelImageLoader loader = null;
 		IJ.register(Hypervolume_Opener.class);
 
 		try {
@@ -122,14 +126,25 @@ public class Hypervolume_Opener implements PlugIn {
 			}
 			if (filteredImages < n) n = filteredImages;
 
-			int count = 0;
+			// Collect the files to open. They are decoded in parallel and added to
+			// the stack in sorted order.
+			final ArrayList<String> names = new ArrayList<String>();
 			int counter = 0;
 			for (int i = start - 1; i < list.length; i++) {
 				if (list[i].endsWith(".txt") || list[i].endsWith(".roi")) continue;
 				if (filter != null && (list[i].indexOf(filter) < 0)) continue;
 				if (++counter < start) continue;
 				if (((counter - start) % increment) != 0) continue;
-				imp = new Opener().openImage(directory, list[i]);
+				names.add(list[i]);
+			}
+
+			int count = 0;
+			loader =
+				new ParallelImageLoader(directory, names.toArray(new String[names
+					.size()]), nThreads);
+			while (loader.hasNext()) {
+				imp = loader.next();
+				final String fileName = loader.getName();
 				if (imp != null && stack == null) {
 					width = imp.getWidth();
 					height = imp.getHeight();
@@ -143,11 +158,11 @@ public class Hypervolume_Opener implements PlugIn {
 				}
 
 				if (imp == null) {
-					if (!list[i].startsWith(".")) IJ.log(list[i] + ": unable to open");
+					if (!fileName.startsWith(".")) IJ.log(fileName + ": unable to open");
 				}
 				else if (imp.getWidth() != width || imp.getHeight() != height) IJ
-					.log(list[i] + ": wrong dimensions");
-				else if (imp.getType() != type) IJ.log(list[i] + ": wrong type");
+					.log(fileName + ": wrong dimensions");
+				else if (imp.getType() != type) IJ.log(fileName + ": wrong type");
 				else {
 					count += 1;
 					IJ.showStatus(count + "/" + n);
@@ -174,12 +189,15 @@ public class Hypervolume_Opener implements PlugIn {
 					}
 				}
 				if (count >= n) break;
-			} // for loop over files in directory
+			} // loop over files in directory
 		}
 		catch (final OutOfMemoryError e) {
 			IJ.outOfMemory("Hypervolume_Opener");
 			if (stack != null) stack.trim();
 		}
+		finally {
+			if (loader != null) loader.close();
+		}
 		if (stack != null && stack.getSize() > 0) {
 			final ImagePlus imp2 = new ImagePlus("Stack", stack);
 			if (imp2.getType() == ImagePlus.GRAY16 ||
@@ -192,6 +210,7 @@ public class Hypervolume_Opener implements PlugIn {
 			imp2.show();
 		}
 		IJ.showProgress(1.0);
+		if (loader != null) IJ.showStatus(loader.getSummary());
 
 		System.gc();
 	}
@@ -219,6 +238,7 @@ public class Hypervolume_Opener implements PlugIn {
 		gd.addNumericField("Increment: ", 1, 0);
 		gd.addStringField("File Name Contains: ", name);
 		gd.addNumericField("Scale Images", scale, 0, 4, "%");
+		gd.addNumericField("Threads: ", nThreads, 0);
 		gd.addCheckbox("Convert to 8-bit Grayscale", grayscale);
 		gd.addMessage("10000 x 10000 x 1000 (100.3MB)");
 		gd.showDialog();
@@ -230,6 +250,9 @@ public class Hypervolume_Opener implements PlugIn {
 		scale = gd.getNextNumber();
 		if (scale < 5.0) scale = 5.0;
 		if (scale > 100.0) scale = 100.0;
+		nThreads = (int) gd.getNextNumber();
+		if (nThreads < 1) nThreads = 1;
+		ParallelImageLoader.setThreads(nThreads);
 		filter = gd.getNextString();
 		grayscale = gd.getNextBoolean();
 
@@ -8,6 +8,7 @@ import ij.ImagePlus;
 import ij.ImageStack;
 import ij.WindowManager;
 import ij.plugin.PlugIn;
+import ij.process.ImageProcessor;
 import sc.fiji.i5d.Image5D;
 
 public class Image5D_to_Stack implements PlugIn {
@@ -26,16 +27,20 @@ public class Image5D_to_Stack implements PlugIn {
 
 		final ImageStack currentImageStack = currentImage.getImageStack();
 
+		final Image5D i5d = (Image5D) currentImage;
+
 		// Copy references to pixel arrays to new image. Don't just copy the
 		// reference to the stack,
 		// because the stack is disassembled when the currentImage is flushed.
-		final ImagePlus newImage =
-			new ImagePlus(currentImage.getTitle(), currentImageStack.getProcessor(1));
+		// Arrays shared between planes are copied.
+		final ImageProcessor ip = currentImageStack.getProcessor(1);
+		ip.setPixels(i5d.getExportedPixels(1));
+		final ImagePlus newImage = new ImagePlus(currentImage.getTitle(), ip);
 		final ImageStack newStack = newImage.getStack();
 		newStack.setSliceLabel(currentImageStack.getSliceLabel(1), 1);
 		for (int i = 2; i <= currentImage.getImageStackSize(); i++) {
-			newStack.addSlice(currentImageStack.getSliceLabel(i), currentImageStack
-				.getPixels(i));
+			newStack.addSlice(currentImageStack.getSliceLabel(i), i5d
+				.getExportedPixels(i));
 		}
 		newImage.setStack(null, newStack);
 
@@ -163,9 +163,9 @@ public class Make_Montage implements PlugIn {
 		bDoScaling = doScaling;
 	}
 
-	ImagePlus doMontage(final Image5D i5d, final int columns, final int rows,
-		final double scale, final int first, final int last, final int inc,
-		final int borderWidth, final boolean labels)
+	public ImagePlus doMontage(final Image5D i5d, final int columns,
+		final int rows, final double scale, final int first, final int last,
+		final int inc, final int borderWidth, final boolean labels)
 	{
 		if (!i5d.lock()) return null; // exit if in use
 
@@ -9,6 +9,8 @@ import ij.Prefs;
 import ij.gui.GenericDialog;
 import ij.gui.NewImage;
 import ij.plugin.PlugIn;
+import sc.fiji.i5d.I5DCompressedStack;
+import sc.fiji.i5d.I5DDirectStack;
 import sc.fiji.i5d.Image5D;
 
 /**
@@ -29,6 +31,8 @@ public class New_Image5D implements PlugIn {
 	static final String CHANNELS = "new.channels";
 	static final String SLICES = "new.slices";
 	static final String FRAMES = "new.frames";
+	static final String OFF_HEAP = "new.offheap";
+	static final String COMPRESSED = "new.compressed";
 
 	private static String name = Prefs.getString(NAME, "Untitled");
 	private static int width = Prefs.getInt(WIDTH, 400);
@@ -38,6 +42,8 @@ public class New_Image5D implements PlugIn {
 	private static int frames = Prefs.getInt(FRAMES, 1);
 	private static int type = Prefs.getInt(TYPE, NewImage.GRAY8);
 	private static int fillWith = Prefs.getInt(FILL, OLD_FILL_WHITE);
+	private static boolean offHeap = Prefs.getBoolean(OFF_HEAP, false);
+	private static boolean compressed = Prefs.getBoolean(COMPRESSED, false);
 	private static String[] types = { "8-bit", "16-bit", "32-bit" };
 //    private static String[] fill = {"White", "Black", "Ramp", "Clipboard"};
 	private static String[] fill = { "White", "Black", "Ramp" };
@@ -51,7 +57,38 @@ public class New_Image5D implements PlugIn {
 
 	public static Image5D createImage5D(final String title, final int width,
 		final int height, final int nChannels, final int nSlices,
-		final int nFrames, final int bitDepth, int options, final boolean fill)
+		final int nFrames, final int bitDepth, final int options,
+		final boolean fill)
+	{
+		return createImage5D(title, width, height, nChannels, nSlices, nFrames,
+			bitDepth, options, fill, false);
+	}
+
+	/**
+	 * Creates a new Image5D. If <code>offHeap</code> is true, its planes are
+	 * kept in direct memory (see {@link I5DDirectStack}), and each of them is
+	 * filled, regardless of <code>fill</code>.
+	 */
+	public static Image5D createImage5D(final String title, final int width,
+		final int height, final int nChannels, final int nSlices,
+		final int nFrames, final int bitDepth, final int options,
+		final boolean fill, final boolean offHeap)
+	{
+		return createImage5D(title, width, height, nChannels, nSlices, nFrames,
+			bitDepth, options, fill, offHeap, false);
+	}
+
+	/**
+	 * Creates a new Image5D. If <code>offHeap</code> is true, its planes are
+	 * kept in direct memory (see {@link I5DDirectStack}), else if
+	 * <code>compressed</code> is true, they are kept compressed (see
+	 * {@link I5DCompressedStack}). In both cases, each plane is filled,
+	 * regardless of <code>fill</code>.
+	 */
+	public static Image5D createImage5D(final String title, final int width,
+		final int height, final int nChannels, final int nSlices,
+		final int nFrames, final int bitDepth, int options, final boolean fill,
+		final boolean offHeap, final boolean compressed)
 	{
 		int imageType = ImagePlus.GRAY8;
 		switch (bitDepth) {
@@ -75,6 +112,34 @@ public class New_Image5D implements PlugIn {
 //            options = NewImage.FILL_BLACK;
 //        else if (type.indexOf("ramp")!=-1)
 //            options = NewImage.FILL_RAMP;
+		if (offHeap) {
+			final ImagePlus imp =
+				NewImage.createImage(title, width, height, 1, bitDepth, options);
+			final int nPlanes = nChannels * nSlices * nFrames;
+			final I5DDirectStack stack =
+				new I5DDirectStack(width, height, imp.getProcessor().getColorModel(),
+					bitDepth, nPlanes);
+			for (int n = 1; n <= nPlanes; n++) {
+				stack.setPixels(imp.getProcessor().getPixels(), n);
+			}
+			final Image5D i5d =
+				new Image5D(title, stack, nChannels, nSlices, nFrames);
+			i5d.updateImageAndDraw();
+			return i5d;
+		}
+		if (compressed) {
+			final ImagePlus imp =
+				NewImage.createImage(title, width, height, 1, bitDepth, options);
+			final I5DCompressedStack stack =
+				new I5DCompressedStack(width, height, imp.getProcessor()
+					.getColorModel(), bitDepth, nChannels * nSlices * nFrames);
+			stack.setAllPixels(imp.getProcessor().getPixels());
+			final Image5D i5d =
+				new Image5D(title, stack, nChannels, nSlices, nFrames);
+			i5d.updateImageAndDraw();
+			return i5d;
+		}
+
 		options |= NewImage.CHECK_AVAILABLE_MEMORY;
 
 		// Create Image5D
@@ -122,6 +187,8 @@ public class New_Image5D implements PlugIn {
 		gd.addNumericField("Channels:", channels, 0, 5, "");
 		gd.addNumericField("Slices:", slices, 0, 5, "");
 		gd.addNumericField("Frames:", frames, 0, 5, "");
+		gd.addCheckbox("Off-heap storage", offHeap);
+		gd.addCheckbox("Compressed storage", compressed);
 		gd.showDialog();
 		if (gd.wasCanceled()) return false;
 		name = gd.getNextString();
@@ -136,6 +203,8 @@ public class New_Image5D implements PlugIn {
 		channels = (int) gd.getNextNumber();
 		slices = (int) gd.getNextNumber();
 		frames = (int) gd.getNextNumber();
+		offHeap = gd.getNextBoolean();
+		compressed = gd.getNextBoolean();
 		return true;
 	}
 
@@ -149,7 +218,7 @@ public class New_Image5D implements PlugIn {
 		final long startTime = System.currentTimeMillis();
 		final Image5D i5d =
 			createImage5D(title, width, height, nChannels, nSlices, nFrames,
-				bitDepth, options, true);
+				bitDepth, options, true, offHeap, compressed);
 
 		i5d.setDefaultColors();
 		i5d.setDefaultChannelNames();
@@ -5,12 +5,14 @@ package sc.fiji.i5d.plugin;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.io.FileInfo;
 import ij.io.FileOpener;
 import ij.io.OpenDialog;
 import ij.io.Opener;
 import ij.io.TiffDecoder;
 import ij.plugin.PlugIn;
+import sc.fiji.i5d.I5DMappedStack;
 import sc.fiji.i5d.Image5D;
 import sc.fiji.i5d.cal.ChannelCalibration;
 import sc.fiji.i5d.cal.ChannelDisplayProperties;
@@ -38,6 +40,11 @@ public class Open_Image5D implements PlugIn {
 	public static final int tagLBL = 0x004c424c;
 	public static final int tagCAL = 0x0043414c;
 
+	/**
+	 * Opens an Image5D from a TIFF file. With arg "mapped", uncompressed files are
+	 * mapped into memory instead of being read. This is also done if the image
+	 * data don't fit into the free memory.
+	 */
 	@Override
 	public void run(final String arg) {
 		IJ.register(Open_Image5D.class);
@@ -83,26 +90,66 @@ public class Open_Image5D implements PlugIn {
 					return;
 			}
 
-			// Copied from Opener.openTIFF2()
 			ImagePlus imp = null;
-			if (info.length > 1) { // try to open as stack
-				imp = (new Opener()).openTiffStack(info);
+			ImageStack stack = null;
+			int nChannels = 1;
+			int nSlices = 1;
+			int nFrames = 1;
+			final long freeMemory = IJ.maxMemory() - IJ.currentMemory();
+			if (I5DMappedStack.canMap(info) &&
+				("mapped".equals(arg) ||
+					I5DMappedStack.getSizeInBytes(info) > freeMemory))
+			{
+				try {
+					stack = new I5DMappedStack(info);
+				}
+				catch (final IOException e) {
+					IJ.error("Open Image5D", "Error mapping file: " + e.getMessage());
+					return;
+				}
+				// Read only the first plane for title and calibration.
+				final FileInfo fi = (FileInfo) info[0].clone();
+				fi.nImages = 1;
+				imp = new FileOpener(fi).open(false);
+				if (imp != null) {
+					final Properties props =
+						new FileOpener(fi).decodeDescriptionString((FileInfo) info[0]
+							.clone());
+					if (props != null) {
+						nChannels = getInt(props, "channels");
+						nSlices = getInt(props, "slices");
+						nFrames = getInt(props, "frames");
+					}
+					if (nChannels * nSlices * nFrames != stack.getSize()) {
+						nChannels = 1;
+						nSlices = stack.getSize();
+						nFrames = 1;
+					}
+				}
 			}
-			else { // Single image or ImageJ-stack
-				final FileOpener fo = new FileOpener(info[0]);
-				imp = fo.open(false);
+			else {
+				// Copied from Opener.openTIFF2()
+				if (info.length > 1) { // try to open as stack
+					imp = (new Opener()).openTiffStack(info);
+				}
+				else { // Single image or ImageJ-stack
+					final FileOpener fo = new FileOpener(info[0]);
+					imp = fo.open(false);
+				}
+				if (imp != null) {
+					stack = imp.getImageStack();
+					nChannels = imp.getNChannels();
+					nSlices = imp.getNSlices();
+					nFrames = imp.getNFrames();
+				}
 			}
 
 			if (imp != null) {
-				// get dimensions:
 				String title = imp.getTitle();
-				final int nChannels = imp.getNChannels();
-				final int nSlices = imp.getNSlices();
-				final int nFrames = imp.getNFrames();
 
 				// Create Image5D with the loaded image data.
 				final Image5D i5d =
-					new Image5D(title, imp.getImageStack(), nChannels, nSlices, nFrames);
+					new Image5D(title, stack, nChannels, nSlices, nFrames);
 
 				// Copy over the calibration (pixel width, height, depth, frame
 				// interval).
@@ -301,4 +348,13 @@ public class Open_Image5D implements PlugIn {
 
 	}
 
+	private static int getInt(final Properties props, final String key) {
+		try {
+			return Integer.parseInt(props.getProperty(key, "1"));
+		}
+		catch (final NumberFormatException e) {
+			return 1;
+		}
+	}
+
 }
@@ -0,0 +1,53 @@
+package sc.fiji.i5d.plugin;
+//
+// Orthogonal_Views.java
+//
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.plugin.PlugIn;
+import sc.fiji.i5d.Image5D;
+import sc.fiji.i5d.gui.Image5DWindow;
+import sc.fiji.i5d.gui.OrthogonalViews;
+
+/**
+ * Shows the XZ and YZ sections and the XT kymograph through the cursor
+ * position of the current Image5D. Closes them, if they are shown.
+ */
+public class Orthogonal_Views implements PlugIn {
+
+	@Override
+	public void run(final String arg) {
+		final ImagePlus imp = WindowManager.getCurrentImage();
+
+		if (imp == null) {
+			IJ.noImage();
+			return;
+		}
+		if (!(imp instanceof Image5D)) {
+			IJ.error("Image is not an Image5D.");
+			return;
+		}
+
+		final Image5D i5d = (Image5D) imp;
+		if (!(i5d.getWindow() instanceof Image5DWindow)) {
+			IJ.error("Image5D is not displayed.");
+			return;
+		}
+		if (i5d.getNSlices() < 2 && i5d.getNFrames() < 2) {
+			IJ.error("Image5D has only one slice and one frame.");
+			return;
+		}
+
+		final OrthogonalViews views =
+			((Image5DWindow) i5d.getWindow()).getOrthogonalViews();
+		if (views.isShowing()) {
+			views.stop();
+		}
+		else {
+			views.start();
+		}
+	}
+
+}
@@ -0,0 +1,111 @@
+package sc.fiji.i5d.plugin;
+//
+// Play_Image5D.java
+//
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+import sc.fiji.i5d.Image5D;
+import sc.fiji.i5d.gui.Image5DWindow;
+import sc.fiji.i5d.gui.PlaybackController;
+
+/**
+ * Plays the frames of the current Image5D. Stops playback, if it is running,
+ * and shows the achieved frame rate and the number of dropped frames.
+ */
+public class Play_Image5D implements PlugIn {
+
+	@Override
+	public void run(final String arg) {
+		final ImagePlus imp = WindowManager.getCurrentImage();
+
+		if (imp == null) {
+			IJ.noImage();
+			return;
+		}
+		if (!(imp instanceof Image5D)) {
+			IJ.error("Image is not an Image5D.");
+			return;
+		}
+
+		final Image5D i5d = (Image5D) imp;
+		if (!(i5d.getWindow() instanceof Image5DWindow)) {
+			IJ.error("Image5D is not displayed.");
+			return;
+		}
+		if (i5d.getNFrames() < 2) {
+			IJ.error("Image5D has only one frame.");
+			return;
+		}
+
+		final PlaybackController controller =
+			((Image5DWindow) i5d.getWindow()).getPlaybackController();
+		if (controller.isPlaying()) {
+			controller.stop();
+			IJ.showStatus("Playback: " + controller.getSummary());
+			return;
+		}
+
+		final int nChannels = i5d.getNChannels();
+		final GenericDialog gd = new GenericDialog("Play Image5D");
+		gd.addNumericField("Frame rate", controller.getFramesPerSecond(), 1, 5,
+			"fps");
+		gd.addChoice("Mode", PlaybackController.modes,
+			PlaybackController.modes[controller.getMode()]);
+		gd.addNumericField("First frame", controller.getFirstFrame(), 0, 5, "");
+		gd.addNumericField("Last frame", controller.getLastFrame(), 0, 5, "");
+		gd.addNumericField("Slice", i5d.getCurrentSlice(), 0, 5, "");
+		gd.addNumericField("Read ahead", controller.getReadAhead(), 0, 5,
+			"frames");
+		if (nChannels > 1) {
+			final String[] labels = new String[nChannels];
+			final boolean[] shown = new boolean[nChannels];
+			for (int c = 1; c <= nChannels; c++) {
+				labels[c - 1] = i5d.getChannelCalibration(c).getLabel();
+				if (labels[c - 1] == null || labels[c - 1].equals("")) labels[c - 1] =
+					"Channel " + c;
+				shown[c - 1] = i5d.isDisplayedInOverlay(c);
+			}
+			gd.addMessage("Channels shown in overlay:");
+			gd.addCheckboxGroup((nChannels + 2) / 3, Math.min(3, nChannels), labels,
+				shown);
+		}
+		gd.showDialog();
+
+		if (gd.wasCanceled()) {
+			return;
+		}
+
+		final double fps = gd.getNextNumber();
+		final int mode = gd.getNextChoiceIndex();
+		final int first = (int) gd.getNextNumber();
+		final int last = (int) gd.getNextNumber();
+		final int slice = (int) gd.getNextNumber();
+		final int readAhead = (int) gd.getNextNumber();
+		if (gd.invalidNumber() || fps <= 0 || first < 1 || last > i5d.getNFrames() ||
+			first >= last)
+		{
+			IJ.error("Invalid frame rate or frame range.");
+			return;
+		}
+		boolean[] channels = null;
+		if (nChannels > 1) {
+			channels = new boolean[nChannels];
+			for (int c = 0; c < nChannels; c++) {
+				channels[c] = gd.getNextBoolean();
+			}
+		}
+
+		if (slice >= 1 && slice <= i5d.getNSlices()) i5d.setSlice(slice);
+		controller.setFramesPerSecond(fps);
+		controller.setMode(mode);
+		controller.setFrameRange(first, last);
+		controller.setReadAhead(readAhead);
+		controller.setChannels(channels);
+		controller.start();
+	}
+
+}
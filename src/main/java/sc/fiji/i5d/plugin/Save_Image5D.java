@@ -5,7 +5,9 @@ package sc.fiji.i5d.plugin;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.LookUpTable;
+import ij.VirtualStack;
 import ij.WindowManager;
 import ij.io.FileInfo;
 import ij.io.FileSaver;
@@ -13,6 +15,11 @@ import ij.io.SaveDialog;
 import ij.io.TiffEncoder;
 import ij.measure.Calibration;
 import ij.plugin.PlugIn;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 import sc.fiji.i5d.Image5D;
 import sc.fiji.i5d.cal.ChannelCalibration;
 import sc.fiji.i5d.cal.ChannelDisplayProperties;
@@ -21,11 +28,18 @@ import java.awt.image.ColorModel;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 public class Save_Image5D implements PlugIn {
 
+	/** Size of the buffer between the TIFF encoder and the file channel. */
+	static final int BUFFER_SIZE = 1 << 20;
+
 	/**
 	 * Save the Image5D in TIFF format using a save file dialog. Returns false if
 	 * the user selects cancel.
@@ -73,16 +87,23 @@ public class Save_Image5D implements PlugIn {
 
 //        if (fi.nImages==1)
 //            {IJ.error("This is not a stack"); return false;}
-		if (fi.pixels == null && imp.getStack().isVirtual()) {
-			IJ.error("Save As Tiff", "Virtual stacks not supported.");
-			return false;
+
+		// Hand the planes to the writer one at a time, so that only one plane
+		// has to be in memory. This also works for virtual stacks.
+		final ImageStack stack = imp.getImageStack();
+		if (fi.nImages > 1) {
+			fi.pixels = null;
+			fi.virtualStack = new PlaneSource(stack);
+		}
+		else if (fi.pixels == null) {
+			fi.pixels = stack.getPixels(1);
 		}
 
 		// Get description string
 		String description = (new FileSaver(imp)).getDescriptionString();
 
 		// Reference slice labels
-		fi.sliceLabels = imp.getImageStack().getSliceLabels();
+		fi.sliceLabels = getSliceLabels(stack);
 
 		if (imp instanceof Image5D) {
 			final Image5D i5d = (Image5D) imp;
@@ -244,20 +265,47 @@ public class Save_Image5D implements PlugIn {
 
 		try {
 			final TiffEncoder file = new TiffEncoder(fi);
+			final FileChannel channel =
+				FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
 			final DataOutputStream out =
-				new DataOutputStream(new BufferedOutputStream(
-					new FileOutputStream(path)));
-			file.write(out);
-			out.close();
+				new DataOutputStream(new BufferedOutputStream(Channels
+					.newOutputStream(channel), BUFFER_SIZE));
+			try {
+				file.write(out);
+			}
+			finally {
+				out.close();
+			}
 		}
 		catch (final IOException e) {
 			showErrorMessage(e);
 			return false;
 		}
+		catch (final UncheckedIOException e) {
+			showErrorMessage(e.getCause());
+			return false;
+		}
+		finally {
+			fi.virtualStack = null;
+		}
 		updateImp(imp, fi, name, directory, FileInfo.TIFF);
 		return true;
 	}
 
+	/**
+	 * Returns the slice labels of the stack. For virtual stacks they are
+	 * collected with getSliceLabel().
+	 */
+	private static String[] getSliceLabels(final ImageStack stack) {
+		if (!stack.isVirtual()) return stack.getSliceLabels();
+		final String[] labels = new String[stack.getSize()];
+		for (int n = 1; n <= labels.length; ++n) {
+			labels[n - 1] = stack.getSliceLabel(n);
+		}
+		return labels;
+	}
+
 	private void updateImp(final ImagePlus imp, final FileInfo fi,
 		final String name, final String directory, final int fileFormat)
 	{
@@ -277,4 +325,54 @@ public class Save_Image5D implements PlugIn {
 	void showErrorMessage(final IOException e) {
 		IJ.error("An error occured writing the file.\n \n" + e);
 	}
+
+	/**
+	 * Presents any ImageStack as VirtualStack to ImageWriter, which then
+	 * requests the planes one after the other.
+	 */
+	private static class PlaneSource extends VirtualStack {
+
+		private final ImageStack stack;
+
+		PlaneSource(final ImageStack stack) {
+			super(stack.getWidth(), stack.getHeight());
+			this.stack = stack;
+		}
+
+		@Override
+		public int getSize() {
+			return stack.getSize();
+		}
+
+		@Override
+		public String getSliceLabel(final int n) {
+			return stack.getSliceLabel(n);
+		}
+
+		@Override
+		public Object getPixels(final int n) {
+			return stack.getPixels(n);
+		}
+
+		@Override
+		public ImageProcessor getProcessor(final int n) {
+			final Object pixels = stack.getPixels(n);
+			final int width = getWidth();
+			final int height = getHeight();
+			if (pixels instanceof byte[]) {
+				return new ByteProcessor(width, height, (byte[]) pixels);
+			}
+			else if (pixels instanceof short[]) {
+				return new ShortProcessor(width, height, (short[]) pixels, null);
+			}
+			else if (pixels instanceof float[]) {
+				return new FloatProcessor(width, height, (float[]) pixels);
+			}
+			else if (pixels instanceof int[]) {
+				return new ColorProcessor(width, height, (int[]) pixels);
+			}
+			throw new UncheckedIOException(new IOException("Cannot read plane " +
+				n + " (" + stack.getSliceLabel(n) + ")"));
+		}
+	}
 }
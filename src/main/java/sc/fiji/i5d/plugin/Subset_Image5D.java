@@ -0,0 +1,112 @@
+package sc.fiji.i5d.plugin;
+//
+// Subset_Image5D.java
+//
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.gui.GenericDialog;
+import ij.gui.Roi;
+import ij.plugin.PlugIn;
+import sc.fiji.i5d.Image5D;
+
+import java.awt.Rectangle;
+
+/**
+ * Shows a subset of the channels, slices and frames of the current Image5D
+ * and, optionally, only the bounding rectangle of its selection, without
+ * copying pixels (see {@link Image5D#createView}).
+ */
+public class Subset_Image5D implements PlugIn {
+
+	@Override
+	public void run(final String arg) {
+		final ImagePlus imp = WindowManager.getCurrentImage();
+		if (imp == null) {
+			IJ.noImage();
+			return;
+		}
+		if (!(imp instanceof Image5D)) {
+			IJ.error("Image is not an Image5D.");
+			return;
+		}
+		final Image5D i5d = (Image5D) imp;
+		final int nChannels = i5d.getNChannels();
+		final int nSlices = i5d.getNSlices();
+		final int nFrames = i5d.getNFrames();
+		final Roi roi = i5d.getRoi();
+
+		final GenericDialog gd = new GenericDialog("Subset View");
+		if (nChannels > 1) {
+			final String[] labels = new String[nChannels];
+			final boolean[] selected = new boolean[nChannels];
+			for (int c = 1; c <= nChannels; c++) {
+				labels[c - 1] = i5d.getChannelCalibration(c).getLabel();
+				if (labels[c - 1] == null || labels[c - 1].equals("")) labels[c - 1] =
+					"Channel " + c;
+				selected[c - 1] = true;
+			}
+			gd.addMessage("Channels:");
+			gd.addCheckboxGroup((nChannels + 2) / 3, Math.min(3, nChannels), labels,
+				selected);
+		}
+		if (nSlices > 1) {
+			gd.addNumericField("First slice", 1, 0, 5, "");
+			gd.addNumericField("Last slice", nSlices, 0, 5, "");
+		}
+		if (nFrames > 1) {
+			gd.addNumericField("First frame", 1, 0, 5, "");
+			gd.addNumericField("Last frame", nFrames, 0, 5, "");
+		}
+		if (roi != null) gd.addCheckbox("Crop to selection", true);
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+
+		int[] channels = new int[nChannels];
+		int n = 0;
+		for (int c = 1; c <= nChannels; c++) {
+			if (nChannels == 1 || gd.getNextBoolean()) channels[n++] = c;
+		}
+		if (n == 0) {
+			IJ.error("No channel selected.");
+			return;
+		}
+		if (n < nChannels) {
+			final int[] tmp = new int[n];
+			System.arraycopy(channels, 0, tmp, 0, n);
+			channels = tmp;
+		}
+		int firstSlice = 1, lastSlice = nSlices;
+		if (nSlices > 1) {
+			firstSlice = (int) gd.getNextNumber();
+			lastSlice = (int) gd.getNextNumber();
+		}
+		int firstFrame = 1, lastFrame = nFrames;
+		if (nFrames > 1) {
+			firstFrame = (int) gd.getNextNumber();
+			lastFrame = (int) gd.getNextNumber();
+		}
+		if (firstSlice < 1 || lastSlice > nSlices || firstSlice > lastSlice ||
+			firstFrame < 1 || lastFrame > nFrames || firstFrame > lastFrame)
+		{
+			IJ.error("Invalid range of slices or frames.");
+			return;
+		}
+		Rectangle crop = null;
+		if (roi != null && gd.getNextBoolean()) {
+			crop = roi.getBounds().intersection(
+				new Rectangle(0, 0, i5d.getWidth(), i5d.getHeight()));
+			if (crop.isEmpty()) {
+				IJ.error("Selection is outside of the image.");
+				return;
+			}
+		}
+
+		final Image5D view =
+			i5d.createView(channels, firstSlice, lastSlice - firstSlice + 1,
+				firstFrame, lastFrame - firstFrame + 1, crop);
+		view.show();
+	}
+
+}
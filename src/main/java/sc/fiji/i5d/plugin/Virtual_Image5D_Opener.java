@@ -4,23 +4,23 @@ package sc.fiji.i5d.plugin;
 //
 
 import ij.IJ;
-import ij.ImagePlus;
 import ij.gui.GenericDialog;
 import ij.io.OpenDialog;
-import ij.io.Opener;
 import ij.measure.Calibration;
 import ij.plugin.PlugIn;
 import sc.fiji.i5d.I5DVirtualStack;
 import sc.fiji.i5d.Image5D;
+import sc.fiji.i5d.util.ImageHeader;
 import sc.fiji.i5d.util.NumberedStringSorter;
+import sc.fiji.i5d.util.ParallelImageLoader;
 
 import java.awt.Choice;
 import java.awt.Label;
 import java.awt.TextField;
 import java.awt.event.ItemEvent;
 import java.awt.event.TextEvent;
-import java.awt.image.ColorModel;
 import java.io.File;
+import java.util.ArrayList;
 
 /* Joachim Walter 2006-02-16 
  * Heavily uses code from FileOpener and Virtual_Stack_Opener. */
@@ -64,28 +64,23 @@ public class Virtual_Image5D_Opener implements PlugIn {
 		IJ.register(Hypervolume_Opener.class);
 
 		try {
-			// Open selected image and show Dialog.
-			ImagePlus imp = new Opener().openImage(directory, name);
-			if (imp != null) {
-				width = imp.getWidth();
-				height = imp.getHeight();
-				cal = imp.getCalibration();
-			}
-			else { // Selected file is no image. Try opening starting from first
-							// file.// Open first image in filelist and show Dialog.
-				for (int i = 0; i < list.length; i++) {
+			// Read header of selected image and show Dialog.
+			ImageHeader header = ImageHeader.read(directory, name);
+			if (header == null) { // Selected file is no image. Try the files
+				// starting from the first one. Only the headers are read, so this is
+				// quick even if the folder starts with many other files.
+				for (int i = 0; i < list.length && header == null; i++) {
 					if (list[i].endsWith(".txt")) continue;
-					imp = new Opener().openImage(directory, list[i]);
-					if (imp != null) {
-						width = imp.getWidth();
-						height = imp.getHeight();
-						cal = imp.getCalibration();
-						break;
-					}
+					header = ImageHeader.read(directory, list[i]);
 				}
 			}
+			if (header != null) {
+				width = header.getWidth();
+				height = header.getHeight();
+				cal = header.getCalibration();
+			}
 
-			if (imp != null && !showDialog(imp, list)) {
+			if (header != null && !showDialog(header, list)) {
 				return;
 			}
 
@@ -116,25 +111,38 @@ public class Virtual_Image5D_Opener implements PlugIn {
 			}
 			if (filteredImages < n) n = filteredImages;
 
-			int count = 0;
+			final ArrayList<String> names = new ArrayList<String>();
 			int counter = 0;
-			imp = null;
 			for (int i = start - 1; i < list.length; i++) {
 				if (list[i].endsWith(".txt")) continue;
 				if (filter != null && (list[i].indexOf(filter) < 0)) continue;
 				if ((counter++ % increment) != 0) continue;
-				if (stack == null) imp = new Opener().openImage(directory, list[i]);
-				if (imp == null) continue;
-				if (stack == null) {
-					width = imp.getWidth();
-					height = imp.getHeight();
-					final ColorModel cm = imp.getProcessor().getColorModel();
-					stack = new I5DVirtualStack(width, height, cm, directory);
+				names.add(list[i]);
+			}
+
+			// Check all headers before building the stack, so that files the
+			// virtual stack can't display are left out.
+			final ImageHeader[] headers =
+				ImageHeader.readAll(directory, names.toArray(new String[names
+					.size()]), ParallelImageLoader.getThreads());
+			ImageHeader reference = null;
+			int count = 0;
+			for (int i = 0; i < headers.length; i++) {
+				if (headers[i] == null) continue;
+				if (reference == null) {
+					reference = headers[i];
+					stack =
+						new I5DVirtualStack(reference.getWidth(), reference.getHeight(),
+							reference.getColorModel(), directory);
+				}
+				else if (!headers[i].matches(reference)) {
+					IJ.log(names.get(i) + ": wrong dimensions or type");
+					continue;
 				}
 				count = stack.getSize() + 1;
 				IJ.showStatus(count + "/" + n);
 				IJ.showProgress((double) count / n);
-				stack.addSlice(list[i]);
+				stack.addSlice(names.get(i));
 				if (count >= n) break;
 			}
 		}
@@ -239,10 +247,10 @@ public class Virtual_Image5D_Opener implements PlugIn {
 		System.gc();
 	}
 
-	boolean showDialog(final ImagePlus imp, final String[] list) {
+	boolean showDialog(final ImageHeader header, final String[] list) {
 		final int fileCount = list.length;
 
-		String name = imp.getTitle();
+		String name = header.getName();
 		if (name.length() > 4 &&
 			(name.substring(name.length() - 4, name.length()))
 				.equalsIgnoreCase(".tif"))
@@ -261,7 +269,7 @@ public class Virtual_Image5D_Opener implements PlugIn {
 		last = 2;
 
 		final Vi5dOpenerDialog gd =
-			new Vi5dOpenerDialog("Sequence Options", imp, list);
+			new Vi5dOpenerDialog("Sequence Options", header, list);
 		gd.addNumericField("Number of Images: ", fileCount, 0);
 		gd.addNumericField("Starting Image: ", 1, 0);
 		gd.addNumericField("Increment: ", 1, 0);
@@ -301,7 +309,7 @@ public class Virtual_Image5D_Opener implements PlugIn {
 		 * 
 		 */
 		private static final long serialVersionUID = -2870244327145783251L;
-		ImagePlus imp;
+		ImageHeader header;
 		int fileCount;
 		boolean eightBits;
 		String saveFilter = "";
@@ -310,11 +318,11 @@ public class Virtual_Image5D_Opener implements PlugIn {
 		Choice choice2;
 		int nChoices;
 
-		public Vi5dOpenerDialog(final String title, final ImagePlus imp,
+		public Vi5dOpenerDialog(final String title, final ImageHeader header,
 			final String[] list)
 		{
 			super(title);
-			this.imp = imp;
+			this.header = header;
 			this.list = list;
 			this.fileCount = list.length;
 		}
@@ -350,9 +358,9 @@ public class Virtual_Image5D_Opener implements PlugIn {
 		}
 
 		void setStackInfo() {
-			int width = imp.getWidth();
-			int height = imp.getHeight();
-			int bytesPerPixel = 1;
+			final int width = header.getWidth();
+			final int height = header.getHeight();
+			final int bytesPerPixel = header.getBytesPerPixel();
 //            int nSlices = imp.getStackSize();
 			int n = getNumber(numberField.elementAt(0));
 			int start = getNumber(numberField.elementAt(1));
@@ -379,15 +387,6 @@ public class Virtual_Image5D_Opener implements PlugIn {
 					}
 				saveFilter = filter;
 			}
-			switch (imp.getType()) {
-				case ImagePlus.GRAY16:
-					bytesPerPixel = 2;
-					break;
-				case ImagePlus.COLOR_RGB:
-				case ImagePlus.GRAY32:
-					bytesPerPixel = 4;
-					break;
-			}
 			int n2 = n / inc;
 			if (n2 < 0) n2 = 0;
 			final double size =
@@ -5,15 +5,29 @@ package sc.fiji.i5d.plugin;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
 import ij.plugin.PlugIn;
 import ij.plugin.ZProjector;
-import ij.process.ColorProcessor;
-import ij.process.TypeConverter;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import sc.fiji.i5d.ChannelCompositor;
 import sc.fiji.i5d.Image5D;
+import sc.fiji.i5d.cal.ChannelDisplayProperties;
 import sc.fiji.i5d.gui.ChannelControl;
 
+import java.awt.image.ColorModel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class Z_Project implements PlugIn {
 
 	/** Projection starts from this slice. */
@@ -134,12 +148,10 @@ public class Z_Project implements PlugIn {
 		bDoScaling = doScaling;
 	}
 
-	ImagePlus doProjection() {
+	public ImagePlus doProjection() {
 		if (!imp.lock()) return null; // exit if in use
 
 		final int currentChannel = i5d.getCurrentChannel();
-		final int currentSlice = i5d.getCurrentSlice();
-		final int currentFrame = i5d.getCurrentFrame();
 
 		// Do Projection.
 		// Check, which channels are projected and store channel changes to keep
@@ -157,6 +169,7 @@ public class Z_Project implements PlugIn {
 			nProjectedChannels++;
 		}
 		if (bDisplayedChannelsOnly && nProjectedChannels == 0) {
+			imp.unlock();
 			return null;
 		}
 
@@ -167,100 +180,66 @@ public class Z_Project implements PlugIn {
 			nFrames = i5d.getNFrames();
 		}
 
-		// Allocate output arrays
-		final byte[] reds = new byte[i5d.getWidth() * i5d.getHeight()];
-		final byte[] greens = new byte[i5d.getWidth() * i5d.getHeight()];
-		final byte[] blues = new byte[i5d.getWidth() * i5d.getHeight()];
+		// Allocate output image
 		final String newTitle =
 			WindowManager.makeUniqueName(imp.getTitle() + " Projection");
 		final ImagePlus resultImp =
 			IJ.createImage(newTitle, "rgb black", i5d.getWidth(), i5d.getHeight(),
 				nFrames);
 		resultImp.setCalibration(imp.getCalibration().copy());
+		final ImageStack resultStack = resultImp.getStack();
 
+		// Project each channel and frame in its own task. The task that finishes
+		// the last projection of a frame maps the channels of the frame through
+		// their LUTs and adds them up in the RGB plane, row by row.
+		final ExecutorService pool = Executors.newFixedThreadPool(Prefs.getThreads());
+		final List<Future<Object>> futures = new ArrayList<Future<Object>>();
 		for (int frame = startFrame; frame < startFrame + nFrames; frame++) {
+			final int[] frameRGB =
+				(int[]) resultStack.getPixels(frame - startFrame + 1);
+			final ImageProcessor[] projections =
+				new ImageProcessor[nProjectedChannels];
+			final ColorModel[] colorModels = new ColorModel[nProjectedChannels];
+			final AtomicInteger remaining = new AtomicInteger(nProjectedChannels);
 			for (int destChannel = 1; destChannel <= nProjectedChannels; destChannel++)
 			{
 				final int srcChannel = projectedChannels[destChannel - 1];
-
-				// Do projection for each channel separately
-				i5d.setCurrentPosition(0, 0, srcChannel - 1, currentSlice - 1,
-					frame - 1);
-				final ImagePlus tempImg =
-					new ImagePlus(imp.getTitle() + " Projection", i5d.getStack());
-				final ZProjector zp = new ZProjector(tempImg);
-				zp.setStartSlice(startSlice);
-				zp.setStopSlice(stopSlice);
-				zp.setMethod(method);
-				zp.doProjection();
-				final ImagePlus proj = zp.getProjection();
-				if (bDoScaling) {
-					proj.getProcessor().setMinAndMax(
-						i5d.getChannelDisplayProperties(srcChannel).getMinValue(),
-						i5d.getChannelDisplayProperties(srcChannel).getMaxValue());
-				}
-				else {
-					proj.getProcessor().resetMinAndMax();
-				}
-
-				// Sort projections into color channels
-				final ColorProcessor proc =
-					(ColorProcessor) (new TypeConverter(proj.getProcessor(), bDoScaling))
-						.convertToRGB();
-
-				final int[] rgb = new int[3];
-				for (int x = 0; x < imp.getWidth(); x++) {
-					for (int y = 0; y < imp.getHeight(); y++) {
-						final int pos = x + imp.getWidth() * y;
-						proc.getPixel(x, y, rgb);
-
-						int newval = rgb[0] + (0xff & reds[pos]);
-						if (newval < 256) {
-							reds[pos] = (byte) newval;
+				final int srcFrame = frame;
+				final int index = destChannel - 1;
+				futures.add(pool.submit(new Callable<Object>() {
+
+					@Override
+					public Object call() {
+						final ImageProcessor proj = project(srcChannel, srcFrame);
+						final ChannelDisplayProperties props =
+							i5d.getChannelDisplayProperties(srcChannel);
+						if (bDoScaling) {
+							proj.setMinAndMax(props.getMinValue(), props.getMaxValue());
 						}
 						else {
-							reds[pos] = (byte) 0xff;
-						}
-						newval = rgb[1] + (0xff & greens[pos]);
-						if (newval < 256) {
-							greens[pos] = (byte) newval;
+							// Without scaling, values are clipped to 0-255, like
+							// TypeConverter does it.
+							proj.setMinAndMax(0, proj instanceof FloatProcessor ? 256 : 255);
 						}
-						else {
-							greens[pos] = (byte) 0xff;
-						}
-						newval = rgb[2] + (0xff & blues[pos]);
-						if (newval < 256) {
-							blues[pos] = (byte) newval;
-						}
-						else {
-							blues[pos] = (byte) 0xff;
+						projections[index] = proj;
+						colorModels[index] = props.getColorModel();
+						if (remaining.decrementAndGet() == 0) {
+							ChannelCompositor.addChannels(projections, colorModels,
+								frameRGB);
 						}
+						return null;
 					}
-				}
-			}
-			final ColorProcessor cp =
-				new ColorProcessor(imp.getWidth(), imp.getHeight());
-			cp.setRGB(reds, greens, blues);
-			resultImp.setSlice(frame - startFrame + 1);
-			resultImp.setProcessor(null, cp);
-			for (int i = 0; i < imp.getWidth() * imp.getHeight(); i++) {
-				reds[i] = 0;
-				greens[i] = 0;
-				blues[i] = 0;
+				}));
 			}
 		}
-
-		i5d.setCurrentPosition(0, 0, currentChannel - 1, currentSlice - 1,
-			currentFrame - 1);
+		final boolean done = waitFor(pool, futures);
 		imp.unlock();
 
-		return resultImp;
+		return done ? resultImp : null;
 	}
 
 	Image5D doI5DProjection() {
 		final int currentChannel = i5d.getCurrentChannel();
-		final int currentSlice = i5d.getCurrentSlice();
-		final int currentFrame = i5d.getCurrentFrame();
 
 		// Do Projection.
 		// Check, which channels are projected and store channel changes to keep
@@ -296,25 +275,33 @@ public class Z_Project implements PlugIn {
 				nProjectedChannels, 1, nFrames, false);
 		resultI5D.setCalibration(i5d.getCalibration().copy());
 
+		// Project each channel and frame in its own task.
+		final ExecutorService pool = Executors.newFixedThreadPool(Prefs.getThreads());
+		final List<Future<Object>> futures = new ArrayList<Future<Object>>();
+		for (int frame = startFrame; frame < startFrame + nFrames; frame++) {
+			for (int destChannel = 1; destChannel <= nProjectedChannels; destChannel++)
+			{
+				final int srcChannel = projectedChannels[destChannel - 1];
+				final int srcFrame = frame;
+				futures.add(pool.submit(new Callable<Object>() {
+
+					@Override
+					public Object call() {
+						return project(srcChannel, srcFrame).getPixels();
+					}
+				}));
+			}
+		}
+		if (!waitFor(pool, futures)) return null;
+
+		int task = 0;
 		for (int frame = startFrame; frame < startFrame + nFrames; frame++) {
 			for (int destChannel = 1; destChannel <= nProjectedChannels; destChannel++)
 			{
 				final int srcChannel = projectedChannels[destChannel - 1];
 
-				// Do projection for each channel separately
-				i5d.setCurrentPosition(0, 0, srcChannel - 1, currentSlice - 1,
-					frame - 1);
-				final ImagePlus tempImg =
-					new ImagePlus(imp.getTitle() + " Projection", i5d.getStack());
-				final ZProjector zp = new ZProjector(tempImg);
-				zp.setStartSlice(startSlice);
-				zp.setStopSlice(stopSlice);
-				zp.setMethod(method);
-				zp.doProjection();
-				final ImagePlus proj = zp.getProjection();
-
-				resultI5D.setPixels(proj.getProcessor().getPixels(), destChannel, 1,
-					frame - startFrame + 1);
+				final Object pixels = getResult(futures.get(task++));
+				resultI5D.setPixels(pixels, destChannel, 1, frame - startFrame + 1);
 				if (frame == startFrame) {
 
 					if (destChannel == resultI5D.getCurrentChannel()) {
@@ -338,11 +325,68 @@ public class Z_Project implements PlugIn {
 			}
 		}
 
-		i5d.setCurrentPosition(0, 0, currentChannel - 1, currentSlice - 1,
-			currentFrame - 1);
 		imp.unlock();
 
 		return resultI5D;
 	}
 
+	/**
+	 * Projects the slices startSlice to stopSlice of the given channel and frame.
+	 * The planes are read directly from the Image5D, so its current position is
+	 * not changed.
+	 */
+	ImageProcessor project(final int channel, final int frame) {
+		final ImageStack stack =
+			new ImageStack(i5d.getWidth(), i5d.getHeight(), i5d
+				.getChannelDisplayProperties(channel).getColorModel());
+		for (int slice = startSlice; slice <= stopSlice; slice++) {
+			stack.addSlice(null, i5d.getPixels(channel, slice, frame));
+		}
+		final ImagePlus tempImg =
+			new ImagePlus(imp.getTitle() + " Projection", stack);
+		final ZProjector zp = new ZProjector(tempImg);
+		zp.setStartSlice(1);
+		zp.setStopSlice(stack.getSize());
+		zp.setMethod(method);
+		zp.doProjection();
+		return zp.getProjection().getProcessor();
+	}
+
+	/**
+	 * Waits for all tasks and shuts down the pool. Returns false if a task
+	 * failed or the wait was interrupted.
+	 */
+	private static boolean waitFor(final ExecutorService pool,
+		final List<Future<Object>> futures)
+	{
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				futures.get(i).get();
+				IJ.showProgress(i + 1, futures.size());
+			}
+			return true;
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		catch (final ExecutionException e) {
+			IJ.handleException(e.getCause());
+			return false;
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/** Returns the result of a task that is known to be done. */
+	private static Object getResult(final Future<Object> future) {
+		try {
+			return future.get();
+		}
+		catch (final Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
 }
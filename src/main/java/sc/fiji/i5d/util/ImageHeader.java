@@ -0,0 +1,338 @@
+//
+// ImageHeader.java
+//
+
+/*
+Image5D plugins for 5-dimensional image stacks in ImageJ.
+
+Copyright (c) 2010, Joachim Walter and ImageJDev.org.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package sc.fiji.i5d.util;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.LookUpTable;
+import ij.io.FileInfo;
+import ij.io.FileOpener;
+import ij.io.Opener;
+import ij.io.TiffDecoder;
+import ij.measure.Calibration;
+
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Dimensions, type, color model and calibration of an image file, read from
+ * the file header without decoding the pixels. TIFF headers are read with the
+ * ImageJ TiffDecoder, PNG, JPEG, GIF and BMP headers with the javax.imageio
+ * readers. Other formats (DICOM, FITS, ...) are opened with the ImageJ
+ * Opener, which decodes the image.
+ */
+public class ImageHeader {
+
+	private final String name;
+	private final int width;
+	private final int height;
+	private final int type;
+	private final ColorModel cm;
+	private final Calibration cal;
+
+	private ImageHeader(final String name, final int width, final int height,
+		final int type, final ColorModel cm, final Calibration cal)
+	{
+		this.name = name;
+		this.width = width;
+		this.height = height;
+		this.type = type;
+		this.cm = cm;
+		this.cal = cal;
+	}
+
+	/**
+	 * Reads the header of the file name in directory. Returns null if the file
+	 * is not an image ImageJ can open.
+	 */
+	public static ImageHeader read(final String directory, final String name) {
+		final File file = new File(directory, name);
+		if (!file.isFile() || name.startsWith(".")) return null;
+		ImageHeader header = null;
+		try {
+			final String lower = name.toLowerCase();
+			if (lower.endsWith(".tif") || lower.endsWith(".tiff")) {
+				header = readTiff(directory, name);
+			}
+			else {
+				header = readImageIO(file, name);
+			}
+		}
+		catch (final IOException e) {
+			if (IJ.debugMode) IJ.log("ImageHeader: " + name + ": " + e);
+		}
+		catch (final RuntimeException e) {
+			if (IJ.debugMode) IJ.log("ImageHeader: " + name + ": " + e);
+		}
+		if (header != null) return header;
+
+		// Unknown header: let ImageJ open the image.
+		final ImagePlus imp = new Opener().openImage(directory, name);
+		if (imp == null) return null;
+		return new ImageHeader(name, imp.getWidth(), imp.getHeight(), imp
+			.getType(), imp.getProcessor().getColorModel(), imp.getCalibration());
+	}
+
+	/**
+	 * Reads the headers of all files in names with nThreads threads. Entries
+	 * of files that can't be opened are null.
+	 */
+	public static ImageHeader[] readAll(final String directory,
+		final String[] names, final int nThreads)
+	{
+		final ImageHeader[] headers = new ImageHeader[names.length];
+		final ExecutorService pool =
+			Executors.newFixedThreadPool(Math.max(1, nThreads));
+		try {
+			final List<Future<ImageHeader>> futures =
+				new ArrayList<Future<ImageHeader>>(names.length);
+			for (final String name : names) {
+				futures.add(pool.submit(new Callable<ImageHeader>() {
+
+					@Override
+					public ImageHeader call() {
+						return read(directory, name);
+					}
+				}));
+			}
+			for (int i = 0; i < names.length; i++) {
+				try {
+					headers[i] = futures.get(i).get();
+				}
+				catch (final ExecutionException e) {
+					IJ.log(names[i] + ": " + e.getCause());
+				}
+			}
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		return headers;
+	}
+
+	/**
+	 * Returns true if an image with this header can be put into the same stack
+	 * as an image with the other header.
+	 */
+	public boolean matches(final ImageHeader other) {
+		return width == other.width && height == other.height &&
+			getBitDepth() == other.getBitDepth();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/** Returns the ImagePlus type, e.g. ImagePlus.GRAY16. */
+	public int getType() {
+		return type;
+	}
+
+	public int getBitDepth() {
+		switch (type) {
+			case ImagePlus.GRAY16:
+				return 16;
+			case ImagePlus.GRAY32:
+				return 32;
+			case ImagePlus.COLOR_RGB:
+				return 24;
+			default:
+				return 8;
+		}
+	}
+
+	public int getBytesPerPixel() {
+		switch (type) {
+			case ImagePlus.GRAY16:
+				return 2;
+			case ImagePlus.GRAY32:
+			case ImagePlus.COLOR_RGB:
+				return 4;
+			default:
+				return 1;
+		}
+	}
+
+	public ColorModel getColorModel() {
+		return cm;
+	}
+
+	public Calibration getCalibration() {
+		return cal;
+	}
+
+	private static ImageHeader readTiff(final String directory,
+		final String name) throws IOException
+	{
+		final FileInfo[] info = new TiffDecoder(directory, name).getTiffInfo();
+		if (info == null || info.length == 0) return null;
+		final FileInfo fi = info[0];
+		final FileOpener opener = new FileOpener(fi);
+		final ColorModel cm = opener.createColorModel(fi);
+		final int type;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8:
+			case FileInfo.COLOR8:
+			case FileInfo.BITMAP:
+				// ImageJ opens 8-bit TIFFs as GRAY8, also if they have a LUT
+				type = ImagePlus.GRAY8;
+				break;
+			case FileInfo.GRAY16_SIGNED:
+			case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY12_UNSIGNED:
+				type = ImagePlus.GRAY16;
+				break;
+			case FileInfo.GRAY32_INT:
+			case FileInfo.GRAY32_UNSIGNED:
+			case FileInfo.GRAY32_FLOAT:
+			case FileInfo.GRAY24_UNSIGNED:
+			case FileInfo.GRAY64_FLOAT:
+				type = ImagePlus.GRAY32;
+				break;
+			case FileInfo.RGB:
+			case FileInfo.BGR:
+			case FileInfo.ARGB:
+			case FileInfo.ABGR:
+			case FileInfo.BARG:
+			case FileInfo.RGB_PLANAR:
+			case FileInfo.CMYK:
+				type = ImagePlus.COLOR_RGB;
+				break;
+			default:
+				// e.g. 48-bit RGB, which ImageJ opens as a 16-bit stack
+				return null;
+		}
+		final Properties props = opener.decodeDescriptionString(fi);
+		final Calibration cal = new Calibration();
+		if (fi.pixelWidth > 0.0 && fi.unit != null) {
+			cal.pixelWidth = fi.pixelWidth;
+			cal.pixelHeight = fi.pixelHeight;
+			cal.pixelDepth = fi.pixelDepth;
+			cal.setUnit(fi.unit);
+		}
+		if (fi.frameInterval != 0.0) cal.frameInterval = fi.frameInterval;
+		if (props != null) {
+			cal.xOrigin = getDouble(props, "xorigin", 0);
+			cal.yOrigin = getDouble(props, "yorigin", 0);
+			cal.zOrigin = getDouble(props, "zorigin", 0);
+			cal.frameInterval = getDouble(props, "finterval", cal.frameInterval);
+			cal.setTimeUnit(props.getProperty("tunit", "sec"));
+		}
+		return new ImageHeader(name, fi.width, fi.height, type, cm, cal);
+	}
+
+	private static ImageHeader readImageIO(final File file, final String name)
+		throws IOException
+	{
+		final ImageInputStream in = ImageIO.createImageInputStream(file);
+		if (in == null) return null;
+		try {
+			final Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext()) return null;
+			final ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				final int width = reader.getWidth(0);
+				final int height = reader.getHeight(0);
+				ImageTypeSpecifier spec = reader.getRawImageType(0);
+				if (spec == null) spec = reader.getImageTypes(0).next();
+				final ColorModel model = spec.getColorModel();
+				if (model instanceof IndexColorModel) {
+					final IndexColorModel icm = (IndexColorModel) model;
+					final int type =
+						new LookUpTable(icm).isGrayscale() ? ImagePlus.GRAY8
+							: ImagePlus.COLOR_256;
+					return new ImageHeader(name, width, height, type, icm,
+						new Calibration());
+				}
+				if (model.getNumComponents() == 1) {
+					final int bits = model.getPixelSize();
+					final int type;
+					if (bits <= 8) type = ImagePlus.GRAY8;
+					else if (bits <= 16) type = ImagePlus.GRAY16;
+					else type = ImagePlus.GRAY32;
+					return new ImageHeader(name, width, height, type, LookUpTable
+						.createGrayscaleColorModel(false), new Calibration());
+				}
+				return new ImageHeader(name, width, height, ImagePlus.COLOR_RGB,
+					LookUpTable.createGrayscaleColorModel(false), new Calibration());
+			}
+			finally {
+				reader.dispose();
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private static double getDouble(final Properties props, final String key,
+		final double defaultValue)
+	{
+		final String s = props.getProperty(key);
+		if (s == null) return defaultValue;
+		try {
+			return Double.parseDouble(s);
+		}
+		catch (final NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+}
@@ -0,0 +1,201 @@
+//
+// ParallelImageLoader.java
+//
+
+/*
+Image5D plugins for 5-dimensional image stacks in ImageJ.
+
+Copyright (c) 2010, Joachim Walter and ImageJDev.org.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package sc.fiji.i5d.util;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.io.Opener;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opens a list of image files with several threads and returns the images in
+ * the order of the list. Only a limited number of files is read ahead of the
+ * image returned last, so the images don't pile up in memory. Useful for
+ * folders on network drives, where opening a file is dominated by latency.
+ * <p>
+ * Usage:
+ * 
+ * <pre>
+ * ParallelImageLoader loader = new ParallelImageLoader(dir, names, threads);
+ * try {
+ * 	while (loader.hasNext()) {
+ * 		ImagePlus imp = loader.next(); // null if file could not be opened
+ * 		...
+ * 	}
+ * }
+ * finally {
+ * 	loader.close();
+ * }
+ * </pre>
+ */
+public class ParallelImageLoader {
+
+	/** Key of the number of threads in the ImageJ preferences. */
+	public static final String THREADS_PREF = "image5d.loaderThreads";
+
+	private final String directory;
+	private final String[] names;
+	private final int window;
+	private final ExecutorService pool;
+	private final ArrayDeque<Future<ImagePlus>> pending =
+		new ArrayDeque<Future<ImagePlus>>();
+	private final AtomicLong bytes = new AtomicLong();
+	private final long startTime;
+	private long stopTime;
+
+	private int nSubmitted;
+	private int nReturned;
+	private int nOpened;
+
+	/**
+	 * Starts opening the files names in directory with nThreads threads.
+	 */
+	public ParallelImageLoader(final String directory, final String[] names,
+		final int nThreads)
+	{
+		this.directory = directory;
+		this.names = names;
+		final int threads = Math.max(1, nThreads);
+		window = 2 * threads;
+		pool = Executors.newFixedThreadPool(threads);
+		startTime = System.nanoTime();
+		submit();
+	}
+
+	/** Returns the number of threads set in the preferences. */
+	public static int getThreads() {
+		return (int) Prefs.get(THREADS_PREF, Math.max(4, 2 * Prefs.getThreads()));
+	}
+
+	/** Sets the number of threads in the preferences. */
+	public static void setThreads(final int nThreads) {
+		Prefs.set(THREADS_PREF, Math.max(1, nThreads));
+	}
+
+	public boolean hasNext() {
+		return nReturned < names.length && !pending.isEmpty();
+	}
+
+	/**
+	 * Waits for the next file of the list and returns it as ImagePlus, or null
+	 * if it could not be opened.
+	 */
+	public ImagePlus next() {
+		final Future<ImagePlus> future = pending.poll();
+		nReturned++;
+		submit();
+		ImagePlus imp = null;
+		try {
+			imp = future.get();
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			close();
+		}
+		catch (final ExecutionException e) {
+			if (e.getCause() instanceof Error) throw (Error) e.getCause();
+			IJ.log(getName() + ": " + e.getCause());
+		}
+		if (imp != null) nOpened++;
+		return imp;
+	}
+
+	/** Returns the name of the file returned last by {@link #next()}. */
+	public String getName() {
+		return nReturned > 0 ? names[nReturned - 1] : null;
+	}
+
+	/** Stops opening files. */
+	public void close() {
+		for (final Future<ImagePlus> future : pending) {
+			future.cancel(true);
+		}
+		pending.clear();
+		pool.shutdownNow();
+		if (stopTime == 0) stopTime = System.nanoTime();
+	}
+
+	/** Returns the number of files opened successfully. */
+	public int getNOpened() {
+		return nOpened;
+	}
+
+	/** Returns the size of all files opened so far. */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/** Returns the time since the loader was started or until it was closed. */
+	public double getSeconds() {
+		final long stop = stopTime != 0 ? stopTime : System.nanoTime();
+		return (stop - startTime) / 1e9;
+	}
+
+	public double getMegabytesPerSecond() {
+		final double seconds = getSeconds();
+		return seconds > 0 ? getBytes() / (1024.0 * 1024.0) / seconds : 0;
+	}
+
+	/** Returns a message like "12 files, 48.0 MB in 1.50 s (32.0 MB/s)". */
+	public String getSummary() {
+		return nOpened + " files, " + IJ.d2s(getBytes() / (1024.0 * 1024.0), 1) +
+			" MB in " + IJ.d2s(getSeconds(), 2) + " s (" +
+			IJ.d2s(getMegabytesPerSecond(), 1) + " MB/s)";
+	}
+
+	private void submit() {
+		while (nSubmitted < names.length && nSubmitted - nReturned < window &&
+			!pool.isShutdown())
+		{
+			final String name = names[nSubmitted++];
+			pending.add(pool.submit(new Callable<ImagePlus>() {
+
+				@Override
+				public ImagePlus call() {
+					final ImagePlus imp = new Opener().openImage(directory, name);
+					if (imp != null) bytes.addAndGet(new File(directory, name).length());
+					return imp;
+				}
+			}));
+		}
+	}
+
+}